@@ -0,0 +1,68 @@
+package edu.utexas.arlut.ciads;
+
+import java.util.Random;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * How a benchmark graph's edges are spread over its vertices. Every graph has DEGREE
+ * edges per vertex on average, a quarter of them labelled RARE and the rest COMMON;
+ * what varies is which vertices they join.
+ */
+public enum Degree {
+    // every vertex is as likely an endpoint as any other
+    UNIFORM {
+        @Override
+        public int pick(Random r, int vertices) {
+            return r.nextInt(vertices);
+        }
+    },
+    // a few hubs have most of the edges: the first 1% of vertices are an endpoint of
+    // about a fifth of them
+    SKEWED {
+        @Override
+        public int pick(Random r, int vertices) {
+            double x = r.nextDouble();
+            return (int) (vertices * x * x * x);
+        }
+    };
+
+    public static final int DEGREE = 5;
+    public static final String COMMON = "knows";
+    public static final String RARE = "likes";
+    // every vertex has a BUCKET property, one of BUCKETS values
+    public static final String BUCKET = "bucket";
+    public static final int BUCKETS = 1000;
+
+    private static final int CHUNK = 10000;
+    private static final long SEED = 42;
+
+    // a vertex, as an index into what populate() returns
+    public abstract int pick(Random r, int vertices);
+
+    /**
+     * Fills an empty graph, committing every CHUNK elements. Ids are supplied, for
+     * graphs that keep them.
+     *
+     * @return the graph's vertices, in the order they were added
+     */
+    public Vertex[] populate(TransactionalGraph g, int vertices) {
+        Random r = new Random(SEED);
+        Vertex[] vs = new Vertex[vertices];
+        for (int i = 0; i < vertices; i++) {
+            vs[i] = g.addVertex("v" + i);
+            vs[i].setProperty(BUCKET, i % BUCKETS);
+            if (0 == (i + 1) % CHUNK)
+                g.commit();
+        }
+        g.commit();
+        for (int i = 0; i < vertices * DEGREE; i++) {
+            g.addEdge("e" + i, vs[pick(r, vertices)], vs[pick(r, vertices)], (0 == i % 4) ? RARE : COMMON);
+            if (0 == (i + 1) % CHUNK)
+                g.commit();
+        }
+        g.commit();
+        return vs;
+    }
+}
@@ -0,0 +1,113 @@
+package edu.utexas.arlut.ciads;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The hot paths every graph implementation is measured on, over a graph populated
+ * per Degree. Subclasses say how to open their graph. Vertices are picked from a
+ * fixed pseudo-random sequence, so runs are comparable and the picking is cheap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class GraphBenchmark {
+    private static final int PICKS = 1 << 16;
+
+    @Param({"10000", "100000"})
+    public int size;
+    @Param({"UNIFORM", "SKEWED"})
+    public Degree degree;
+
+    // an empty graph, with Degree.BUCKET indexed on vertices
+    protected abstract TransactionalGraph open();
+
+    // waits for anything the graph is still writing behind
+    protected void settle() {
+    }
+
+    protected void close() {
+        g.shutdown();
+    }
+
+    @Setup
+    public void setup() {
+        g = open();
+        vertices = degree.populate(g, size);
+        settle();
+        Random r = new Random(size);
+        for (int i = 0; i < PICKS; i++)
+            picks[i] = r.nextInt(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        close();
+    }
+
+    // =================================
+    @Benchmark
+    public Vertex getVertex() {
+        return g.getVertex(vertices[pick()].getId());
+    }
+
+    @Benchmark
+    public void getIndexedVertices(Blackhole bh) {
+        for (Vertex v : g.getVertices(Degree.BUCKET, pick() % Degree.BUCKETS))
+            bh.consume(v);
+    }
+
+    @Benchmark
+    public void getLabelledEdges(Blackhole bh) {
+        for (Edge e : vertices[pick()].getEdges(Direction.OUT, Degree.RARE))
+            bh.consume(e);
+    }
+
+    @Benchmark
+    public void getAdjacentVertices(Blackhole bh) {
+        for (Vertex v : vertices[pick()].getVertices(Direction.BOTH))
+            bh.consume(v);
+    }
+
+    // the graph grows by a vertex and an edge per call
+    @Benchmark
+    public void commit() {
+        Vertex v = g.addVertex("w" + written);
+        v.setProperty(Degree.BUCKET, written % Degree.BUCKETS);
+        g.addEdge("f" + written, v, vertices[pick()], Degree.COMMON);
+        g.commit();
+        written++;
+    }
+
+    // =================================
+    private int pick() {
+        return picks[at++ & (PICKS - 1)];
+    }
+
+    protected TransactionalGraph g;
+    protected Vertex[] vertices;
+    private final int[] picks = new int[PICKS];
+    private int at = 0;
+    private long written = 0;
+}
@@ -0,0 +1,25 @@
+package edu.utexas.arlut.ciads;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+
+/**
+ * An in-memory stand-in for the SoR, so benchmarks measure the cache and not Neo4j's
+ * disk. Every change is visible as soon as it's made; commit and rollback do nothing.
+ */
+public class MemorySoR extends TinkerGraph implements TransactionalGraph {
+    private static final long serialVersionUID = 1L;
+
+    @Deprecated
+    @Override
+    public void stopTransaction(Conclusion conclusion) {
+    }
+
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void rollback() {
+    }
+}
@@ -0,0 +1,21 @@
+package edu.utexas.arlut.ciads.cacheGraph;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import edu.utexas.arlut.ciads.Degree;
+import edu.utexas.arlut.ciads.GraphBenchmark;
+import edu.utexas.arlut.ciads.MemorySoR;
+
+/**
+ * CachedGraph ignores supplied ids, so getVertex mostly measures misses, which are
+ * looked up in the SoR; and it only keeps a bounded number of elements in memory, so
+ * on the larger graphs most reads load from the SoR.
+ */
+public class CachedGraphBenchmark extends GraphBenchmark {
+    @Override
+    protected TransactionalGraph open() {
+        CachedGraph<MemorySoR> g = new CachedGraph<>(new MemorySoR());
+        g.createKeyIndex(Degree.BUCKET, Vertex.class);
+        return g;
+    }
+}
@@ -0,0 +1,35 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import edu.utexas.arlut.ciads.Degree;
+import edu.utexas.arlut.ciads.GraphBenchmark;
+import edu.utexas.arlut.ciads.MemorySoR;
+
+public class CPIGraphBenchmark extends GraphBenchmark {
+    @Override
+    protected TransactionalGraph open() {
+        MemorySoR sor = new MemorySoR();
+        sor.createKeyIndex(CPIGraph.ID, Vertex.class);
+        sor.createKeyIndex(CPIGraph.ID, Edge.class);
+        graph = new CPIGraph("bench", new CPIWriteBehind("bench", sor, WriteBehindConfig.DEFAULT));
+        graph.createKeyIndex(Degree.BUCKET, Vertex.class);
+        graph.vIndices.await(Degree.BUCKET);
+        return graph;
+    }
+
+    @Override
+    protected void settle() {
+        WriteBehindBenchmark.drain(graph.persister);
+    }
+
+    @Override
+    protected void close() {
+        graph.shutdown();
+        graph.waitShutdown();
+    }
+
+    // =================================
+    private CPIGraph graph;
+}
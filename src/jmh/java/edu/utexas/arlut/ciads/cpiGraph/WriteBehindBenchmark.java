@@ -0,0 +1,99 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import edu.utexas.arlut.ciads.Degree;
+import edu.utexas.arlut.ciads.MemorySoR;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How fast the applier drains committed batches into the SoR, in changes per second.
+ * Each call hands the write-behind BATCHES batches of CHANGES changes to a populated
+ * graph's vertices, three quarters property sets and a quarter new edges, and waits
+ * until they're all applied. The batches are built beforehand, outside the timing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBehindBenchmark {
+    private static final int BATCHES = 10;
+    private static final int CHANGES = 100;
+
+    @Param({"10000", "100000"})
+    public int size;
+    @Param({"UNIFORM", "SKEWED"})
+    public Degree degree;
+
+    // waits until everything committed so far is in the SoR
+    static void drain(CPIWriteBehind wb) {
+        for (WriteBehindStats s = wb.getStats(); s.getQueuedBatches() > 0 || s.getPendingOps() > 0; s = wb.getStats())
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+
+    @Setup
+    public void setup() {
+        MemorySoR sor = new MemorySoR();
+        sor.createKeyIndex(CPIGraph.ID, Vertex.class);
+        sor.createKeyIndex(CPIGraph.ID, Edge.class);
+        wb = new CPIWriteBehind("bench", sor, WriteBehindConfig.DEFAULT);
+        g = new CPIGraph("bench", wb);
+        degree.populate(g, size);
+        drain(wb);
+    }
+
+    @Setup(Level.Invocation)
+    public void batches() {
+        for (int b = 0; b < BATCHES; b++) {
+            ChangeSet cs = new ChangeSet();
+            for (int c = 0; c < CHANGES; c++) {
+                String v = "v" + degree.pick(r, size);
+                if (0 == c % 4)
+                    cs.addEdge("d" + (added++), v, "v" + degree.pick(r, size), Degree.COMMON);
+                else
+                    cs.setVProperty(v, Degree.BUCKET, r.nextInt(Degree.BUCKETS));
+            }
+            batches[b] = cs;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.shutdown();
+        g.waitShutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCHES * CHANGES)
+    public void drain() {
+        for (ChangeSet cs : batches)
+            wb.put(cs);
+        drain(wb);
+    }
+
+    // =================================
+    private CPIWriteBehind wb;
+    private CPIGraph g;
+    private final ChangeSet[] batches = new ChangeSet[BATCHES];
+    private final Random r = new Random(42);
+    private long added = 0;
+}
@@ -1,43 +1,141 @@
 package edu.utexas.arlut.ciads.cacheGraph;
 
+/**
+ * One buffered mutation in a GraphTransaction. At commit the actions are applied, in
+ * the order they were made, to a Staging of the elements they touch; only once they
+ * all have is it published to the shared caches, and the actions handed to the
+ * write-behind. One that fails leaves nothing shared to undo.
+ */
 public interface Action {
-    void apply(/* graph? */) /* throw? */;
+    /**
+     * @throws IllegalStateException if another transaction has committed a change this one can't go on top of
+     */
+    void apply(Staging s);
 
-    void reverse(/* graph */);
+    void persist(WriteBehind wb);
 
+    // =======================================
     public static class AddVertex implements Action {
-        final CachedVertex.Impl cv;
+        final CachedVertex cv;
 
-        AddVertex(CachedVertex.Impl cv) {
+        AddVertex(CachedVertex cv) {
             this.cv = cv;
         }
 
         @Override
-        public void apply() {
-
+        public void apply(Staging s) {
+            s.add(cv);
         }
 
         @Override
-        public void reverse() {
-
+        public void persist(WriteBehind wb) {
+            wb.addVertex(cv);
         }
     }
 
     public static class RemoveVertex implements Action {
-        final CachedVertex.Impl cv;
+        final CachedVertex cv;
 
-        RemoveVertex(CachedVertex.Impl cv) {
+        RemoveVertex(CachedVertex cv) {
             this.cv = cv;
         }
 
         @Override
-        public void apply() {
+        public void apply(Staging s) {
+            if (s.removed(cv))
+                throw removedException(cv);
+            // our own edge removals come first, so anything left was added by someone else
+            if (s.impl(cv).hasEdges())
+                throw new IllegalStateException("Vertex " + cv.id + " has edges added by another transaction");
+            s.remove(cv);
+        }
+
+        @Override
+        public void persist(WriteBehind wb) {
+            wb.removeVertex(cv);
+        }
+    }
+
+    public static class AddEdge implements Action {
+        final CachedEdge ce;
+
+        AddEdge(CachedEdge ce) {
+            this.ce = ce;
+        }
+
+        @Override
+        public void apply(Staging s) {
+            if (s.removed(ce.startVertex))
+                throw removedException(ce.startVertex);
+            if (s.removed(ce.endVertex))
+                throw removedException(ce.endVertex);
+            s.add(ce);
+            s.impl(ce.startVertex).addOutEdge(ce.id);
+            s.impl(ce.endVertex).addInEdge(ce.id);
+        }
+
+        @Override
+        public void persist(WriteBehind wb) {
+            wb.addEdge(ce);
+        }
+    }
+
+    public static class RemoveEdge implements Action {
+        final CachedEdge ce;
+
+        RemoveEdge(CachedEdge ce) {
+            this.ce = ce;
+        }
+
+        @Override
+        public void apply(Staging s) {
+            if (s.removed(ce))
+                throw removedException(ce);
+            s.remove(ce);
+            s.impl(ce.startVertex).removeEdge(ce.id);
+            s.impl(ce.endVertex).removeEdge(ce.id);
+        }
+
+        @Override
+        public void persist(WriteBehind wb) {
+            wb.removeEdge(ce);
+        }
+    }
+
+    // value is null for a removal
+    public static class SetProperty implements Action {
+        final CachedElement ce;
+        final String key;
+        final Object value;
 
+        SetProperty(CachedElement ce, String key, Object value) {
+            this.ce = ce;
+            this.key = key;
+            this.value = value;
         }
 
         @Override
-        public void reverse() {
+        public void apply(Staging s) {
+            if (s.removed(ce))
+                throw removedException(ce);
+            CachedElement.Impl i = s.impl(ce);
+            if (null == value)
+                i.properties.remove(key);
+            else
+                i.properties.put(key, value);
+        }
 
+        @Override
+        public void persist(WriteBehind wb) {
+            if (null == value)
+                wb.removeProperty(ce, key);
+            else
+                wb.setProperty(ce, key, value);
         }
     }
+
+    // =======================================
+    static IllegalStateException removedException(CachedElement ce) {
+        return new IllegalStateException("Element " + ce.id + " was removed by another transaction");
+    }
 }
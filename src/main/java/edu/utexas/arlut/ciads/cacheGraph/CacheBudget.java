@@ -0,0 +1,45 @@
+package edu.utexas.arlut.ciads.cacheGraph;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bytes of cached elements that a set of graphs may hold between them. Each graph
+ * reserves its own budget out of this one when it's opened, or as much of it as is
+ * left, and gives it back when it's shut down; so the graphs' caches never hold more
+ * than this between them, though one graph can't borrow what another isn't using.
+ * A graph that would get less than MIN_BYTES isn't opened, rather than run with a
+ * cache too small to hold anything.
+ */
+@Slf4j
+public final class CacheBudget {
+    public static final long MIN_BYTES = 1L << 20;
+
+    public CacheBudget(long bytes) {
+        this.remaining = bytes;
+    }
+
+    /**
+     * @throws IllegalStateException if less than MIN_BYTES, or bytes if that's less,
+     *                               is left
+     */
+    public synchronized long reserve(long bytes) {
+        long granted = Math.min(bytes, remaining);
+        if (granted < Math.min(bytes, MIN_BYTES))
+            throw new IllegalStateException("Cache budget has " + remaining + " bytes left, of " + bytes + " asked for");
+        if (granted < bytes)
+            log.warn("Cache budget has {} bytes left, of {} asked for", granted, bytes);
+        remaining -= granted;
+        return granted;
+    }
+
+    public synchronized void release(long bytes) {
+        remaining += bytes;
+    }
+
+    public synchronized long remaining() {
+        return remaining;
+    }
+
+    // =================================
+    private long remaining;
+}
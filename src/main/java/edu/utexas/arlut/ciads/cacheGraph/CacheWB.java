@@ -17,19 +17,20 @@ public class CacheWB<T extends TransactionalGraph & KeyIndexableGraph> extends W
     }
 
     void addVertex(final CachedVertex proxy) {
-        executor.submit(new Runnable() {
+        submit(proxy, new Runnable() {
             @Override
             public void run() {
                 Vertex v = writeTo.addVertex(null);
-                proxy.setBase(v);
                 v.setProperty(CachedGraph.ID, proxy.getId());
                 writeTo.commit();
+                // only once it's in the SoR, where a scan finds it
+                proxy.setBase(v);
                 log.info("Executor addVertex {}", v);
             }
         });
     }
     void removeVertex(final CachedVertex proxy) {
-        executor.submit(new Runnable() {
+        submit(proxy, new Runnable() {
             @Override
             public void run() {
                 proxy.getBaseVertex().remove();
@@ -38,21 +39,21 @@ public class CacheWB<T extends TransactionalGraph & KeyIndexableGraph> extends W
         });
     }
     void addEdge(final CachedEdge proxy) {
-        executor.submit(new Runnable() {
+        submit(proxy, new Runnable() {
             @Override
             public void run() {
                 Vertex oV = proxy.startVertex.getBaseVertex();
                 Vertex iV = proxy.endVertex.getBaseVertex();
                 Edge e = writeTo.addEdge(null, oV, iV, proxy.label);
-                proxy.setBase(e);
                 e.setProperty(CachedGraph.ID, proxy.getId());
                 writeTo.commit();
+                proxy.setBase(e);
                 log.info("Executor addEdge {}", e);
             }
         });
     }
     void removeEdge(final CachedEdge proxy) {
-        executor.submit(new Runnable() {
+        submit(proxy, new Runnable() {
             @Override
             public void run() {
                 proxy.getBaseEdge().remove();
@@ -61,7 +62,7 @@ public class CacheWB<T extends TransactionalGraph & KeyIndexableGraph> extends W
         });
     }
     void setProperty(final CachedElement proxy, final String key, final Object val) {
-        executor.submit(new Runnable() {
+        submit(proxy, new Runnable() {
             @Override
             public void run() {
                 proxy.getBase().setProperty(key, val);
@@ -72,7 +73,7 @@ public class CacheWB<T extends TransactionalGraph & KeyIndexableGraph> extends W
         });
     }
     void removeProperty(final CachedElement proxy, final String key) {
-        executor.submit(new Runnable() {
+        submit(proxy, new Runnable() {
             @Override
             public void run() {
                 proxy.getBase().removeProperty(key);
@@ -84,9 +85,13 @@ public class CacheWB<T extends TransactionalGraph & KeyIndexableGraph> extends W
         executor.submit(new Runnable() {
             @Override
             public void run() {
-                writeTo.createKeyIndex(key, clazz);
-                writeTo.commit();
-                log.info("Executor addKeyIndex {}|{}",clazz.getSimpleName(), key);
+                try {
+                    writeTo.createKeyIndex(key, clazz);
+                    writeTo.commit();
+                    log.info("Executor addKeyIndex {}|{}",clazz.getSimpleName(), key);
+                } catch (RuntimeException e) {
+                    log.error("Unable to index {}|{}", clazz.getSimpleName(), key, e);
+                }
 
             }
         });
@@ -101,6 +106,24 @@ public class CacheWB<T extends TransactionalGraph & KeyIndexableGraph> extends W
             }
         });
     }
+    void afterWrites(final Runnable task) {
+        executor.submit(task);
+    }
+    // the element is dirty in its graph until the write is done, whether or not it works
+    private void submit(final CachedElement proxy, final Runnable write) {
+        proxy.graph.dirty(proxy);
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } finally {
+                    proxy.graph.written(proxy);
+                }
+            }
+        });
+    }
+
     private final T writeTo;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
 }
@@ -12,13 +12,13 @@ import static com.tinkerpop.blueprints.Direction.OUT;
 public class CachedEdge extends CachedElement implements Edge {
 
     protected CachedEdge(String id, CachedVertex outVertex, CachedVertex inVertex, String label, CachedGraph cg) {
-        super(id, cg);
+        super(id, cg, new Impl());
         startVertex = outVertex;
         endVertex = inVertex;
         this.label = label;
     }
     CachedEdge(Edge from, CachedVertex outVertex, CachedVertex inVertex, CachedGraph cg) {
-        super(from, cg);
+        super(from, cg, new Impl());
         startVertex = outVertex;
         endVertex = inVertex;
         label = from.getLabel();
@@ -1,6 +1,7 @@
 package edu.utexas.arlut.ciads.cacheGraph;
 
 import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.util.ElementHelper;
 import com.tinkerpop.blueprints.util.wrappers.id.IdGraph;
 import lombok.extern.slf4j.Slf4j;
 
@@ -8,25 +9,31 @@ import java.util.Map;
 import java.util.Set;
 
 import static com.google.common.collect.Maps.newHashMap;
-import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.tinkerpop.blueprints.util.ElementHelper.getProperties;
 
 @Slf4j
 public abstract class CachedElement implements Element {
+    // rough sizes, in bytes, of the JVM's objects
+    static final long OBJECT = 48, STRING = 40, MAP = 64, ENTRY = 32, ARRAY = 16, BOXED = 16;
 
 
 
     protected CachedElement(final String id,
-                            final CachedGraph cg) {
+                            final CachedGraph cg,
+                            final Impl impl) {
         this.id = id;
         this.graph = cg;
-        properties.put(IdGraph.ID, id);
+        impl.properties.put(IdGraph.ID, id);
+        this.impl = impl;
     }
     protected CachedElement(final Element from,
-                            final CachedGraph cg) {
-        properties.putAll(getProperties(from));
-        this.id = properties.get(CachedGraph.ID).toString();
+                            final CachedGraph cg,
+                            final Impl impl) {
+        impl.properties.putAll(getProperties(from));
+        this.id = impl.properties.get(CachedGraph.ID).toString();
         this.graph = cg;
+        this.baseElement = from;
+        this.impl = impl;
     }
 
     Element getBase() {
@@ -36,14 +43,15 @@ public abstract class CachedElement implements Element {
         baseElement = e;
     }
 
+    // properties are read and written through the thread's transaction
     @Override
     public <T> T getProperty(String key) {
-        return (T) properties.get(key);
+        return (T) graph.getTx().getProperty(this, key);
     }
 
     @Override
     public Set<String> getPropertyKeys() {
-        return properties.keySet();
+        return graph.getTx().getPropertyKeys(this);
     }
 
     @Override
@@ -51,8 +59,8 @@ public abstract class CachedElement implements Element {
         if (key.equals(CachedGraph.ID)) {
             throw new IllegalArgumentException("Unable to set value for reserved property " + IdGraph.ID);
         }
-        properties.put(key, value);
-        graph.writeBehind.setProperty(this, key, value);
+        ElementHelper.validateProperty(this, key, value);
+        graph.getTx().setProperty(this, key, value);
     }
 
     @Override
@@ -60,15 +68,43 @@ public abstract class CachedElement implements Element {
         if (key.equals(CachedGraph.ID)) {
             throw new IllegalArgumentException("Unable to remove value for reserved property " + IdGraph.ID);
         }
-        graph.writeBehind.removeProperty(this, key);
-        return (T) properties.remove(key);
+        return (T) graph.getTx().setProperty(this, key, null);
     }
     @Override
     public Object getId() {
         return id;
     }
 
+    /**
+     * @return a rough count of the bytes the element's committed state holds, for the
+     * caches' weigher: the element, its id, and its property values. Keys are mostly
+     * shared between elements, so they're not counted.
+     */
+    long bytes() {
+        long n = OBJECT + string(id) + MAP;
+        for (Object v : impl.properties.values())
+            n += ENTRY + value(v);
+        return n;
+    }
+
+    static long string(String s) {
+        return STRING + 2L * s.length();
+    }
+
+    private static long value(Object v) {
+        if (v instanceof String)
+            return string((String) v);
+        if (v instanceof byte[])
+            return ARRAY + ((byte[]) v).length;
+        return BOXED;
+    }
+
     // =======================================
+    /**
+     * An element's committed state. A commit changes a copy, and swaps it in whole, so
+     * a reader sees the element as it was before the commit or after it; a published
+     * impl isn't changed again.
+     */
     static class Impl {
         Impl() {
             properties = newHashMap();
@@ -76,14 +112,19 @@ public abstract class CachedElement implements Element {
         Impl(Impl src) {
             properties = newHashMap(src.properties);
         }
-        private final Map<String, Object> properties;
+        Impl copy() {
+            return new Impl(this);
+        }
+        final Map<String, Object> properties;
     }
 
     // =======================================
     // b/c we're write-behind, this may be slow in coming...
-    protected Element baseElement = null;
+    protected volatile Element baseElement = null;
 
     protected final CachedGraph graph;
     protected final String id;
-    protected Map<String, Object> properties = newHashMap();
+    // committed state, only replaced by a committing transaction
+    volatile Impl impl;
+    volatile boolean removed = false;
 }
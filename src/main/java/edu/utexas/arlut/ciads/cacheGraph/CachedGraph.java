@@ -1,35 +1,77 @@
 package edu.utexas.arlut.ciads.cacheGraph;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.tinkerpop.blueprints.*;
+import com.tinkerpop.blueprints.util.DefaultGraphQuery;
 import com.tinkerpop.blueprints.util.ExceptionFactory;
 import com.tinkerpop.blueprints.util.PropertyFilteredIterable;
 import com.tinkerpop.blueprints.util.StringFactory;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
 
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Iterables.getFirst;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newLinkedHashSet;
 
 // CPI =
 // Cached
 // Partitioned
 // IDed
+/**
+ * The caches are read-through: an element that isn't in memory is loaded from the
+ * SoR, through its index on ID, when it's asked for, so a partition needn't fit in
+ * memory. Vertices keep their adjacency as edge ids, and a vertex's missing edges are
+ * fetched together off its SoR vertex. Scans are streamed off the SoR, and what they
+ * pass over isn't cached.
+ * <p>
+ * The caches are bounded by an estimate of the bytes their elements hold, so a hub
+ * with a big adjacency takes the room of many leaves. The budget is split evenly
+ * between vertices and edges, and may be reserved out of a CacheBudget shared by
+ * several graphs. The bound is soft: an element with writes pending is held outside
+ * the caches until they're written, and isn't counted, so while the write-behind is
+ * behind, memory can run past the budget by what it has queued.
+ */
 @Slf4j
 public class CachedGraph<T extends TransactionalGraph & KeyIndexableGraph>
         implements TransactionalGraph, KeyIndexableGraph {
     public static final String ID = "__id";
+    public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+    private static final Weigher<String, CachedElement> WEIGHER = new Weigher<String, CachedElement>() {
+        @Override
+        public int weigh(String id, CachedElement e) {
+            return (int) Math.min(Integer.MAX_VALUE, e.bytes());
+        }
+    };
+
     private final T graph;
-    final Cache<String, CachedVertex> vertexCache = CacheBuilder.newBuilder()
-            .maximumSize(1000)
+    final Cache<String, CachedVertex> vertexCache;
+    final Cache<String, CachedEdge> edgeCache;
+    // every element still referenced from anywhere: a transaction, an edge, the
+    // write-behind's queue. A miss looks here before the SoR, so there's only ever one
+    // copy of an element, and one with changes not yet written is never reloaded stale
+    private final Cache<String, CachedVertex> liveVertices = CacheBuilder.newBuilder()
+            .weakValues()
             .build();
-    final Cache<String, CachedEdge> edgeCache = CacheBuilder.newBuilder()
-            .maximumSize(1000)
+    private final Cache<String, CachedEdge> liveEdges = CacheBuilder.newBuilder()
+            .weakValues()
             .build();
 
     @Setter
@@ -44,28 +86,56 @@ public class CachedGraph<T extends TransactionalGraph & KeyIndexableGraph>
 
 
     public CachedGraph(T graph) {
+        this(graph, DEFAULT_CACHE_BYTES);
+    }
+
+    public CachedGraph(T graph, long cacheBytes) {
+        this(graph, cacheBytes, null);
+    }
+
+    /**
+     * @param budget what cacheBytes is reserved out of, until shutdown; null for none
+     * @throws IllegalStateException if the budget hasn't enough left
+     */
+    public CachedGraph(T graph, long cacheBytes, CacheBudget budget) {
         this.graph = graph;
+        this.budget = budget;
+        this.cacheBytes = (null == budget) ? cacheBytes : budget.reserve(cacheBytes);
+        vertexCache = CacheBuilder.newBuilder()
+                .maximumWeight(this.cacheBytes / 2)
+                .<String, CachedVertex>weigher(WEIGHER)
+                .build();
+        edgeCache = CacheBuilder.newBuilder()
+                .maximumWeight(this.cacheBytes / 2)
+                .<String, CachedEdge>weigher(WEIGHER)
+                .build();
         vertexIdFactory = new IdFactory.DefaultIdFactory();
         edgeIdFactory = new IdFactory.DefaultIdFactory();
 
-        createKeyIndex(ID, Vertex.class);
-        createKeyIndex(ID, Edge.class);
-
-        // load with NullWriteBehind, so we don't write to a graph we're loading from
-        initialLoad();
+        // with NullWriteBehind, so we don't write back the indices we're copying
+        loadIndices();
         // then switch over to a real backing graph
         writeBehind = new CacheWB<T>(graph);
+        for (Map.Entry<String, KeyIndex<String>> me : vertexIndex.entrySet())
+            writeBehind.afterWrites(filler(me.getKey(), Vertex.class, me.getValue()));
+        for (Map.Entry<String, KeyIndex<String>> me : edgeIndex.entrySet())
+            writeBehind.afterWrites(filler(me.getKey(), Edge.class, me.getValue()));
+        // misses are loaded through the SoR's index on ID, which is built if it's
+        // missing; till it is, misses scan
+        createKeyIndex(ID, Vertex.class);
+        createKeyIndex(ID, Edge.class);
     }
 
-    private void initialLoad() {
-        for (String ik : graph.getIndexedKeys(Vertex.class))
+    // the SoR's indices are built by now
+    private void loadIndices() {
+        for (String ik : graph.getIndexedKeys(Vertex.class)) {
             createKeyIndex(ik, Vertex.class);
-        for (String ik : graph.getIndexedKeys(Edge.class))
+            vertexIndex.get(ik).sorSettled(true);
+        }
+        for (String ik : graph.getIndexedKeys(Edge.class)) {
             createKeyIndex(ik, Edge.class);
-        for (Vertex v : graph.getVertices())
-            _addVertex(v);
-        for (Edge e : graph.getEdges())
-            _addEdge(e);
+            edgeIndex.get(ik).sorSettled(true);
+        }
     }
 
     public void dump() {
@@ -87,98 +157,56 @@ public class CachedGraph<T extends TransactionalGraph & KeyIndexableGraph>
         return getTx().addVertex(null);
     }
 
-    private void _addVertex(Vertex v) {
-        final CachedVertex cv = new CachedVertex(v, this);
-        String id = cv.getId().toString();
-        vertexCache.put(id, cv);
-    }
-
     @Override
     public Vertex getVertex(Object id) {
-        return vertexCache.getIfPresent(id.toString());
+        return getTx().getVertex(id);
     }
 
     @Override
     public void removeVertex(Vertex v) {
-        String id = v.getProperty(ID);
-        // remove edges
-        for (Edge e : v.getEdges(Direction.BOTH)) {
-            removeEdge(e);
-        }
-        vertexCache.invalidate(id);
-        writeBehind.removeVertex((CachedVertex) v);
+        getTx().removeVertex(v);
     }
 
     @Override
     public Iterable<Vertex> getVertices() {
-//        return ImmutableList.copyOf(vertexCache.asMap().values());
-        return Collections.emptyList();
+        return getTx().getVertices();
     }
 
     @Override
     public Iterable<Vertex> getVertices(String key, Object value) {
-        // TODO: look at indices...
-        return new PropertyFilteredIterable<>(key, value, this.getVertices());
+        return getTx().getVertices(key, value);
     }
 
     // =================================
     @Override
     public Edge addEdge(Object id_, Vertex outVertex, Vertex inVertex, String label) {
-        String id = edgeIdFactory.call();
-        CachedVertex oV = (CachedVertex) outVertex;
-        CachedVertex iV = (CachedVertex) inVertex;
-
-        final CachedEdge ce = new CachedEdge(id, oV, iV, label, this);
-        oV.addOutEdge(ce);
-        iV.addInEdge(ce);
-
-        edgeCache.put(id, ce);
-        writeBehind.addEdge(ce);
-        return ce;
-    }
-
-    private CachedVertex resolve(Edge e, Direction d) {
-        Vertex ov = e.getVertex(d);
-        String ovid = ov.getProperty(ID).toString();
-        return vertexCache.getIfPresent(ovid);
-    }
-
-    private void _addEdge(Edge e) {
-        CachedVertex oV = resolve(e, Direction.OUT);
-        CachedVertex iV = resolve(e, Direction.IN);
-        final CachedEdge ce = new CachedEdge(e, oV, iV, this);
-        String id = ce.getId().toString();
-        edgeCache.put(id, ce);
+        return getTx().addEdge(id_, outVertex, inVertex, label);
     }
 
     @Override
     public Edge getEdge(Object id) {
-        return edgeCache.getIfPresent(id.toString());
+        return getTx().getEdge(id);
     }
 
     @Override
     public void removeEdge(Edge e) {
-        String id = e.getProperty(ID);
-        edgeCache.invalidate(id);
-        writeBehind.removeEdge((CachedEdge) e);
+        getTx().removeEdge(e);
     }
 
     @Override
     public Iterable<Edge> getEdges() {
-//        return ImmutableList.copyOf(edgeCache.asMap().values());
-        return Collections.emptyList();
+        return getTx().getEdges();
     }
 
     @Override
     public Iterable<Edge> getEdges(String key, Object value) {
-        // TODO: look at indices...
-        return new PropertyFilteredIterable<>(key, value, this.getEdges());
+        return getTx().getEdges(key, value);
     }
 
     // =================================
     @Override
     public GraphQuery query() {
-        return null;
+        return new DefaultGraphQuery(this);
     }
 
     @Deprecated
@@ -192,21 +220,23 @@ public class CachedGraph<T extends TransactionalGraph & KeyIndexableGraph>
         log.info("CachedGraph shutdown");
         writeBehind.shutdown();
         graph.shutdown();
+        if (null != budget)
+            budget.release(cacheBytes);
     }
 
     @Override
     public void commit() {
-    /*
-    o remove edges
-    o remove vertices
-    o add vertices
-    o add edges
-     */
+        try {
+            getTx().commit();
+        } finally {
+            tlGraphTransaction.remove();
+        }
     }
 
     @Override
     public void rollback() {
-
+        getTx().rollback();
+        tlGraphTransaction.remove();
     }
 
     // =================================
@@ -234,21 +264,21 @@ public class CachedGraph<T extends TransactionalGraph & KeyIndexableGraph>
         writeBehind.dropKeyIndex(key, elementClass);
     }
 
+    // Blueprints declares indexParameters raw
+    @SuppressWarnings("rawtypes")
     @Override
     public <T extends Element> void createKeyIndex(String key, Class<T> elementClass, Parameter... indexParameters) {
         if (Vertex.class.isAssignableFrom(elementClass)) {
-            if (!isIndexed(key, elementClass)) {
-                Multimap<Object, CachedVertex> mm = LinkedHashMultimap.create();
-                mm = Multimaps.synchronizedMultimap(mm);
-                vertexIndex.put(key, mm);
+            KeyIndex<String> index = new KeyIndex<>();
+            if (null == vertexIndex.putIfAbsent(key, index)) {
                 writeBehind.addKeyIndex(key, elementClass);
+                writeBehind.afterWrites(filler(key, elementClass, index));
             }
         } else if (Edge.class.isAssignableFrom(elementClass)) {
-            if (!isIndexed(key, elementClass)) {
-                Multimap<Object, CachedEdge> mm = LinkedHashMultimap.create();
-                mm = Multimaps.synchronizedMultimap(mm);
-                edgeIndex.put(key, mm);
+            KeyIndex<String> index = new KeyIndex<>();
+            if (null == edgeIndex.putIfAbsent(key, index)) {
                 writeBehind.addKeyIndex(key, elementClass);
+                writeBehind.afterWrites(filler(key, elementClass, index));
             }
         } else {
             throw ExceptionFactory.classIsNotIndexable(elementClass);
@@ -266,38 +296,423 @@ public class CachedGraph<T extends TransactionalGraph & KeyIndexableGraph>
     }
 
     // =================================
+    // the indices hold ids, so that an indexed element can be dropped from memory
     void addToIndex(String key, Object value, CachedVertex vertex) {
-        if (vertexIndex.containsKey(key)) {
+        KeyIndex<String> index = vertexIndex.get(key);
+        if (null != index) {
             log.info("Add to index {}:{}:{}", key, value, vertex);
-            vertexIndex.get(key).put(value, vertex);
+            index.put(value, vertex.id);
         }
     }
 
     void removeFromIndex(String key, Object value, CachedVertex edge) {
-        if (vertexIndex.containsKey(key))
-            vertexIndex.get(key).remove(value, edge);
+        KeyIndex<String> index = vertexIndex.get(key);
+        if (null != index)
+            index.remove(value, edge.id);
     }
 
     void addToIndex(String key, Object value, CachedEdge edge) {
-        if (edgeIndex.containsKey(key)) {
+        KeyIndex<String> index = edgeIndex.get(key);
+        if (null != index) {
             log.info("Add to index {}:{}:{}", key, value, edge);
-            edgeIndex.get(key).put(value, edge);
+            index.put(value, edge.id);
         }
     }
 
     void removeFromIndex(String key, Object value, CachedEdge edge) {
-        if (edgeIndex.containsKey(key))
-            edgeIndex.get(key).remove(value, edge);
+        KeyIndex<String> index = edgeIndex.get(key);
+        if (null != index)
+            index.remove(value, edge.id);
     }
 
     <T extends Element> void addToIndex(String key, Object value, T e) {
         if ((e instanceof CachedVertex) && (vertexIndex.containsKey(key))) {
-            vertexIndex.get(key).put(value, (CachedVertex) e);
+            vertexIndex.get(key).put(value, ((CachedVertex) e).id);
         } else if ((e instanceof CachedEdge) && (edgeIndex.containsKey(key))) {
-            edgeIndex.get(key).put(value, (CachedEdge) e);
+            edgeIndex.get(key).put(value, ((CachedEdge) e).id);
+        }
+    }
+
+    <T extends Element> void removeFromIndex(String key, Object value, T e) {
+        if ((e instanceof CachedVertex) && (vertexIndex.containsKey(key))) {
+            vertexIndex.get(key).remove(value, ((CachedVertex) e).id);
+        } else if ((e instanceof CachedEdge) && (edgeIndex.containsKey(key))) {
+            edgeIndex.get(key).remove(value, ((CachedEdge) e).id);
+        }
+    }
+
+    void index(CachedElement ce) {
+        for (Map.Entry<String, Object> me : ce.impl.properties.entrySet())
+            addToIndex(me.getKey(), me.getValue(), ce);
+    }
+
+    // committed elements that may have the value: the index has every one that's been
+    // in memory, and once it's complete, every one in the SoR too. Till then the rest
+    // come through the SoR's own index on the key, once that's built
+    List<CachedVertex> indexedVertices(String key, Object value) {
+        Set<CachedVertex> found = newLinkedHashSet();
+        if (ID.equals(key)) {
+            CachedVertex cv = vertex(value.toString(), null);
+            if (null != cv)
+                found.add(cv);
+            return newArrayList(found);
+        }
+        KeyIndex<String> index = vertexIndex.get(key);
+        for (String id : index.get(value)) {
+            CachedVertex cv = vertex(id, null);
+            if (null != cv)
+                found.add(cv);
+        }
+        if (!index.isComplete()) {
+            Iterable<Vertex> vs = index.awaitSorIndexed()
+                    ? graph.getVertices(key, value)
+                    : new PropertyFilteredIterable<>(key, value, graph.getVertices());
+            for (Vertex v : vs) {
+                CachedVertex cv = cached(v);
+                if (null != cv)
+                    found.add(cv);
+            }
+        }
+        return newArrayList(found);
+    }
+
+    List<CachedEdge> indexedEdges(String key, Object value) {
+        Set<CachedEdge> found = newLinkedHashSet();
+        if (ID.equals(key)) {
+            CachedEdge ce = edge(value.toString(), null);
+            if (null != ce)
+                found.add(ce);
+            return newArrayList(found);
+        }
+        KeyIndex<String> index = edgeIndex.get(key);
+        for (String id : index.get(value)) {
+            CachedEdge ce = edge(id, null);
+            if (null != ce)
+                found.add(ce);
+        }
+        if (!index.isComplete()) {
+            Iterable<Edge> es = index.awaitSorIndexed()
+                    ? graph.getEdges(key, value)
+                    : new PropertyFilteredIterable<>(key, value, graph.getEdges());
+            for (Edge e : es) {
+                CachedEdge ce = cached(e);
+                if (null != ce)
+                    found.add(ce);
+            }
+        }
+        return newArrayList(found);
+    }
+
+    /**
+     * @return a task that notes whether the SoR has its own index on the key, then
+     * fills the index in from the SoR and marks it complete. The SoR reports a key
+     * indexed as soon as it starts building it, so its index is only trusted once
+     * the build has returned, which it has by the time this runs. The index on ID
+     * isn't filled, as a lookup on ID is just a load.
+     */
+    private Runnable filler(final String key, final Class<? extends Element> elementClass,
+                            final KeyIndex<String> index) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                index.sorSettled(graph.getIndexedKeys(elementClass).contains(key));
+                if (ID.equals(key))
+                    return;
+                Iterable<? extends Element> es = Vertex.class.isAssignableFrom(elementClass)
+                        ? graph.getVertices()
+                        : graph.getEdges();
+                for (Element e : es) {
+                    Object id = e.getProperty(ID);
+                    Object value = e.getProperty(key);
+                    if (null != id && null != value)
+                        index.put(value, id.toString());
+                }
+                index.complete();
+            }
+        };
+    }
+
+    // the SoR's element with the id, through its index on ID once that's built
+    private Vertex sorVertex(String id) {
+        Iterable<Vertex> vs = sorIndexed(vertexIndex)
+                ? graph.getVertices(ID, id)
+                : new PropertyFilteredIterable<>(ID, id, graph.getVertices());
+        return getFirst(vs, null);
+    }
+
+    private Edge sorEdge(String id) {
+        Iterable<Edge> es = sorIndexed(edgeIndex)
+                ? graph.getEdges(ID, id)
+                : new PropertyFilteredIterable<>(ID, id, graph.getEdges());
+        return getFirst(es, null);
+    }
+
+    private static boolean sorIndexed(Map<String, KeyIndex<String>> indices) {
+        KeyIndex<String> index = indices.get(ID);
+        return null != index && index.isSorIndexed();
+    }
+
+    // =======================================
+    /**
+     * @return the committed vertex, loaded from the SoR if it isn't in memory, or null
+     * if there's no such vertex. Concurrent loads of one id wait on the first.
+     * @param sorV the SoR's vertex, if it's known, to save the index lookup
+     */
+    CachedVertex vertex(final String id, final Vertex sorV) {
+        try {
+            return vertexCache.get(id, new Callable<CachedVertex>() {
+                @Override
+                public CachedVertex call() {
+                    return live(id, sorV);
+                }
+            });
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof NoSuchElementException)
+                return null;
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load vertex " + id, e.getCause());
+        }
+    }
+
+    // a loaded edge's endpoints are loaded with it
+    CachedEdge edge(final String id, final Edge sorE) {
+        try {
+            return edgeCache.get(id, new Callable<CachedEdge>() {
+                @Override
+                public CachedEdge call() {
+                    return live(id, sorE, true);
+                }
+            });
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof NoSuchElementException)
+                return null;
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load edge " + id, e.getCause());
+        }
+    }
+
+    /**
+     * @return the one copy of the vertex, made from the SoR's if there isn't one in
+     * memory, without caching it
+     * @throws NoSuchElementException if there's no such vertex
+     */
+    private CachedVertex live(final String id, final Vertex sorV) {
+        try {
+            return liveVertices.get(id, new Callable<CachedVertex>() {
+                @Override
+                public CachedVertex call() {
+                    Vertex v = (null != sorV) ? sorV : sorVertex(id);
+                    if (null == v)
+                        throw new NoSuchElementException(id);
+                    CachedVertex cv = new CachedVertex(v, CachedGraph.this);
+                    index(cv);
+                    return cv;
+                }
+            });
+        } catch (UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load vertex " + id, e.getCause());
+        }
+    }
+
+    // its endpoints are cached with it, or only made live if it isn't being cached
+    private CachedEdge live(final String id, final Edge sorE, final boolean caching) {
+        try {
+            return liveEdges.get(id, new Callable<CachedEdge>() {
+                @Override
+                public CachedEdge call() {
+                    Edge e = (null != sorE) ? sorE : sorEdge(id);
+                    CachedVertex oV = (null == e) ? null : endpoint(e.getVertex(Direction.OUT), caching);
+                    CachedVertex iV = (null == e) ? null : endpoint(e.getVertex(Direction.IN), caching);
+                    if (null == oV || null == iV)
+                        throw new NoSuchElementException(id);
+                    CachedEdge ce = new CachedEdge(e, oV, iV, CachedGraph.this);
+                    index(ce);
+                    return ce;
+                }
+            });
+        } catch (UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load edge " + id, e.getCause());
         }
     }
 
+    private CachedVertex endpoint(Vertex sorV, boolean caching) {
+        return caching ? cached(sorV) : streamed(sorV);
+    }
+
+    // null for a SoR element without an ID
+    private CachedVertex cached(Vertex sorV) {
+        Object id = sorV.getProperty(ID);
+        return (null == id) ? null : vertex(id.toString(), sorV);
+    }
+
+    private CachedEdge cached(Edge sorE) {
+        Object id = sorE.getProperty(ID);
+        return (null == id) ? null : edge(id.toString(), sorE);
+    }
+
+    // as cached(), but one that's in the caches is left there, and one that isn't
+    // is left out, so a scan doesn't flush what's in use for what it passes over
+    private CachedVertex streamed(Vertex sorV) {
+        Object id = sorV.getProperty(ID);
+        if (null == id)
+            return null;
+        CachedVertex cv = vertexCache.getIfPresent(id.toString());
+        try {
+            return (null != cv) ? cv : live(id.toString(), sorV);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private CachedEdge streamed(Edge sorE) {
+        Object id = sorE.getProperty(ID);
+        if (null == id)
+            return null;
+        CachedEdge ce = edgeCache.getIfPresent(id.toString());
+        try {
+            return (null != ce) ? ce : live(id.toString(), sorE, false);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the vertex's committed edges. Those not in memory are fetched together,
+     * in one pass over the SoR vertex's edges, rather than by an index lookup each.
+     */
+    List<CachedEdge> edges(CachedVertex cv, Direction direction) {
+        List<CachedEdge> l = newArrayList();
+        Set<String> missing = newHashSet();
+        for (String id : cv.getEdgeIds(direction)) {
+            CachedEdge ce = edgeCache.getIfPresent(id);
+            if (null == ce && null != liveEdges.getIfPresent(id))
+                ce = edge(id, null);
+            if (null != ce)
+                l.add(ce);
+            else
+                missing.add(id);
+        }
+        Vertex base = cv.getBaseVertex();
+        if (!missing.isEmpty() && null != base) {
+            for (Edge e : base.getEdges(direction)) {
+                Object id = e.getProperty(ID);
+                if (null != id && missing.remove(id.toString())) {
+                    CachedEdge ce = edge(id.toString(), e);
+                    if (null != ce)
+                        l.add(ce);
+                }
+            }
+        }
+        for (String id : missing) {
+            CachedEdge ce = edge(id, null);
+            if (null != ce)
+                l.add(ce);
+        }
+        return l;
+    }
+
+    /**
+     * @return every committed vertex: those not written to the SoR yet, then the SoR's,
+     * streamed so that a scan doesn't need the partition in memory. What it makes from
+     * the SoR is held only as long as the caller holds it.
+     */
+    Iterable<CachedVertex> vertices() {
+        final Set<CachedVertex> unwritten = unwritten(liveVertices);
+        return Iterables.concat(unwritten, FluentIterable.from(graph.getVertices())
+                .transform(new Function<Vertex, CachedVertex>() {
+                    @Override
+                    public CachedVertex apply(Vertex v) {
+                        CachedVertex cv = streamed(v);
+                        return unwritten.contains(cv) ? null : cv;
+                    }
+                })
+                .filter(Predicates.notNull()));
+    }
+
+    Iterable<CachedEdge> edges() {
+        final Set<CachedEdge> unwritten = unwritten(liveEdges);
+        return Iterables.concat(unwritten, FluentIterable.from(graph.getEdges())
+                .transform(new Function<Edge, CachedEdge>() {
+                    @Override
+                    public CachedEdge apply(Edge e) {
+                        CachedEdge ce = streamed(e);
+                        return unwritten.contains(ce) ? null : ce;
+                    }
+                })
+                .filter(Predicates.notNull()));
+    }
+
+    // elements are identical only to themselves, so this is an identity set
+    private static <E extends CachedElement> Set<E> unwritten(Cache<String, E> live) {
+        Set<E> s = newHashSet();
+        for (E e : live.asMap().values()) {
+            if (null == e.getBase())
+                s.add(e);
+        }
+        return s;
+    }
+
+    // committed
+    void cache(CachedVertex cv) {
+        vertexCache.put(cv.id, cv);
+        liveVertices.put(cv.id, cv);
+    }
+
+    void cache(CachedEdge ce) {
+        edgeCache.put(ce.id, ce);
+        liveEdges.put(ce.id, ce);
+    }
+
+    // weights are taken as elements go in, so one that's grown or shrunk is put back
+    void reweigh(CachedVertex cv) {
+        if (null != vertexCache.getIfPresent(cv.id))
+            vertexCache.put(cv.id, cv);
+    }
+
+    void reweigh(CachedEdge ce) {
+        if (null != edgeCache.getIfPresent(ce.id))
+            edgeCache.put(ce.id, ce);
+    }
+
+    void reweigh(CachedElement ce) {
+        if (ce instanceof CachedVertex)
+            reweigh((CachedVertex) ce);
+        else
+            reweigh((CachedEdge) ce);
+    }
+
+    /**
+     * An element with changes the write-behind hasn't written is held here until they
+     * all have been, so that the caches can't drop it from memory: evicting it only
+     * frees its room in the budget, and it's found again without a SoR load, rather
+     * than reloaded without those changes.
+     */
+    void dirty(CachedElement ce) {
+        dirty.compute(ce, new BiFunction<CachedElement, Integer, Integer>() {
+            @Override
+            public Integer apply(CachedElement e, Integer n) {
+                return (null == n) ? 1 : n + 1;
+            }
+        });
+    }
+
+    void written(CachedElement ce) {
+        dirty.computeIfPresent(ce, new BiFunction<CachedElement, Integer, Integer>() {
+            @Override
+            public Integer apply(CachedElement e, Integer n) {
+                return (1 == n) ? null : n - 1;
+            }
+        });
+    }
+
     // =======================================
     String vertexId() {
         return vertexIdFactory.call();
@@ -308,11 +723,20 @@ public class CachedGraph<T extends TransactionalGraph & KeyIndexableGraph>
     }
 
     // =======================================
-    // [vertex|edge]:key:value:Set<Element>
-    Map<String, Multimap<Object, CachedVertex>> vertexIndex = newHashMap();
-    Map<String, Multimap<Object, CachedEdge>> edgeIndex = newHashMap();
+    // [vertex|edge]:key:value:Set<id>
+    ConcurrentMap<String, KeyIndex<String>> vertexIndex = newConcurrentMap();
+    ConcurrentMap<String, KeyIndex<String>> edgeIndex = newConcurrentMap();
+
+    // elements with writes pending, and how many; by identity, as elements are equal
+    // only to themselves
+    private final ConcurrentMap<CachedElement, Integer> dirty = newConcurrentMap();
+    private final CacheBudget budget;
+    private final long cacheBytes;
+
+    // commits are applied one at a time; readers never take this
+    final Object commitLock = new Object();
 
-    private GraphTransaction getTx() {
+    GraphTransaction getTx() {
         return tlGraphTransaction.get();
     }
 
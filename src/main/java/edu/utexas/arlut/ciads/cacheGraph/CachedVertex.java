@@ -16,11 +16,27 @@ import static com.google.common.collect.Sets.newHashSet;
 public class CachedVertex extends CachedElement implements Vertex {
 
     CachedVertex(String id, CachedGraph cg) {
-        super(id, cg);
+        super(id, cg, new Impl());
     }
 
+    // loaded from the SoR, with the ids of its edges
     CachedVertex(Vertex from, CachedGraph cg) {
-        super(from, cg);
+        super(from, cg, loaded(from));
+    }
+
+    private static Impl loaded(Vertex from) {
+        Impl impl = new Impl();
+        for (Edge e : from.getEdges(Direction.OUT))
+            addEdgeId(e, impl.outEdges);
+        for (Edge e : from.getEdges(Direction.IN))
+            addEdgeId(e, impl.inEdges);
+        return impl;
+    }
+
+    private static void addEdgeId(Edge e, Set<String> ids) {
+        Object id = e.getProperty(CachedGraph.ID);
+        if (null != id)
+            ids.add(id.toString());
     }
 
     public Vertex getBaseVertex() {
@@ -29,16 +45,26 @@ public class CachedVertex extends CachedElement implements Vertex {
 
     @Override
     public Iterable<Edge> getEdges(Direction direction, String... labels) {
-        // TODO: filter on labels
-//        if (direction.equals(com.tinkerpop.blueprints.Direction.OUT))
-//            return ImmutableList.copyOf(outEdges);
-//        else if (direction.equals(com.tinkerpop.blueprints.Direction.IN))
-//            return ImmutableList.copyOf(inEdges);
-//        else
-            return new ImmutableList.Builder<Edge>()
-                    .addAll(outEdges)
-                    .addAll(inEdges)
-                    .build();
+        return graph.getTx().getEdges(this, direction, labels);
+    }
+
+    // committed adjacency
+    Set<String> getEdgeIds(Direction direction) {
+        Impl i = (Impl) impl;
+        if (direction.equals(Direction.OUT))
+            return i.outEdges;
+        if (direction.equals(Direction.IN))
+            return i.inEdges;
+        return Sets.union(i.outEdges, i.inEdges);
+    }
+
+    // adjacency is most of a hub's weight. Edge ids are taken to be as long as the
+    // vertex's, rather than walking them all
+    @Override
+    long bytes() {
+        Impl i = (Impl) impl;
+        long edges = i.outEdges.size() + i.inEdges.size();
+        return super.bytes() + 2 * MAP + edges * (ENTRY + string(id));
     }
 
     @Override
@@ -56,28 +82,6 @@ public class CachedVertex extends CachedElement implements Vertex {
         return graph.addEdge(null, this, inVertex, label);
     }
 
-    public void addOutEdge(CachedEdge ce) {
-        outEdges.add(ce);
-    }
-
-    public void addInEdge(CachedEdge ce) {
-        inEdges.add(ce);
-    }
-
-
-    @Override
-    public void setProperty(String key, Object value) {
-        super.setProperty(key, value);
-        graph.addToIndex(key, value, this);
-    }
-
-    @Override
-    public <T> T removeProperty(String key) {
-        Object value = getProperty(key);
-        graph.removeFromIndex(key, value, this);
-        return super.removeProperty(key);
-    }
-
     @Override
     public void remove() {
         graph.removeVertex(this);
@@ -88,7 +92,9 @@ public class CachedVertex extends CachedElement implements Vertex {
         return StringFactory.vertexString(this);
     }
 
+    // adjacency as edge ids, so that a vertex in memory doesn't keep its edges there
     static class Impl extends CachedElement.Impl {
+        @Override
         Impl copy() {
             return new Impl(this);
         }
@@ -97,15 +103,38 @@ public class CachedVertex extends CachedElement implements Vertex {
             outEdges = newHashSet();
             inEdges = newHashSet();
         }
+        // shares src's adjacency until it's changed, as a hub's is big
         Impl(Impl src) {
             super(src);
-            outEdges = newHashSet(src.outEdges);
-            inEdges = newHashSet(src.inEdges);
+            outEdges = src.outEdges;
+            inEdges = src.inEdges;
+            shared = true;
         }
-        private Set<CachedEdge> outEdges = newHashSet();
-        private Set<CachedEdge> inEdges = newHashSet();
+        void addOutEdge(String edgeId) {
+            unshare();
+            outEdges.add(edgeId);
+        }
+        void addInEdge(String edgeId) {
+            unshare();
+            inEdges.add(edgeId);
+        }
+        void removeEdge(String edgeId) {
+            unshare();
+            outEdges.remove(edgeId);
+            inEdges.remove(edgeId);
+        }
+        boolean hasEdges() {
+            return !outEdges.isEmpty() || !inEdges.isEmpty();
+        }
+        private void unshare() {
+            if (!shared)
+                return;
+            outEdges = newHashSet(outEdges);
+            inEdges = newHashSet(inEdges);
+            shared = false;
+        }
+        private Set<String> outEdges;
+        private Set<String> inEdges;
+        private boolean shared = false;
     }
-
-    private Set<CachedEdge> outEdges = newHashSet();
-    private Set<CachedEdge> inEdges = newHashSet();
 }
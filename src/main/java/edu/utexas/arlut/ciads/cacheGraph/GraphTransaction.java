@@ -1,18 +1,32 @@
 package edu.utexas.arlut.ciads.cacheGraph;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.tinkerpop.blueprints.*;
+import com.tinkerpop.blueprints.util.DefaultGraphQuery;
+import com.tinkerpop.blueprints.util.PropertyFilteredIterable;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newIdentityHashMap;
 import static com.google.common.collect.Sets.newHashSet;
-
+import static java.util.Arrays.asList;
+
+/**
+ * One thread's view of a CachedGraph. Mutations are buffered as Actions, and reads
+ * lay this transaction's changes over the shared caches. Nothing shared is touched
+ * until commit(), which stages the actions and publishes them under the graph's
+ * commit lock; readers never take it.
+ */
 @Slf4j
 public class GraphTransaction implements TransactionalGraph, KeyIndexableGraph {
 
-    GraphTransaction(CachedGraph cg) {
+    GraphTransaction(CachedGraph<?> cg) {
         baselineGraph = cg;
     }
     @Override
@@ -32,26 +46,21 @@ public class GraphTransaction implements TransactionalGraph, KeyIndexableGraph {
     @Override
     public Vertex addVertex(Object id_) {
         String id = baselineGraph.vertexId();
-        CachedVertex.Impl impl = new CachedVertex.Impl();
-        mutatedVertices.put(id, impl);
-        Action a = new Action.AddVertex(impl);
-        return new CachedVertex(id, baselineGraph);
-    }
-
-    public CachedVertex.Impl getImpl(String id) {
-        return null;
-    }
-    public CachedVertex.Impl getImplForMutation(String id) {
-        return null;
+        CachedVertex cv = new CachedVertex(id, baselineGraph);
+        addedVertices.put(id, cv);
+        actions.add(new Action.AddVertex(cv));
+        return cv;
     }
 
     @Override
     public Vertex getVertex(Object id) {
-        if (deletedVertices.contains(id))
+        String sid = id.toString();
+        if (deletedVertices.contains(sid))
             return null;
-        if (addedVertices.containsKey(id))
-            return new CachedVertex(addedVertices.get(id), baselineGraph);
-        return new CachedVertex(baselineGraph.getVertex(id), baselineGraph);
+        if (addedVertices.containsKey(sid))
+            return addedVertices.get(sid);
+        CachedVertex cv = baselineGraph.vertex(sid, null);
+        return (null == cv || cv.removed) ? null : cv;
     }
 
     @Override
@@ -60,19 +69,30 @@ public class GraphTransaction implements TransactionalGraph, KeyIndexableGraph {
         for (Edge e : v.getEdges(Direction.BOTH)) {
             removeEdge(e);
         }
-//        Action a = new Action.RemoveVertex(impl);
-        addedVertices.remove(id);
-        deletedVertices.add(id);
+        CachedVertex cv = (CachedVertex) v;
+        if (null == addedVertices.remove(id))
+            deletedVertices.add(id);
+        actions.add(new Action.RemoveVertex(cv));
     }
 
     @Override
     public Iterable<Vertex> getVertices() {
-        return null;
+        return Iterables.<Vertex>concat(visible(baselineGraph.vertices(), deletedVertices),
+                ImmutableList.copyOf(addedVertices.values()));
     }
 
     @Override
     public Iterable<Vertex> getVertices(String key, Object value) {
-        return null;
+        if (!baselineGraph.isIndexed(key, Vertex.class))
+            return new PropertyFilteredIterable<>(key, value, getVertices());
+        Set<Vertex> candidates = newHashSet();
+        Iterables.addAll(candidates, visible(baselineGraph.indexedVertices(key, value), deletedVertices));
+        candidates.addAll(addedVertices.values());
+        for (CachedElement ce : properties.keySet()) {
+            if (ce instanceof CachedVertex && !ce.removed && !deletedVertices.contains(ce.id))
+                candidates.add((CachedVertex) ce);
+        }
+        return new PropertyFilteredIterable<>(key, value, candidates);
     }
     // =======================================
     @Override
@@ -82,82 +102,200 @@ public class GraphTransaction implements TransactionalGraph, KeyIndexableGraph {
         CachedVertex iV = (CachedVertex) inVertex;
 
         final CachedEdge ce = new CachedEdge(id, oV, iV, label, baselineGraph);
-        oV.addOutEdge(ce); // TODO: these need to be transactional vertices
-        iV.addInEdge(ce);
-
         addedEdges.put(id, ce);
+        actions.add(new Action.AddEdge(ce));
         return ce;
     }
 
     @Override
     public Edge getEdge(Object id) {
-        return null;
+        String sid = id.toString();
+        if (deletedEdges.contains(sid))
+            return null;
+        if (addedEdges.containsKey(sid))
+            return addedEdges.get(sid);
+        CachedEdge ce = baselineGraph.edge(sid, null);
+        return (null == ce || ce.removed) ? null : ce;
     }
 
     @Override
     public void removeEdge(Edge edge) {
-
+        CachedEdge ce = (CachedEdge) edge;
+        if (null == addedEdges.remove(ce.id))
+            deletedEdges.add(ce.id);
+        actions.add(new Action.RemoveEdge(ce));
     }
 
     @Override
     public Iterable<Edge> getEdges() {
-        return null;
+        return Iterables.<Edge>concat(visible(baselineGraph.edges(), deletedEdges),
+                ImmutableList.copyOf(addedEdges.values()));
     }
 
     @Override
     public Iterable<Edge> getEdges(String key, Object value) {
-        return null;
+        if (!baselineGraph.isIndexed(key, Edge.class))
+            return new PropertyFilteredIterable<>(key, value, getEdges());
+        Set<Edge> candidates = newHashSet();
+        Iterables.addAll(candidates, visible(baselineGraph.indexedEdges(key, value), deletedEdges));
+        candidates.addAll(addedEdges.values());
+        for (CachedElement ce : properties.keySet()) {
+            if (ce instanceof CachedEdge && !ce.removed && !deletedEdges.contains(ce.id))
+                candidates.add((CachedEdge) ce);
+        }
+        return new PropertyFilteredIterable<>(key, value, candidates);
+    }
+
+    Iterable<Edge> getEdges(final CachedVertex cv, final Direction direction, String... labels) {
+        final Collection<String> ls = asList(labels);
+        List<Edge> edges = newArrayList();
+        Iterables.addAll(edges, visible(baselineGraph.edges(cv, direction), deletedEdges));
+        for (CachedEdge ce : addedEdges.values()) {
+            if ((direction != Direction.IN && ce.startVertex == cv)
+                    || (direction != Direction.OUT && ce.endVertex == cv))
+                edges.add(ce);
+        }
+        if (ls.isEmpty())
+            return edges;
+        return FluentIterable.from(edges).filter(new Predicate<Edge>() {
+            @Override
+            public boolean apply(Edge e) {
+                return ls.contains(e.getLabel());
+            }
+        }).toList();
+    }
+
+    // elements that committed, and that this transaction hasn't removed; lazily, so
+    // a scan streams
+    private static <T extends CachedElement> Iterable<T> visible(Iterable<T> committed, final Set<String> deleted) {
+        return Iterables.filter(committed, new Predicate<T>() {
+            @Override
+            public boolean apply(T t) {
+                return !t.removed && !deleted.contains(t.id);
+            }
+        });
+    }
+    // =======================================
+    Object getProperty(CachedElement ce, String key) {
+        Map<String, Object> changed = properties.get(ce);
+        if (null != changed && changed.containsKey(key))
+            return changed.get(key);
+        return ce.impl.properties.get(key);
+    }
+
+    Set<String> getPropertyKeys(CachedElement ce) {
+        Set<String> keys = newHashSet(ce.impl.properties.keySet());
+        Map<String, Object> changed = properties.get(ce);
+        if (null != changed) {
+            for (Map.Entry<String, Object> me : changed.entrySet()) {
+                if (null == me.getValue())
+                    keys.remove(me.getKey());
+                else
+                    keys.add(me.getKey());
+            }
+        }
+        return keys;
+    }
+
+    // a null value removes the property
+    Object setProperty(CachedElement ce, String key, Object value) {
+        Object was = getProperty(ce, key);
+        Map<String, Object> changed = properties.get(ce);
+        if (null == changed) {
+            changed = newHashMap();
+            properties.put(ce, changed);
+        }
+        changed.put(key, value);
+        actions.add(new Action.SetProperty(ce, key, value));
+        return was;
     }
     // =======================================
     @Override
     public GraphQuery query() {
-        return null;
+        return new DefaultGraphQuery(this);
     }
     // =======================================
     @Override
     public void shutdown() {
-
+        rollback();
     }
 
+    /**
+     * Stages every buffered action, publishes them to the shared caches, then hands
+     * them to the write-behind, all under the commit lock, so commits reach the SoR in
+     * the order they were published. If another transaction has committed something
+     * these can't go on top of, nothing is published and the IllegalStateException is
+     * rethrown; the transaction is discarded either way.
+     */
     @Override
     public void commit() {
-
+        if (actions.isEmpty())
+            return;
+        try {
+            synchronized (baselineGraph.commitLock) {
+                Staging s = new Staging(baselineGraph);
+                for (Action a : actions)
+                    a.apply(s);
+                s.publish();
+                for (Action a : actions)
+                    a.persist(baselineGraph.writeBehind);
+            }
+        } catch (RuntimeException e) {
+            log.warn("commit of {} actions failed", actions.size(), e);
+            throw e;
+        } finally {
+            reset();
+        }
     }
 
     @Override
     public void rollback() {
+        reset();
+    }
 
+    private void reset() {
+        actions.clear();
+        addedVertices.clear();
+        deletedVertices.clear();
+        addedEdges.clear();
+        deletedEdges.clear();
+        properties.clear();
     }
     @Override @Deprecated
     public void stopTransaction(Conclusion conclusion) {
-
+        if (Conclusion.SUCCESS == conclusion)
+            commit();
+        else
+            rollback();
     }
     // =======================================
     @Override
     public <T extends Element> void dropKeyIndex(String key, Class<T> elementClass) {
-
+        baselineGraph.dropKeyIndex(key, elementClass);
     }
 
+    // Blueprints declares indexParameters raw
+    @SuppressWarnings("rawtypes")
     @Override
     public <T extends Element> void createKeyIndex(String key, Class<T> elementClass, Parameter... indexParameters) {
-
+        baselineGraph.createKeyIndex(key, elementClass, indexParameters);
     }
 
     @Override
     public <T extends Element> Set<String> getIndexedKeys(Class<T> elementClass) {
-        return null;
+        return baselineGraph.getIndexedKeys(elementClass);
     }
 
-    private final CachedGraph baselineGraph;
+    private final CachedGraph<?> baselineGraph;
 
-    final Map<String, CachedVertex.Impl> mutatedVertices = newHashMap();
-    final Set<String> deletedVertices = newHashSet();
+    final List<Action> actions = newArrayList();
 
     final Map<String, CachedVertex> addedVertices = newHashMap();
-    final Set<String> _deletedVertices = newHashSet();
+    final Set<String> deletedVertices = newHashSet();
 
     final Map<String, CachedEdge> addedEdges = newHashMap();
     final Set<String> deletedEdges = newHashSet();
 
-
+    // property changes, by element; null for a removal
+    final Map<CachedElement, Map<String, Object>> properties = newIdentityHashMap();
 }
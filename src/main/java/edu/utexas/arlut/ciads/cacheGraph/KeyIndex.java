@@ -0,0 +1,79 @@
+package edu.utexas.arlut.ciads.cacheGraph;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiFunction;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * One key's index: property value to the elements that have it, as a concurrent
+ * map of concurrent sets. Lookups take no locks. A change locks only its value's
+ * bin of the map, so a set emptied and dropped by one change can't swallow an
+ * element another change is adding.
+ */
+final class KeyIndex<E> {
+    void put(Object value, final E e) {
+        index.compute(value, new BiFunction<Object, Set<E>, Set<E>>() {
+            @Override
+            public Set<E> apply(Object v, Set<E> es) {
+                if (null == es)
+                    es = ConcurrentHashMap.newKeySet();
+                es.add(e);
+                return es;
+            }
+        });
+    }
+
+    void remove(Object value, final Object e) {
+        index.computeIfPresent(value, new BiFunction<Object, Set<E>, Set<E>>() {
+            @Override
+            public Set<E> apply(Object v, Set<E> es) {
+                es.remove(e);
+                return es.isEmpty() ? null : es;
+            }
+        });
+    }
+
+    // a live view; iterating it sees some or all of the changes made meanwhile
+    Set<E> get(Object value) {
+        Set<E> es = index.get(value);
+        return (null == es) ? Collections.<E>emptySet() : Collections.unmodifiableSet(es);
+    }
+
+    // once it's been filled in from the SoR, it has every element with the key, not
+    // just those that have been in memory
+    void complete() {
+        complete = true;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    // once the SoR's own index on the key has been built, or has failed to be
+    void sorSettled(boolean indexed) {
+        sorIndexed = indexed;
+        sorSettled.countDown();
+    }
+
+    // whether the SoR's index on the key is built, without waiting for it
+    boolean isSorIndexed() {
+        return sorIndexed;
+    }
+
+    // waits for the SoR's index on the key to settle
+    boolean awaitSorIndexed() {
+        Uninterruptibles.awaitUninterruptibly(sorSettled);
+        return sorIndexed;
+    }
+
+    // =================================
+    private final ConcurrentMap<Object, Set<E>> index = new ConcurrentHashMap<>();
+    private volatile boolean complete = false;
+    private final CountDownLatch sorSettled = new CountDownLatch(1);
+    private volatile boolean sorIndexed = false;
+}
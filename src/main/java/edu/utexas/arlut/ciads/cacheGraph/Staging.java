@@ -0,0 +1,109 @@
+package edu.utexas.arlut.ciads.cacheGraph;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+
+/**
+ * A commit's changes, staged on copies of its elements' impls as its actions apply.
+ * Nothing shared is touched until publish(), so a commit that fails part way has
+ * nothing to undo. Elements aren't equal to one another, so these are keyed by
+ * identity.
+ */
+final class Staging {
+    // no properties: what a new element was, and a removed one is, to the indices
+    private static final CachedElement.Impl NONE = new CachedElement.Impl();
+
+    Staging(CachedGraph<?> g) {
+        this.g = g;
+    }
+
+    // the element's staged impl, copied from its committed one the first time
+    CachedElement.Impl impl(CachedElement ce) {
+        CachedElement.Impl i = staged.get(ce);
+        if (null == i) {
+            i = ce.impl.copy();
+            staged.put(ce, i);
+        }
+        return i;
+    }
+
+    CachedVertex.Impl impl(CachedVertex cv) {
+        return (CachedVertex.Impl) impl((CachedElement) cv);
+    }
+
+    void add(CachedElement ce) {
+        added.add(ce);
+        impl(ce);
+    }
+
+    void remove(CachedElement ce) {
+        removed.add(ce);
+        impl(ce);
+    }
+
+    // removed, by another transaction or earlier in this commit
+    boolean removed(CachedElement ce) {
+        return ce.removed || removed.contains(ce);
+    }
+
+    /**
+     * Swaps each element's impl for its staged one, in one write, so a reader sees an
+     * element wholly before the commit or wholly after it, and brings the caches and
+     * indices along. Under the commit lock.
+     */
+    void publish() {
+        for (Map.Entry<CachedElement, CachedElement.Impl> me : staged.entrySet()) {
+            CachedElement ce = me.getKey();
+            boolean isNew = added.contains(ce);
+            boolean gone = removed.contains(ce);
+            CachedElement.Impl was = isNew ? NONE : ce.impl;
+            CachedElement.Impl is = gone ? NONE : me.getValue();
+            // an index entry that's stale is filtered out by readers, a missing one
+            // isn't; so the new entries go in before the swap, the old ones out after
+            reindex(ce, is, was, true);
+            ce.impl = me.getValue();
+            reindex(ce, was, is, false);
+            if (gone) {
+                ce.removed = true;
+                if (ce instanceof CachedVertex)
+                    g.vertexCache.invalidate(ce.id);
+                else
+                    g.edgeCache.invalidate(ce.id);
+            } else if (isNew) {
+                cache(ce);
+            } else {
+                g.reweigh(ce);
+            }
+        }
+    }
+
+    // =================================
+    // the entries from has that to doesn't, added or removed
+    private void reindex(CachedElement ce, CachedElement.Impl from, CachedElement.Impl to, boolean add) {
+        for (Map.Entry<String, Object> me : from.properties.entrySet()) {
+            if (Objects.equal(me.getValue(), to.properties.get(me.getKey())))
+                continue;
+            if (add)
+                g.addToIndex(me.getKey(), me.getValue(), ce);
+            else
+                g.removeFromIndex(me.getKey(), me.getValue(), ce);
+        }
+    }
+
+    private void cache(CachedElement ce) {
+        if (ce instanceof CachedVertex)
+            g.cache((CachedVertex) ce);
+        else
+            g.cache((CachedEdge) ce);
+    }
+
+    private final CachedGraph<?> g;
+    private final Map<CachedElement, CachedElement.Impl> staged = newLinkedHashMap();
+    private final Set<CachedElement> added = newHashSet();
+    private final Set<CachedElement> removed = newHashSet();
+}
@@ -20,4 +20,7 @@ public abstract class WriteBehind {
     void addKeyIndex(final String key, Class<? extends Element> clazz) {}
 
     void dropKeyIndex(final String key, Class<? extends Element> clazz) {}
+
+    // runs the task once what's been queued before it is in the SoR
+    void afterWrites(final Runnable task) {}
 }
@@ -0,0 +1,166 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.util.Arrays;
+
+/**
+ * One direction of a vertex's adjacency, partitioned by edge label: a bucket of edge
+ * handles per label. Immutable, like the buckets, so a vertex's copy shares it until
+ * either side adds or removes an edge, and then only the bucket that changed is
+ * rebuilt. Vertices have few labels, so they're found by a linear scan; labels are
+ * interned as they're loaded and added, so the scan mostly compares references.
+ */
+final class Adjacency {
+    private static final String[] NO_LABELS = new String[0];
+    private static final EdgeHandles[] NO_BUCKETS = new EdgeHandles[0];
+
+    static final Adjacency EMPTY = new Adjacency(NO_LABELS, NO_BUCKETS, 0);
+
+    private Adjacency(String[] labels, EdgeHandles[] buckets, int size) {
+        this.labels = labels;
+        this.buckets = buckets;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // the number of labels, which index label() and edges()
+    int labels() {
+        return labels.length;
+    }
+
+    String label(int i) {
+        return labels[i];
+    }
+
+    EdgeHandles edges(int i) {
+        return buckets[i];
+    }
+
+    // the label's bucket, or null
+    EdgeHandles edges(String label) {
+        int i = indexOf(label);
+        return (-1 == i) ? null : buckets[i];
+    }
+
+    int[] toArray() {
+        int[] a = new int[size];
+        int at = 0;
+        for (EdgeHandles b : buckets) {
+            int[] hs = b.toArray();
+            System.arraycopy(hs, 0, a, at, hs.length);
+            at += hs.length;
+        }
+        return a;
+    }
+
+    Adjacency with(String label, int handle) {
+        int i = indexOf(label);
+        if (-1 == i) {
+            String[] ls = Arrays.copyOf(labels, labels.length + 1);
+            EdgeHandles[] bs = Arrays.copyOf(buckets, buckets.length + 1);
+            ls[labels.length] = label.intern();
+            bs[buckets.length] = PersistentIntSet.EMPTY.with(handle);
+            return new Adjacency(ls, bs, size + 1);
+        }
+        PersistentIntSet b = PersistentIntSet.of(buckets[i]).with(handle);
+        return (b.size() == buckets[i].size()) ? this : replace(i, b);
+    }
+
+    Adjacency without(String label, int handle) {
+        int i = indexOf(label);
+        if (-1 == i)
+            return this;
+        PersistentIntSet b = PersistentIntSet.of(buckets[i]).without(handle);
+        return (b.size() == buckets[i].size()) ? this : replace(i, b);
+    }
+
+    /**
+     * @return onto, plus the edges this adjacency has that from doesn't, less the
+     * ones from has that this doesn't; label by label, so untouched labels cost nothing
+     */
+    Adjacency rebase(Adjacency from, Adjacency onto) {
+        Adjacency a = onto;
+        for (int i = 0; i < labels.length; i++) {
+            EdgeHandles was = from.edges(labels[i]);
+            if (was != buckets[i])
+                a = a.rebase(labels[i], was, buckets[i]);
+        }
+        for (int i = 0; i < from.labels.length; i++) {
+            if (-1 == indexOf(from.labels[i]))
+                a = a.rebase(from.labels[i], from.buckets[i], null);
+        }
+        return a;
+    }
+
+    // a rough count of the bytes it holds on heap. Labels are interned, so not counted.
+    long bytes() {
+        long n = ElementStore.OBJECT + 2 * ElementStore.ARRAY + 8L * labels.length;
+        for (EdgeHandles b : buckets)
+            n += b.bytes();
+        return n;
+    }
+
+    // the same adjacency, with its buckets in the store
+    Adjacency freeze(OffHeapStore store) {
+        EdgeHandles[] bs = new EdgeHandles[buckets.length];
+        for (int i = 0; i < buckets.length; i++)
+            bs[i] = store.freeze(buckets[i]);
+        return new Adjacency(labels, bs, size);
+    }
+
+    // =================================
+    private Adjacency rebase(String label, EdgeHandles was, EdgeHandles is) {
+        PersistentIntSet from = (null == was) ? PersistentIntSet.EMPTY : PersistentIntSet.of(was);
+        PersistentIntSet to = (null == is) ? PersistentIntSet.EMPTY : PersistentIntSet.of(is);
+        int i = indexOf(label);
+        PersistentIntSet onto = (-1 == i) ? PersistentIntSet.EMPTY : PersistentIntSet.of(buckets[i]);
+        PersistentIntSet b = to.rebase(from, onto);
+        if (-1 != i)
+            return replace(i, b);
+        if (0 == b.size())
+            return this;
+        String[] ls = Arrays.copyOf(labels, labels.length + 1);
+        EdgeHandles[] bs = Arrays.copyOf(buckets, buckets.length + 1);
+        ls[labels.length] = label;
+        bs[buckets.length] = b;
+        return new Adjacency(ls, bs, size + b.size());
+    }
+
+    // an empty bucket is dropped, with its label
+    private Adjacency replace(int i, EdgeHandles b) {
+        int newSize = size - buckets[i].size() + b.size();
+        if (0 != b.size()) {
+            EdgeHandles[] bs = buckets.clone();
+            bs[i] = b;
+            return new Adjacency(labels, bs, newSize);
+        }
+        if (1 == labels.length)
+            return EMPTY;
+        String[] ls = new String[labels.length - 1];
+        EdgeHandles[] bs = new EdgeHandles[buckets.length - 1];
+        System.arraycopy(labels, 0, ls, 0, i);
+        System.arraycopy(labels, i + 1, ls, i, ls.length - i);
+        System.arraycopy(buckets, 0, bs, 0, i);
+        System.arraycopy(buckets, i + 1, bs, i, bs.length - i);
+        return new Adjacency(ls, bs, newSize);
+    }
+
+    private int indexOf(String label) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == label)
+                return i;
+        }
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equals(label))
+                return i;
+        }
+        return -1;
+    }
+
+    // =================================
+    private final String[] labels;
+    private final EdgeHandles[] buckets;
+    private final int size;
+}
@@ -0,0 +1,383 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Iterables.getFirst;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persists to a Blueprints graph, the SoR, replaying each change one element at a
+ * time. With one applier, a batch is one SoR transaction. With more, the changes that
+ * each lock a single SoR element, vertex adds and property writes, are spread over
+ * the appliers by element id, so an element's changes are always made by the same
+ * thread, in batch order. Edge adds and all removals lock both ends of an edge, and
+ * stay on the write-behind's thread, so appliers don't deadlock over a shared vertex.
+ * <p>
+ * SoR transactions are bound to their thread, so each step is committed before the
+ * next starts: removals, vertex adds, edge adds (which need their endpoints), then
+ * properties. A step's part rolls back on its own, and a failed step fails the
+ * batch, without running the steps after it. The batch counts as applied only once
+ * every step has committed; a failure or crash part way through replays it all.
+ */
+@Slf4j
+class BlueprintsPersister<T extends TransactionalGraph & KeyIndexableGraph> implements Persister {
+    BlueprintsPersister(String name, T sor, int appliers) {
+        this.sor = sor;
+        this.shards = new ExecutorService[(1 == appliers) ? 0 : appliers];
+        ThreadFactory threads = new ThreadFactoryBuilder().setNameFormat("write-behind-" + name + "-%d").build();
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = Executors.newSingleThreadExecutor(threads);
+    }
+
+    @Override
+    public void attach(CPIGraph g) {
+        graph = g;
+    }
+
+    @Override
+    public void load(CPIGraph g, int threads) {
+        new SoRLoader(g, sor, threads).load();
+    }
+
+    // on the reader's thread; the SoR is read outside the appliers' transactions, so
+    // it has whatever they've committed
+    @Override
+    public boolean fetches() {
+        return true;
+    }
+
+    @Override
+    public CPIVertex fetchVertex(CPIGraph g, String id) {
+        Vertex v = findVertex(id);
+        return (null == v) ? null : g.fetched(v);
+    }
+
+    @Override
+    public CPIEdge fetchEdge(CPIGraph g, String id) {
+        Edge e = findEdge(id);
+        return (null == e) ? null : g.loaded(e);
+    }
+
+    @Override
+    public void shutdown() {
+        for (ExecutorService shard : shards)
+            shard.shutdown();
+        sor.shutdown();
+    }
+
+    @Override
+    public void apply(final ChangeSet batch, final boolean replay) {
+        log.info("SOR apply {}", batch);
+        if (0 == shards.length) {
+            inTransaction(batch, new Runnable() {
+                @Override
+                public void run() {
+                    removeAll(batch, replay);
+                    addVertices(batch.addedVertices(), replay);
+                    addEdges(batch.addedEdges().values(), replay);
+                    applyProperties(batch.vProperties(), batch.eProperties());
+                }
+            });
+            return;
+        }
+        if (!batch.removedEdges().isEmpty() || !batch.removedVertices().isEmpty()) {
+            inTransaction(batch, new Runnable() {
+                @Override
+                public void run() {
+                    removeAll(batch, replay);
+                }
+            });
+        }
+        if (!batch.addedVertices().isEmpty()) {
+            final List<List<String>> vertices = shard(batch.addedVertices());
+            onShards(batch, new Shard() {
+                @Override
+                public void apply(int i) {
+                    addVertices(vertices.get(i), replay);
+                }
+            });
+        }
+        if (!batch.addedEdges().isEmpty()) {
+            inTransaction(batch, new Runnable() {
+                @Override
+                public void run() {
+                    addEdges(batch.addedEdges().values(), replay);
+                }
+            });
+        }
+        if (!batch.vProperties().isEmpty() || !batch.eProperties().isEmpty()) {
+            final List<Map<String, Map<String, Object>>> vProperties = shard(batch.vProperties());
+            final List<Map<String, Map<String, Object>>> eProperties = shard(batch.eProperties());
+            onShards(batch, new Shard() {
+                @Override
+                public void apply(int i) {
+                    applyProperties(vProperties.get(i), eProperties.get(i));
+                }
+            });
+        }
+    }
+
+    private void inTransaction(ChangeSet batch, Runnable step) {
+        try {
+            step.run();
+            sor.commit();
+        } catch (RuntimeException e) {
+            log.error("SOR apply Exception, rolling back {}", batch, e);
+            try {
+                sor.rollback();
+            } catch (RuntimeException rollback) {
+                e.addSuppressed(rollback);
+            }
+            throw e;
+        }
+    }
+
+    private interface Shard {
+        void apply(int i);
+    }
+
+    // runs a step on every shard, each in its own transaction, and waits for them all;
+    // if any shard fails, so does the step, once the rest have finished
+    private void onShards(final ChangeSet batch, final Shard step) {
+        List<Future<?>> parts = newArrayList();
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            parts.add(shards[i].submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    inTransaction(batch, new Runnable() {
+                        @Override
+                        public void run() {
+                            step.apply(shard);
+                        }
+                    });
+                    return null;
+                }
+            }));
+        }
+        RuntimeException failure = null;
+        for (Future<?> f : parts) {
+            try {
+                Futures.getUnchecked(f);
+            } catch (UncheckedExecutionException e) {
+                // the shard's own failure, as it would be without shards
+                if (null == failure)
+                    failure = (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        if (null != failure)
+            throw failure;
+    }
+
+    private int shardOf(String id) {
+        return Math.floorMod(id.hashCode(), shards.length);
+    }
+
+    private List<List<String>> shard(Collection<String> ids) {
+        List<List<String>> l = newArrayList();
+        for (int i = 0; i < shards.length; i++)
+            l.add(newArrayList());
+        for (String id : ids)
+            l.get(shardOf(id)).add(id);
+        return l;
+    }
+
+    private <V> List<Map<String, V>> shard(Map<String, V> byId) {
+        List<Map<String, V>> l = newArrayList();
+        for (int i = 0; i < shards.length; i++)
+            l.add(newHashMap());
+        for (Map.Entry<String, V> me : byId.entrySet())
+            l.get(shardOf(me.getKey())).put(me.getKey(), me.getValue());
+        return l;
+    }
+
+    // =======================================
+    // a replayed removal may already have been made
+    private void removeAll(ChangeSet batch, boolean replay) {
+        for (String id : batch.removedEdges()) {
+            if (!replay || null != getFirst(sor.getEdges(CPIGraph.ID, id), null))
+                sorRemoveEdge(id);
+        }
+        for (String id : batch.removedVertices()) {
+            if (!replay || null != getFirst(sor.getVertices(CPIGraph.ID, id), null))
+                sorRemoveVertex(id);
+        }
+    }
+
+    // the SoR may already have a replayed add (we can die between the SoR commit and
+    // the checkpoint), so it's skipped if the element exists
+    private void addVertices(Collection<String> ids, boolean replay) {
+        for (String id : ids) {
+            if (!replay || null == getFirst(sor.getVertices(CPIGraph.ID, id), null))
+                sorAddVertex(id);
+        }
+    }
+
+    private void addEdges(Collection<ChangeSet.EdgeSpec> edges, boolean replay) {
+        for (ChangeSet.EdgeSpec es : edges) {
+            if (!replay || null == getFirst(sor.getEdges(CPIGraph.ID, es.id), null))
+                sorAddEdge(es);
+        }
+    }
+
+    private void applyProperties(Map<String, Map<String, Object>> vProperties,
+                                 Map<String, Map<String, Object>> eProperties) {
+        for (Map.Entry<String, Map<String, Object>> me : vProperties.entrySet())
+            setVProperties(me.getKey(), me.getValue());
+        for (Map.Entry<String, Map<String, Object>> me : eProperties.entrySet())
+            setEProperties(me.getKey(), me.getValue());
+    }
+
+    private void sorAddVertex(final String id) {
+        Vertex sorV = sor.addVertex(id);
+        log.debug("SOR addVertex {} => {}", id, sorV);
+        sorV.setProperty(CPIGraph.ID, id);
+        remember(id, sorV);
+    }
+
+    private void sorRemoveVertex(final String id) {
+        Vertex sorV = lookupVertex(id);
+        log.debug("SOR removeVertex {} {}", id, sorV);
+        forget(id, sorV);
+        sor.removeVertex(sorV);
+    }
+
+    private void sorAddEdge(final ChangeSet.EdgeSpec es) {
+        Vertex oSorV = lookupVertex(es.outVertexId);
+        Vertex iSorV = lookupVertex(es.inVertexId);
+        Edge sorE = sor.addEdge(es.id, oSorV, iSorV, es.label);
+        log.debug("SOR addEdge {} {}", es.id, sorE);
+        sorE.setProperty(CPIGraph.ID, es.id);
+        remember(es.id, sorE);
+    }
+
+    private void sorRemoveEdge(final String id) {
+        Edge sorE = lookupEdge(id);
+        log.debug("SOR removeEdge {} {}", id, sorE);
+        forget(id, sorE);
+        sor.removeEdge(sorE);
+    }
+
+    private void setVProperties(final String id, final Map<String, Object> properties) {
+        setProperties(lookupVertex(id), properties);
+    }
+
+    private void setEProperties(final String id, final Map<String, Object> properties) {
+        setProperties(lookupEdge(id), properties);
+    }
+
+    private void setProperties(final Element sorE, final Map<String, Object> properties) {
+        for (Map.Entry<String, Object> me : properties.entrySet()) {
+            if (ChangeSet.REMOVED == me.getValue()) {
+                log.debug("SOR removeProperty {} {}", sorE, me.getKey());
+                sorE.removeProperty(me.getKey());
+            } else {
+                log.debug("SOR setProperty {} {} => {}", sorE, me.getKey(), me.getValue());
+                sorE.setProperty(me.getKey(), me.getValue());
+            }
+        }
+    }
+
+    // =======================================
+    /**
+     * Fetches an element by the SoR id the graph has for it, if it has one and it
+     * still names the element: a rolled back add can leave an id the SoR reuses.
+     * Otherwise the element is found through the SoR's index on CPIGraph.ID, and its
+     * SoR id kept for next time.
+     */
+    private Vertex lookupVertex(String id) {
+        Vertex v = findVertex(id);
+        if (null == v)
+            throw new NoSuchElementException("No SoR vertex with id " + id);
+        return v;
+    }
+
+    private Edge lookupEdge(String id) {
+        Edge e = findEdge(id);
+        if (null == e)
+            throw new NoSuchElementException("No SoR edge with id " + id);
+        return e;
+    }
+
+    // as lookupVertex, but null if there's no such vertex
+    private Vertex findVertex(String id) {
+        CPIGraph g = graph;
+        int handle = (null == g) ? -1 : g.vertexIds.handle(id);
+        long nativeId = (null == g) ? NativeIds.NONE : g.vertexNatives.get(handle);
+        if (NativeIds.NONE != nativeId) {
+            Vertex v = sor.getVertex(nativeId);
+            if (null != v && id.equals(v.getProperty(CPIGraph.ID)))
+                return v;
+        }
+        log.debug("SOR index lookup of vertex {}", id);
+        Vertex v = getFirst(sor.getVertices(CPIGraph.ID, id), null);
+        if (null != v && null != g)
+            g.vertexNatives.put(handle, v.getId());
+        return v;
+    }
+
+    private Edge findEdge(String id) {
+        CPIGraph g = graph;
+        int handle = (null == g) ? -1 : g.edgeIds.handle(id);
+        long nativeId = (null == g) ? NativeIds.NONE : g.edgeNatives.get(handle);
+        if (NativeIds.NONE != nativeId) {
+            Edge e = sor.getEdge(nativeId);
+            if (null != e && id.equals(e.getProperty(CPIGraph.ID)))
+                return e;
+        }
+        log.debug("SOR index lookup of edge {}", id);
+        Edge e = getFirst(sor.getEdges(CPIGraph.ID, id), null);
+        if (null != e && null != g)
+            g.edgeNatives.put(handle, e.getId());
+        return e;
+    }
+
+    private void remember(String id, Element sorE) {
+        CPIGraph g = graph;
+        if (null == g)
+            return;
+        if (sorE instanceof Vertex)
+            g.vertexNatives.put(g.vertexIds.handle(id), sorE.getId());
+        else
+            g.edgeNatives.put(g.edgeIds.handle(id), sorE.getId());
+    }
+
+    private void forget(String id, Element sorE) {
+        CPIGraph g = graph;
+        if (null == g)
+            return;
+        if (sorE instanceof Vertex)
+            g.vertexNatives.remove(g.vertexIds.handle(id));
+        else
+            g.edgeNatives.remove(g.edgeIds.handle(id));
+    }
+
+    // =======================================
+    private final T sor;
+    // the graph whose SoR ids are kept; null while the journal is replayed at startup
+    private volatile CPIGraph graph = null;
+    // threads that vertex adds and property writes are spread over; with a single
+    // applier there are none, and the write-behind's thread does everything
+    private final ExecutorService[] shards;
+}
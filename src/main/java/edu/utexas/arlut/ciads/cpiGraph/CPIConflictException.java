@@ -0,0 +1,13 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+/**
+ * Thrown from commit() when another transaction has committed a conflicting change
+ * since this one started. The transaction is rolled back, and may be retried.
+ */
+public class CPIConflictException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    CPIConflictException(String graphId, String elementId) {
+        super("Commit to " + graphId + " conflicts on " + elementId);
+    }
+}
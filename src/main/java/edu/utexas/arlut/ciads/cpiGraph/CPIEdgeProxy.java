@@ -11,11 +11,11 @@ import lombok.Getter;
 import lombok.Setter;
 
 public class CPIEdgeProxy extends CPIElementProxy implements Edge {
-    public static Function<String, CPIEdgeProxy> MAKE(final CPIGraph g) {
-        return new Function<String, CPIEdgeProxy>() {
+    public static Function<Integer, CPIEdgeProxy> MAKE(final CPIGraph g) {
+        return new Function<Integer, CPIEdgeProxy>() {
             @Override
-            public CPIEdgeProxy apply(String id) {
-                return new CPIEdgeProxy(id, g);
+            public CPIEdgeProxy apply(Integer handle) {
+                return g.edgeProxy(handle);
             }
         };
     }
@@ -23,7 +23,7 @@ public class CPIEdgeProxy extends CPIElementProxy implements Edge {
         return new Function<CPIEdge, CPIEdgeProxy>() {
             @Override
             public CPIEdgeProxy apply(CPIEdge v) {
-                return new CPIEdgeProxy(v.id, g);
+                return g.edgeProxy(v.handle, v.id);
             }
         };
     }
@@ -33,15 +33,20 @@ public class CPIEdgeProxy extends CPIElementProxy implements Edge {
             return (Edge) input;
         }
     };
-    protected CPIEdgeProxy(String id, CPIGraph g) {
-        super(id, g);
+    protected CPIEdgeProxy(int handle, String id, CPIGraph g) {
+        super(handle, id, g);
     }
     @Override
     CPIEdge getImpl() {
-        return graph.edgeImpl(id);
+        CPIEdge e = (CPIEdge) cached();
+        if (null != e)
+            return e;
+        CPITransaction tx = graph.tx();
+        return cache(tx, live(graph.edgeImpl(tx, handle)));
     }
     CPIEdge getMutableImpl() {
-        return graph.mutableEdgeImpl(id);
+        live(getImpl());
+        return cache(graph.tx(), graph.mutableEdgeImpl(handle));
     }
     @Override
     public Vertex getVertex(Direction direction) throws IllegalArgumentException {
@@ -51,18 +56,25 @@ public class CPIEdgeProxy extends CPIElementProxy implements Edge {
             return inVertex();
         throw bothIsNotSupported();
     }
+    // an edge's endpoints never change, so their proxies are made once
     CPIVertexProxy outVertex() {
-        return new CPIVertexProxy(getImpl().outVertexId, graph);
+        CPIVertexProxy v = out;
+        if (null == v)
+            out = v = graph.vertexProxy(getImpl().outVertex);
+        return v;
     }
     CPIVertexProxy inVertex() {
-        return new CPIVertexProxy(getImpl().inVertexId, graph);
+        CPIVertexProxy v = in;
+        if (null == v)
+            in = v = graph.vertexProxy(getImpl().inVertex);
+        return v;
     }
 
     protected void _setProperty(String key, Object value) {
-        graph.persister.setEProperty(id, key, value);
+        graph.tx().changes.setEProperty(id, key, value);
     }
     @Override
-    protected void _rmProperty(String key) { graph.persister.removeEProperty(id, key);
+    protected void _rmProperty(String key) { graph.tx().changes.removeEProperty(id, key);
     }
 
     @Override
@@ -78,34 +90,24 @@ public class CPIEdgeProxy extends CPIElementProxy implements Edge {
     public String toString() {
         return StringFactory.edgeString(this);
     }
+    private CPIVertexProxy out = null, in = null;
+
     // =================================
     public static class CPIEdge extends CPIElement {
-        CPIEdge(String id, String outVertexId, String inVertexId, String label) {
-            super(id);
-            this.outVertexId = outVertexId;
-            this.inVertexId = inVertexId;
+        CPIEdge(int handle, String id, int outVertex, int inVertex, String label) {
+            super(handle, id);
+            this.outVertex = outVertex;
+            this.inVertex = inVertex;
             this.label = label;
         }
         CPIEdge(CPIEdge src) {
             super(src);
-            this.outVertexId = src.outVertexId;
-            this.inVertexId = src.inVertexId;
+            this.outVertex = src.outVertex;
+            this.inVertex = src.inVertex;
             this.label = src.label;
-//            this.base = src.base;
-        }
-        CPIEdge(String id, Edge e) {
-            super(id, e);
-            this.outVertexId = e.getVertex(Direction.OUT).getId().toString();
-            this.inVertexId = e.getVertex(Direction.IN).getId().toString();
-            this.label = e.getLabel();
-//            base = e;
         }
-        final String outVertexId, inVertexId;
+        // vertex handles
+        final int outVertex, inVertex;
         final String label;
-
-        // this *may* be populated later by the write-behind queue. It's an optimization to keep from repeatedly
-        // looking up the underlying element from the id.
-//        @Setter @Getter
-//        protected Edge base = null;
     }
 }
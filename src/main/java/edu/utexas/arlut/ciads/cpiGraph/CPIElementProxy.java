@@ -1,9 +1,7 @@
 package edu.utexas.arlut.ciads.cpiGraph;
 
-import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Sets.newHashSet;
 
-import java.util.Map;
 import java.util.Set;
 
 import com.google.common.base.Function;
@@ -15,16 +13,17 @@ import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public abstract class CPIElementProxy implements Element {
-    public static Function<CPIElement, String> ID() {
-        return new Function<CPIElement, String>() {
+    public static Function<CPIElement, Integer> HANDLE() {
+        return new Function<CPIElement, Integer>() {
             @Override
-            public String apply(CPIElement e) {
-                return e.id;
+            public Integer apply(CPIElement e) {
+                return e.handle;
             }
         };
     }
 
-    protected CPIElementProxy(String id, CPIGraph g) {
+    protected CPIElementProxy(int handle, String id, CPIGraph g) {
+        this.handle = handle;
         this.id = id;
         this.graph = g;
     }
@@ -33,6 +32,34 @@ public abstract class CPIElementProxy implements Element {
 
     abstract CPIElement getMutableImpl();
 
+    // the impl this proxy last resolved to, if it still would. Doesn't look up the
+    // thread's transaction: the one it was resolved in is still the thread's while open
+    final CPIElement cached() {
+        Resolved r = resolved;
+        return (null != r && r.thread == Thread.currentThread() && r.tx.touch() && r.writes == r.tx.writes)
+                ? r.impl
+                : null;
+    }
+
+    // a handle is reused once its element is gone, so this proxy's may name another element by now
+    final <T extends CPIElement> T live(T impl) {
+        if (null != impl && impl.id != id && !impl.id.equals(id))
+            throw CPIGraph.deletedElementException(id);
+        return impl;
+    }
+
+    final <T extends CPIElement> T cache(CPITransaction tx, T impl) {
+        Resolved r = resolved;
+        if (null != r && r.thread == Thread.currentThread() && r.tx == tx) {
+            r.writes = tx.writes;
+            r.impl = impl;
+        } else {
+            resolved = new Resolved(tx, impl);
+        }
+        return impl;
+    }
+
+    @SuppressWarnings("unchecked")
     @Override
     public <T> T getProperty(String key) {
         return (T) getImpl().properties.get(key);
@@ -55,6 +82,7 @@ public abstract class CPIElementProxy implements Element {
     }
     abstract protected void _setProperty(String key, Object value);
 
+    @SuppressWarnings("unchecked")
     @Override
     public <T> T removeProperty(String key) {
         CPIElement impl = getMutableImpl();
@@ -90,19 +118,16 @@ public abstract class CPIElementProxy implements Element {
 
     // =================================
     public abstract static class CPIElement {
-        CPIElement(String id) {
+        CPIElement(int handle, String id) {
+            this.handle = handle;
             this.id = id;
-            properties = newHashMap();
+            properties = new PropertyMap();
         }
 
         CPIElement(CPIElement src) {
+            this.handle = src.handle;
             this.id = src.id;
-            properties = newHashMap(src.properties);
-        }
-
-        CPIElement(String id, Element src) {
-            this(id);
-            putProperties(src);
+            properties = new PropertyMap(src.properties);
         }
 
         void putProperties(Element e) {
@@ -111,11 +136,52 @@ public abstract class CPIElementProxy implements Element {
             }
         }
 
+        // a rough count of the bytes the impl holds, for its ElementStore's weight
+        long bytes() {
+            return ElementStore.OBJECT + ElementStore.string(id) + properties.bytes();
+        }
+
+        // the element's slot in its graph's ElementStore
+        final int handle;
         @Getter
         protected final String id;
-        protected final Map<String, Object> properties;
+        protected final PropertyMap properties;
+
+        // the graph version that committed this impl, 0 for one that was loaded
+        long version = 0;
+        // for a committed impl, the one it replaced, kept while a transaction may still
+        // read it. For a copy in a transaction's write set, the impl it was copied from.
+        CPIElement prev = null;
+        // a tombstone, marking the version its element was removed at
+        boolean removed = false;
+        // what its ElementStore counted it at
+        long weight = 0;
+    }
+
+    /**
+     * A resolved impl, stamped with the thread and transaction it was resolved in and
+     * that transaction's write count. Until any of them moves on, the handle resolves
+     * to the same impl, so reads skip the transaction lookup, the write set and the
+     * version walk. Only its thread reads or updates the rest, so it's updated in
+     * place while the transaction lasts; another thread sees a thread that isn't its
+     * own, and resolves afresh. A proxy holds on to an ended transaction only till its
+     * next resolve.
+     */
+    private static final class Resolved {
+        Resolved(CPITransaction tx, CPIElement impl) {
+            this.tx = tx;
+            this.writes = tx.writes;
+            this.impl = impl;
+        }
+
+        final Thread thread = Thread.currentThread();
+        final CPITransaction tx;
+        int writes;
+        CPIElement impl;
     }
 
+    final int handle;
     protected final String id;
     protected final CPIGraph graph;
+    private Resolved resolved = null;
 }
@@ -2,28 +2,37 @@ package edu.utexas.arlut.ciads.cpiGraph;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Predicates.in;
-import static com.google.common.base.Predicates.not;
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Queues.newArrayDeque;
 import static com.google.common.collect.Sets.newHashSet;
 import static com.tinkerpop.blueprints.util.ExceptionFactory.edgeLabelCanNotBeNull;
 
-import java.util.Collections;
+import java.io.File;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicates;
+import com.google.common.base.Stopwatch;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.*;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Striped;
 import com.tinkerpop.blueprints.*;
-import com.tinkerpop.blueprints.util.DefaultGraphQuery;
 import com.tinkerpop.blueprints.util.ExceptionFactory;
 import com.tinkerpop.blueprints.util.PropertyFilteredIterable;
 import com.tinkerpop.blueprints.util.StringFactory;
+import edu.utexas.arlut.ciads.cacheGraph.CacheBudget;
 import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
 import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
 import lombok.extern.slf4j.Slf4j;
@@ -33,33 +42,65 @@ public class CPIGraph implements KeyIndexableGraph, TransactionalGraph {
 
     public static final String ID = "__id";
     public static final String PARTITION = "__partition";
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+    // the least number of handles an eviction sweep looks at
+    private static final int SWEEP = 4096;
 
     CPIGraph(String graphId, CPIWriteBehind wb) {
+        this(graphId, wb, null);
+    }
+    // offHeap, if not null, takes the adjacency and bare edges the graph is loaded with
+    CPIGraph(String graphId, CPIWriteBehind wb, OffHeapStore offHeap) {
         log.info("Init CPIGraph w/ id '{}'", graphId);
         this.graphId = graphId;
         this.persister = wb;
+        this.offHeap = offHeap;
+        this.committedSeq = wb.lastSeq();
 //        this.manager = manager;
+        wb.attach(this);
     }
     CPIGraph(CPIGraph src, String graphId, CPIWriteBehind wb) {
-        // TODO: queue up W-B & commit
         log.info("Init CPIGraph from {} w/ id '{}'", src.graphId, graphId);
         this.graphId = graphId;
         this.persister = wb;
-        for (Map.Entry<String, CPIVertex> ve: src.vertexCache.asMap().entrySet()) {
-            CPIVertex impl = new CPIVertex(ve.getValue());
-            vertexCache.put(ve.getKey(), impl);
-            persister.addVertex(impl.getId());
-            for (Map.Entry<String, Object> pe: impl.properties.entrySet()) {
-                persister.setVProperty(impl.getId(), pe.getKey(), pe.getValue());
+        this.offHeap = null;
+        this.committedSeq = wb.lastSeq();
+        wb.attach(this);
+        ChangeSet cs = new ChangeSet();
+        List<CPIElementProxy.CPIElement> copied = newArrayList();
+        CPITransaction at = src.pin();
+        try {
+            // handles are per graph, so the copy interns its own and rewires adjacency
+            for (CPIVertex v : src.committedVertices(at.snapshot)) {
+                CPIVertex impl = new CPIVertex(vertexIds.intern(v.id), v.id);
+                impl.properties.putAll(v.properties);
+                rawPut(impl);
+                copied.add(impl);
+                cs.addVertex(impl.getId());
+                for (Map.Entry<String, Object> pe : impl.properties.entrySet()) {
+                    cs.setVProperty(impl.getId(), pe.getKey(), pe.getValue());
+                }
             }
+            for (CPIEdge e : src.committedEdges(at.snapshot)) {
+                String outId = src.vertexIds.id(e.outVertex);
+                String inId = src.vertexIds.id(e.inVertex);
+                CPIEdge impl = new CPIEdge(edgeIds.intern(e.id), e.id,
+                        vertexIds.intern(outId), vertexIds.intern(inId), e.label);
+                impl.properties.putAll(e.properties);
+                rawPut(impl);
+                copied.add(impl);
+                cs.addEdge(impl.getId(), outId, inId, impl.label);
+                for (Map.Entry<String, Object> pe : impl.properties.entrySet())
+                    cs.setEProperty(impl.getId(), pe.getKey(), pe.getValue());
+            }
+        } finally {
+            src.unpin(at);
         }
-        for (Map.Entry<String, CPIEdge> ve: src.edgeCache.asMap().entrySet()) {
-            CPIEdge impl = new CPIEdge(ve.getValue());
-            edgeCache.put(ve.getKey(), impl);
-            persister.addEdge(impl.getId(), impl.outVertexId, impl.inVertexId, impl.label);
-            for (Map.Entry<String, Object> pe: impl.properties.entrySet())
-                persister.setEProperty(impl.getId(), pe.getKey(), pe.getValue());
-        }
+        // the copy goes to the SoR as one batch
+        if (!cs.isEmpty())
+            unpersisted(copied);
+        persister.commit(cs);
     }
 
     public String getId() {
@@ -114,92 +155,648 @@ public class CPIGraph implements KeyIndexableGraph, TransactionalGraph {
     }
 
     // =================================
-    CPIVertex vertexImpl(String id) {
-        if (deletedVertices.contains(id))
-            throw deletedElementException(id);
-        return mutatedVertices.containsKey(id) ? mutatedVertices.get(id)
-                : vertexCache.getIfPresent(id);
-        // TODO: exception on not present...
+    // Each thread works in its own CPITransaction, which reads the committed impls as
+    // of the version it started at. A commit never changes a committed impl; it
+    // installs a new one, with a higher version, that points back to the one it
+    // replaced. Readers walk back to the newest version they're allowed to see.
+    CPITransaction tx() {
+        CPITransaction tx = current.get();
+        if (null != tx && !tx.touch())
+            tx = expired(tx);
+        if (null == tx) {
+            // with its serial, so a handle it claims isn't released out from under it
+            synchronized (active) {
+                tx = pin();
+                open.add(tx);
+            }
+            current.set(tx);
+        }
+        return tx;
+    }
+
+    /**
+     * A thread's transaction that's left idle past the timeout stops holding back
+     * pruning, and its versions may be gone. One that only read carries on as a new
+     * transaction, at the latest version; one that wrote is rolled back.
+     *
+     * @return null if the thread can carry on
+     * @throws IllegalStateException if the transaction's writes were lost
+     */
+    private CPITransaction expired(CPITransaction tx) {
+        current.remove();
+        if (tx.isEmpty())
+            return null;
+        abandoned(tx, false);
+        throw new IllegalStateException(graphId + " transaction was idle for over " + idleTimeoutMillis
+                + "ms, and has been rolled back");
+    }
+
+    // where a transaction is held past a single call, as by an iterator
+    private void checkLive(CPITransaction tx) {
+        if (!tx.touch())
+            throw new IllegalStateException(graphId + " transaction was idle for over " + idleTimeoutMillis + "ms");
+    }
+
+    /**
+     * Sets how long a thread's transaction may go unused before it's given up, so
+     * a thread that reads and never commits or rolls back doesn't keep every version
+     * since forever. Use is sampled by the sweeps that prune and evict, so one is
+     * given up at the first sweep past the timeout since a sweep last found it used.
+     */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        idleTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    // a read at the latest committed version; the versions it can see are kept until it's unpinned
+    CPITransaction pin() {
+        synchronized (active) {
+            CPITransaction tx = new CPITransaction(committedVersion, committedSeq);
+            active.add(tx.snapshot);
+            return tx;
+        }
+    }
+
+    void unpin(CPITransaction tx) {
+        synchronized (active) {
+            active.remove(tx.snapshot);
+        }
+    }
+
+    // expiring idle transactions as it goes
+    private long oldestSnapshot() {
+        long now = System.currentTimeMillis();
+        synchronized (active) {
+            for (Iterator<CPITransaction> i = open.iterator(); i.hasNext(); ) {
+                CPITransaction tx = i.next();
+                if (tx.expire(now, idleTimeoutMillis)) {
+                    log.info("{} expiring idle {}", graphId, tx);
+                    i.remove();
+                    active.remove(tx.snapshot);
+                }
+            }
+            return active.isEmpty() ? committedVersion : active.firstEntry().getElement();
+        }
+    }
+
+    // the serial of the oldest open transaction, or of the next one if none is
+    private long oldestSerial() {
+        synchronized (active) {
+            long oldest = CPITransaction.nextSerial();
+            for (CPITransaction tx : open)
+                oldest = Math.min(oldest, tx.serial);
+            return oldest;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends CPIElementProxy.CPIElement> T visible(T impl, long version) {
+        while (null != impl && impl.version > version)
+            impl = (T) impl.prev;
+        return (null == impl || impl.removed) ? null : impl;
+    }
+
+    private static <T extends CPIElementProxy.CPIElement> Function<T, T> VISIBLE(final long version) {
+        return new Function<T, T>() {
+            @Override
+            public T apply(T impl) {
+                return visible(impl, version);
+            }
+        };
+    }
+
+    Iterable<CPIVertex> committedVertices(long version) {
+        Iterable<CPIVertex> all = !persister.fetches() ? vertexStore : byHandle(vertexIds, scannedVertex);
+        return FluentIterable.from(all)
+                .transform(CPIGraph.<CPIVertex>VISIBLE(version))
+                .filter(Predicates.notNull());
+    }
+
+    Iterable<CPIEdge> committedEdges(long version) {
+        Iterable<CPIEdge> all = (null == offHeap && !persister.fetches()) ? edgeStore : byHandle(edgeIds, scannedEdge);
+        return FluentIterable.from(all)
+                .transform(CPIGraph.<CPIEdge>VISIBLE(version))
+                .filter(Predicates.notNull());
+    }
+
+    // the latest committed impl, which for a bare loaded edge is made from its off-heap record
+    private CPIEdge residentEdge(int handle) {
+        CPIEdge e = edgeStore.get(handle);
+        if (null != e || null == offHeap || !offHeap.hasEdge(handle))
+            return e;
+        String id = edgeIds.id(handle);
+        e = new CPIEdge(handle, id, offHeap.outVertex(handle), offHeap.inVertex(handle), offHeap.label(handle));
+        e.properties.put(ID, id);
+        return e;
+    }
+
+    // the latest committed impls, handle by handle, so an element that moves in or
+    // out of memory mid-iteration still comes up once
+    private static <T> Iterable<T> byHandle(final IdInterner ids, final Function<Integer, T> latest) {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                final int limit = ids.size();
+                return new AbstractIterator<T>() {
+                    private int h = 0;
+
+                    @Override
+                    protected T computeNext() {
+                        while (h < limit) {
+                            T t = latest.apply(h++);
+                            if (null != t)
+                                return t;
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+        };
+    }
+
+    // bare edges have nothing to index, and no properties but their id
+    private boolean bare(CPIEdge impl) {
+        return !eIndices.has(ID) && impl.properties.size() == (impl.properties.containsKey(ID) ? 1 : 0);
+    }
+
+    /**
+     * Moves the adjacency of loaded vertices off heap, once the graph is loaded and
+     * before it's in use. Vertices that are committed to get their adjacency back
+     * on heap in the new version.
+     */
+    void offload() {
+        if (null == offHeap)
+            return;
+        Stopwatch sw = Stopwatch.createStarted();
+        for (CPIVertex v : vertexStore) {
+            if (0 != v.version)
+                continue;
+            v.outEdges = v.outEdges.freeze(offHeap);
+            v.inEdges = v.inEdges.freeze(offHeap);
+            vertexStore.reweigh(v);
+        }
+        log.info("{} offloaded: {} edge records, {} MB off heap in {}",
+                graphId, offHeap.edgeCount(), offHeap.bytes() >> 20, sw);
+    }
+
+    // =================================
+    // Eviction. Where the persister can fetch elements back, each store keeps impls of
+    // at most half of cacheBytes, by their estimated weight, and a read of an evicted
+    // one fetches it from the SoR. A vertex with a big adjacency takes the room of
+    // many leaves. Only an impl that every transaction sees, with no older versions behind
+    // it, and not in a commit the write-behind has yet to persist, is evicted; so the
+    // SoR has it just as it was, and it comes back as a loaded impl, at version 0.
+    CPIVertex committedVertex(int handle) {
+        CPIVertex v = vertexStore.get(handle);
+        if (null != v || !vertexStore.evicted(handle))
+            return v;
+        return refetch(vertexStore, handle, true, fetchVertex);
+    }
+
+    CPIEdge committedEdge(int handle) {
+        CPIEdge e = residentEdge(handle);
+        if (null != e || !edgeStore.evicted(handle))
+            return e;
+        return refetch(edgeStore, handle, true, fetchEdge);
     }
 
-    CPIVertex mutableVertexImpl(String id) {
-        if (deletedVertices.contains(id))
-            throw deletedElementException(id);
-        if (mutatedVertices.containsKey(id)) {
-            return mutatedVertices.get(id);
+    /**
+     * Fetches an evicted impl. Concurrent fetches of one handle wait on the first.
+     *
+     * @param install whether the impl goes back in the store; a scan passing through
+     *                doesn't put it back, so it doesn't churn what's in memory
+     */
+    private <T extends CPIElementProxy.CPIElement> T refetch(ElementStore<T> store, int handle, boolean install,
+                                                             Function<Integer, T> fetch) {
+        if (!install) {
+            T t = fetch.apply(handle);
+            // a commit may have put the element back meanwhile, and its changes be in the SoR
+            T now = store.get(handle);
+            return (null != now) ? now : t;
         }
-        CPIVertex v = new CPIVertex(vertexCache.getIfPresent(id));
-        mutatedVertices.put(id, v);
+        T t;
+        Lock l = fetching.get(handle);
+        l.lock();
+        try {
+            t = store.get(handle);
+            if (null != t || !store.evicted(handle))
+                return t;
+            t = fetch.apply(handle);
+            if (null != t)
+                t = store.install(t);
+        } finally {
+            l.unlock();
+        }
+        evict();
+        return t;
+    }
+
+    /**
+     * Evicts what's past the bound from each store. It never waits: while a commit
+     * is running, or this thread is in the middle of one, it's left to the next call.
+     * Each call looks at a bounded number of handles, going round them from where the
+     * last one stopped, so an impl stays at least until the sweep comes round again;
+     * while little is evictable, the stores can be over the bound for a while.
+     */
+    void evict() {
+        long limit = cacheBytes / 2;
+        if (!persister.fetches() || (vertexStore.bytes() <= limit && edgeStore.bytes() <= limit))
+            return;
+        if (commitLock.isHeldByCurrentThread() || !commitLock.tryLock())
+            return;
+        try {
+            long oldest = oldestSnapshot();
+            vertexHand = sweep(vertexStore, limit, vertexIds.size(), vertexHand, unpersistedVertices, oldest);
+            edgeHand = sweep(edgeStore, limit, edgeIds.size(), edgeHand, unpersistedEdges, oldest);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // under the commit lock. The handles it looks at are reckoned from how many impls,
+    // of the store's average weight, are over the bound. Returns where the hand stopped.
+    private <T extends CPIElementProxy.CPIElement> int sweep(ElementStore<T> store, long bytes, int handles,
+                                                           int hand, Multiset<Integer> unpersisted, long oldest) {
+        int size = store.size();
+        long excess = (0 == size) ? 0 : (store.bytes() - bytes) / Math.max(1, store.bytes() / size) + 1;
+        int budget = (int) Math.min(handles, SWEEP + 4 * Math.max(0, excess));
+        for (int n = 0; n < budget && store.bytes() > bytes; n++) {
+            hand = (hand + 1 < handles) ? hand + 1 : 0;
+            T impl = store.get(hand);
+            if (null != impl && !impl.removed && null == impl.prev && impl.version <= oldest
+                    && !unpersisted.contains(hand))
+                store.evict(impl);
+        }
+        return hand;
+    }
+
+    /**
+     * Sets the estimated bytes of vertices and edges, half each, kept in memory where
+     * the persister can fetch them back; the rest are read from the SoR as they're used.
+     */
+    public void setCacheBytes(long cacheBytes) {
+        setCacheBytes(cacheBytes, null);
+    }
+
+    /**
+     * As setCacheBytes(long), with the bytes reserved out of budget until shutdown, in
+     * place of any reserved before.
+     *
+     * @throws IllegalStateException if the budget hasn't enough left
+     */
+    public synchronized void setCacheBytes(long cacheBytes, CacheBudget budget) {
+        releaseCache();
+        this.cacheBytes = (null == budget) ? cacheBytes : budget.reserve(cacheBytes);
+        this.budget = budget;
+        evict();
+    }
+
+    // gives back what's reserved out of the budget
+    synchronized void releaseCache() {
+        if (null != budget)
+            budget.release(cacheBytes);
+        budget = null;
+    }
+
+    // under the commit lock, before the batch is handed to the write-behind, so it
+    // can't be persisted first
+    private Unpersisted unpersisted(List<CPIElementProxy.CPIElement> installs) {
+        Unpersisted u = new Unpersisted(installs);
+        synchronized (unpersisted) {
+            unpersisted.add(u);
+        }
+        for (int h : u.vertices)
+            unpersistedVertices.add(h);
+        for (int h : u.edges)
+            unpersistedEdges.add(h);
+        return u;
+    }
+
+    // the write-behind has persisted the oldest commit it had
+    void persisted() {
+        Unpersisted u;
+        synchronized (unpersisted) {
+            u = unpersisted.poll();
+        }
+        if (null != u) {
+            release(u);
+            evict();
+        }
+    }
+
+    private void release(Unpersisted u) {
+        for (int h : u.vertices)
+            unpersistedVertices.remove(h);
+        for (int h : u.edges)
+            unpersistedEdges.remove(h);
+    }
+
+    // the handles a commit installed
+    private static final class Unpersisted {
+        Unpersisted(List<CPIElementProxy.CPIElement> installs) {
+            List<Integer> vs = newArrayList();
+            List<Integer> es = newArrayList();
+            for (CPIElementProxy.CPIElement impl : installs) {
+                if (impl instanceof CPIVertex)
+                    vs.add(impl.handle);
+                else
+                    es.add(impl.handle);
+            }
+            vertices = Ints.toArray(vs);
+            edges = Ints.toArray(es);
+        }
+
+        final int[] vertices;
+        final int[] edges;
+    }
+
+    // =================================
+    // the pooled proxy for the element, or a new one
+    CPIVertexProxy vertexProxy(int handle, String id) {
+        CPIVertexProxy p = vertexProxies.get(handle, id);
+        return (null != p) ? p : vertexProxies.put(new CPIVertexProxy(handle, id, this));
+    }
+
+    CPIVertexProxy vertexProxy(int handle) {
+        return vertexProxy(handle, vertexIds.id(handle));
+    }
+
+    CPIEdgeProxy edgeProxy(int handle, String id) {
+        CPIEdgeProxy p = edgeProxies.get(handle, id);
+        return (null != p) ? p : edgeProxies.put(new CPIEdgeProxy(handle, id, this));
+    }
+
+    CPIEdgeProxy edgeProxy(int handle) {
+        return edgeProxy(handle, edgeIds.id(handle));
+    }
+
+    CPIVertex vertexImpl(int handle) {
+        return vertexImpl(tx(), handle);
+    }
+
+    CPIVertex vertexImpl(CPITransaction tx, int handle) {
+        if (tx.deletedVertices.containsKey(handle))
+            throw deletedElementException(vertexIds.id(handle));
+        CPIVertex v = tx.mutatedVertices.get(handle);
+        return (null != v) ? v : visible(committedVertex(handle), tx.snapshot);
+        // TODO: exception on not present...
+    }
+
+    CPIVertex mutableVertexImpl(int handle) {
+        CPITransaction tx = tx();
+        if (tx.deletedVertices.containsKey(handle))
+            throw deletedElementException(vertexIds.id(handle));
+        CPIVertex v = tx.mutatedVertices.get(handle);
+        if (null != v)
+            return v;
+        CPIVertex base = visible(committedVertex(handle), tx.snapshot);
+        v = new CPIVertex(base);
+        v.prev = base;
+        tx.mutatedVertices.put(handle, v);
+        tx.writes++;
         return v;
         // TODO: exception on not present...
     }
 
-    CPIEdge edgeImpl(String id) {
-        if (deletedEdges.contains(id))
-            throw deletedElementException(id);
-        return mutatedEdges.containsKey(id) ? mutatedEdges.get(id)
-                : edgeCache.getIfPresent(id);
+    CPIEdge edgeImpl(int handle) {
+        return edgeImpl(tx(), handle);
+    }
+
+    CPIEdge edgeImpl(CPITransaction tx, int handle) {
+        if (tx.deletedEdges.containsKey(handle))
+            throw deletedElementException(edgeIds.id(handle));
+        CPIEdge e = tx.mutatedEdges.get(handle);
+        return (null != e) ? e : visible(committedEdge(handle), tx.snapshot);
         // TODO: exception on not present...
     }
 
-    CPIEdge mutableEdgeImpl(String id) {
-        if (deletedEdges.contains(id))
-            throw deletedElementException(id);
-        if (mutatedEdges.containsKey(id)) {
-            return mutatedEdges.get(id);
-        }
-        CPIEdge e = new CPIEdge(edgeCache.getIfPresent(id));
-        mutatedEdges.put(id, e);
+    CPIEdge mutableEdgeImpl(int handle) {
+        CPITransaction tx = tx();
+        if (tx.deletedEdges.containsKey(handle))
+            throw deletedElementException(edgeIds.id(handle));
+        CPIEdge e = tx.mutatedEdges.get(handle);
+        if (null != e)
+            return e;
+        CPIEdge base = visible(committedEdge(handle), tx.snapshot);
+        e = new CPIEdge(base);
+        e.prev = base;
+        tx.mutatedEdges.put(handle, e);
+        tx.writes++;
         return e;
         // TODO: exception on not present...
     }
 
     // =================================
+    // rawAdds come from the SoRLoader, several threads at a time. Nothing else is
+    // touching the graph yet, but adjacency is shared, so it's wired under the
+    // vertex's monitor.
+    private static String rawId(Element e) {
+        return firstNonNull(e.getProperty(ID), e.getId()).toString();
+    }
+
     void rawAdd(Vertex v) {
-        String id = firstNonNull(v.getProperty(ID), v.getId()).toString();
-        CPIVertex impl = new CPIVertex(id);
-        impl.putProperties(v);
-        vertexCache.put(id, impl);
+        rawPut(loaded(v));
     }
 
     void rawAdd(Edge e) {
-        String id = firstNonNull(e.getProperty(ID), e.getId()).toString();
-
-        Vertex outVertex = e.getVertex(Direction.OUT);
-        String outID = firstNonNull(outVertex.getProperty(ID), outVertex.getId()).toString();
-        vertexImpl(outID).outEdges.add(id);
+        rawPut(loaded(e));
+    }
 
-        Vertex inVertex = e.getVertex(Direction.OUT);
-        String inID = firstNonNull(inVertex.getProperty(ID), inVertex.getId()).toString();
-        vertexImpl(inID).inEdges.add(id);
+    // the impl of a SoR vertex, without its adjacency, which the edges bring
+    private CPIVertex loaded(Vertex v) {
+        String id = rawId(v);
+        CPIVertex impl = new CPIVertex(vertexIds.intern(id), id);
+        impl.putProperties(v);
+        vertexNatives.put(impl.handle, v.getId());
+        return impl;
+    }
 
-        CPIEdge impl = new CPIEdge(id, outID, inID, e.getLabel());
+    CPIEdge loaded(Edge e) {
+        String id = rawId(e);
+        CPIEdge impl = new CPIEdge(edgeIds.intern(id), id,
+                vertexIds.intern(rawId(e.getVertex(Direction.OUT))),
+                vertexIds.intern(rawId(e.getVertex(Direction.IN))),
+                e.getLabel());
         impl.putProperties(e);
-        edgeCache.put(id, impl);
+        edgeNatives.put(impl.handle, e.getId());
+        return impl;
+    }
+
+    // the impl of a SoR vertex that was evicted, with its adjacency read off the SoR's edges
+    CPIVertex fetched(Vertex v) {
+        CPIVertex impl = loaded(v);
+        for (Edge e : v.getEdges(Direction.OUT))
+            impl.addOutEdge(edgeHandle(e), e.getLabel());
+        for (Edge e : v.getEdges(Direction.IN))
+            impl.addInEdge(edgeHandle(e), e.getLabel());
+        return impl;
+    }
+
+    private int edgeHandle(Edge e) {
+        int h = edgeIds.intern(rawId(e));
+        edgeNatives.put(h, e.getId());
+        return h;
+    }
+
+    void rawPut(CPIVertex impl) {
+        vertexStore.put(impl);
+        vIndices.index(impl);
+    }
+
+    void rawPut(CPIEdge impl) {
+        if (null != offHeap && bare(impl)) {
+            offHeap.putEdge(impl.handle, impl.outVertex, impl.inVertex, impl.label);
+        } else {
+            edgeStore.put(impl);
+            eIndices.index(impl);
+        }
+
+        CPIVertex outV = vertexStore.get(impl.outVertex);
+        if (null != outV) {
+            synchronized (outV) {
+                outV.addOutEdge(impl.handle, impl.label);
+                vertexStore.reweigh(outV);
+            }
+        }
+        CPIVertex inV = vertexStore.get(impl.inVertex);
+        if (null != inV) {
+            synchronized (inV) {
+                inV.addInEdge(impl.handle, impl.label);
+                vertexStore.reweigh(inV);
+            }
+        }
+        // an evicted endpoint gets the edge when it's fetched back
+        if ((null == outV && !vertexStore.evicted(impl.outVertex))
+                || (null == inV && !vertexStore.evicted(impl.inVertex)))
+            log.warn("{} loaded edge {} without its endpoints {} -> {}", graphId, impl.id,
+                    vertexIds.id(impl.outVertex), vertexIds.id(impl.inVertex));
+    }
+
+    /**
+     * Rolls committed changes straight into the caches, for catching a graph up
+     * from the journal before it's in use. Elements that aren't cached are skipped.
+     */
+    void rawApply(ChangeSet cs) {
+        for (String id : cs.removedEdges()) {
+            CPIEdge e = residentEdge(edgeIds.handle(id));
+            if (null == e)
+                continue;
+            CPIVertex outV = vertexStore.get(e.outVertex);
+            if (null != outV) {
+                outV.removeEdge(e.handle, e.label);
+                vertexStore.reweigh(outV);
+            }
+            CPIVertex inV = vertexStore.get(e.inVertex);
+            if (null != inV) {
+                inV.removeEdge(e.handle, e.label);
+                vertexStore.reweigh(inV);
+            }
+            eIndices.unindex(e);
+            edgeStore.remove(e.handle);
+            if (null != offHeap)
+                offHeap.dropEdge(e.handle);
+        }
+        for (String id : cs.removedVertices()) {
+            CPIVertex v = vertexStore.get(vertexIds.handle(id));
+            if (null == v)
+                continue;
+            vIndices.unindex(v);
+            vertexStore.remove(v.handle);
+        }
+        for (String id : cs.addedVertices()) {
+            CPIVertex v = new CPIVertex(vertexIds.intern(id), id);
+            v.properties.put(ID, id);
+            rawPut(v);
+        }
+        for (ChangeSet.EdgeSpec es : cs.addedEdges().values()) {
+            CPIEdge e = new CPIEdge(edgeIds.intern(es.id), es.id,
+                    vertexIds.intern(es.outVertexId), vertexIds.intern(es.inVertexId), es.label);
+            e.properties.put(ID, es.id);
+            rawPut(e);
+        }
+        for (Map.Entry<String, Map<String, Object>> me : cs.vProperties().entrySet()) {
+            CPIVertex v = vertexStore.get(vertexIds.handle(me.getKey()));
+            if (null == v)
+                continue;
+            vIndices.unindex(v);
+            rawProperties(v, me.getValue());
+            vertexStore.reweigh(v);
+            vIndices.index(v);
+        }
+        for (Map.Entry<String, Map<String, Object>> me : cs.eProperties().entrySet()) {
+            CPIEdge e = residentEdge(edgeIds.handle(me.getKey()));
+            if (null == e)
+                continue;
+            if (null == edgeStore.get(e.handle)) {
+                // no longer bare
+                edgeStore.put(e);
+                offHeap.dropEdge(e.handle);
+            }
+            eIndices.unindex(e);
+            rawProperties(e, me.getValue());
+            edgeStore.reweigh(e);
+            eIndices.index(e);
+        }
+    }
+
+    private static void rawProperties(CPIElementProxy.CPIElement impl, Map<String, Object> properties) {
+        for (Map.Entry<String, Object> pe : properties.entrySet()) {
+            if (ChangeSet.REMOVED == pe.getValue())
+                impl.properties.remove(pe.getKey());
+            else
+                impl.properties.put(pe.getKey(), pe.getValue());
+        }
+    }
+
+    /**
+     * Writes the committed state of the graph to a binary snapshot file that
+     * CPIGraphManager can warm start from. Journal segments after this point are
+     * kept, so the snapshot can be caught up.
+     */
+    public void snapshot(File file) throws IOException {
+        snapshot(file, false);
+    }
+
+    // a clean snapshot is taken after the write-behind has drained, at shutdown
+    void snapshot(File file, boolean clean) throws IOException {
+        CPITransaction at = pin();
+        try {
+            GraphSnapshot.write(this, at.snapshot, new GraphSnapshot.Header(at.seq, clean), file);
+        } finally {
+            unpin(at);
+        }
+        persister.retainAfter(at.seq);
     }
 
     // =================================
     @Override
     public Vertex addVertex(Object id_) {
         String id = CPIGraphManager.vertexId(id_);
-        CPIVertex impl = new CPIVertex(id);
-        mutatedVertices.put(id, impl);
+        CPITransaction tx = tx();
+        CPIVertex impl = new CPIVertex(vertexIds.intern(id, tx.serial), id);
+        tx.mutatedVertices.put(impl.handle, impl);
+        tx.writes++;
         impl.properties.put(ID, id);
 
-        persister.addVertex(id);
+        tx.changes.addVertex(id);
 
-        return new CPIVertexProxy(id, this);
+        return vertexProxy(impl.handle, id);
     }
 
     @Override
     public Vertex getVertex(Object id) {
         if (null == id)
             throw com.tinkerpop.blueprints.util.ExceptionFactory.vertexIdCanNotBeNull();
-        if (deletedVertices.contains(id.toString()))
+        String sid = id.toString();
+        // ids that were never seen don't get a handle
+        int h = vertexIds.handle(sid);
+        if (-1 == h)
             return null;
-        if (mutatedVertices.containsKey(id.toString())
-                || (null != vertexCache.getIfPresent(id.toString())))
-            return new CPIVertexProxy(id.toString(), this);
+        CPITransaction tx = tx();
+        if (tx.deletedVertices.containsKey(h))
+            return null;
+        if (tx.mutatedVertices.containsKey(h)
+                || (null != visible(committedVertex(h), tx.snapshot)))
+            return vertexProxy(h, sid);
         return null;
     }
 
@@ -209,71 +806,121 @@ public class CPIGraph implements KeyIndexableGraph, TransactionalGraph {
         for (Edge e : vertex.getEdges(Direction.BOTH))
             removeEdge(e);
 
-        String id = vertex.getId().toString();
-        mutatedVertices.remove(id);
-        deletedVertices.add(id);
+        CPIVertexProxy vp = (CPIVertexProxy) vertex;
+        CPITransaction tx = tx();
+        tx.mutatedVertices.remove(vp.handle);
+        tx.deletedVertices.put(vp.handle, visible(committedVertex(vp.handle), tx.snapshot));
+        tx.writes++;
 
-        persister.removeVertex(id);
+        tx.changes.removeVertex(vp.rawId());
     }
 
 
+    /**
+     * Streams the committed vertices this transaction sees, then the ones it has
+     * changed or added. The write set is copied when iteration starts (it's small),
+     * so a vertex the loop itself changes doesn't come up a second time; vertices
+     * the loop adds don't come up at all.
+     */
     @Override
     public Iterable<Vertex> getVertices() {
-        Set<String> s = FluentIterable.from(vertexCache.asMap().keySet())
-                .append(mutatedVertices.keySet())
-                .filter(not(in(deletedVertices)))
-                .toSet();
-        return FluentIterable.from(s)
-                .transform(CPIVertexProxy.MAKE(this))
-                .transform(CPIVertexProxy.DOWNCAST);
+        return new Iterable<Vertex>() {
+            @Override
+            public Iterator<Vertex> iterator() {
+                final CPITransaction tx = tx();
+                final Set<Integer> mine = ImmutableSet.copyOf(tx.mutatedVertices.keySet());
+                final Iterator<CPIVertex> committed = committedVertices(tx.snapshot).iterator();
+                final Iterator<Integer> changed = mine.iterator();
+                return new AbstractIterator<Vertex>() {
+                    @Override
+                    protected Vertex computeNext() {
+                        checkLive(tx);
+                        while (committed.hasNext()) {
+                            CPIVertex v = committed.next();
+                            if (!mine.contains(v.handle) && !tx.deletedVertices.containsKey(v.handle))
+                                return vertexProxy(v.handle, v.id);
+                        }
+                        while (changed.hasNext()) {
+                            int h = changed.next();
+                            if (!tx.deletedVertices.containsKey(h))
+                                return vertexProxy(h);
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+        };
     }
 
     @Override
     public Iterable<Vertex> getVertices(String key, Object value) {
-        if (vIndices.has(key)) {
-            return FluentIterable.from(vIndices.indexed(key, value))
-                    .transform(CPIVertexProxy.PROXY(this))
-                    .transform(CPIVertexProxy.DOWNCAST)
-                    .toList();
+        if (vIndices.ready(key)) {
+            List<Vertex> l = newArrayList();
+            for (CPIVertex v : visibleVertices(vIndices.indexed(key, value))) {
+                if (matches(v, key, value))
+                    l.add(vertexProxy(v.handle, v.id));
+            }
+            return l;
         }
         return new PropertyFilteredIterable<>(key, value, this.getVertices());
     }
 
+    /**
+     * @return the versions of the candidates this transaction sees, and of the
+     * vertices it has changed; an index covers what's committed, so a transaction's
+     * own changes are always checked
+     */
+    List<CPIVertex> visibleVertices(Set<Integer> committed) {
+        CPITransaction tx = tx();
+        List<CPIVertex> l = newArrayList();
+        for (int h : Sets.union(committed, tx.mutatedVertices.keySet())) {
+            if (tx.deletedVertices.containsKey(h))
+                continue;
+            CPIVertex v = tx.mutatedVertices.get(h);
+            if (null == v)
+                v = visible(committedVertex(h), tx.snapshot);
+            if (null != v)
+                l.add(v);
+        }
+        return l;
+    }
+
     @Override
     public Edge addEdge(Object id_, Vertex outVertex, Vertex inVertex, String label) {
         // TODO: assert non-null & cast-ability
         if (label == null)
             throw edgeLabelCanNotBeNull();
         String id = CPIGraphManager.edgeId(id_);
-        CPIEdge impl = new CPIEdge(id,
-                outVertex.getId().toString(),
-                inVertex.getId().toString(),
-                label);
-        mutatedEdges.put(id, impl);
-        impl.properties.put(ID, id);
-
         CPIVertexProxy oVP = (CPIVertexProxy) outVertex;
-        oVP.addOutEdge(id);
         CPIVertexProxy iVP = (CPIVertexProxy) inVertex;
-        iVP.addInEdge(id);
+        CPITransaction tx = tx();
+        CPIEdge impl = new CPIEdge(edgeIds.intern(id, tx.serial), id, oVP.handle, iVP.handle, label);
+        tx.mutatedEdges.put(impl.handle, impl);
+        tx.writes++;
+        impl.properties.put(ID, id);
 
-        CPIVertex oVImpl = mutableVertexImpl(outVertex.getId().toString());
-        CPIVertex iVImpl = mutableVertexImpl(inVertex.getId().toString());
+        oVP.addOutEdge(impl.handle, label);
+        iVP.addInEdge(impl.handle, label);
 
-        persister.addEdge(id, oVP.rawId(), iVP.rawId(), label);
+        tx.changes.addEdge(id, oVP.rawId(), iVP.rawId(), label);
 
-        return new CPIEdgeProxy(id, this);
+        return edgeProxy(impl.handle, id);
     }
 
     @Override
     public Edge getEdge(Object id) {
         if (null == id)
             throw com.tinkerpop.blueprints.util.ExceptionFactory.edgeIdCanNotBeNull();
-        if (deletedEdges.contains(id))
+        String sid = id.toString();
+        int h = edgeIds.handle(sid);
+        if (-1 == h)
             return null;
-        if (mutatedEdges.containsKey(id.toString())
-                || (null != edgeCache.getIfPresent(id.toString())))
-            return new CPIEdgeProxy(id.toString(), this);
+        CPITransaction tx = tx();
+        if (tx.deletedEdges.containsKey(h))
+            return null;
+        if (tx.mutatedEdges.containsKey(h)
+                || (null != visible(committedEdge(h), tx.snapshot)))
+            return edgeProxy(h, sid);
         return null;
     }
 
@@ -282,42 +929,89 @@ public class CPIGraph implements KeyIndexableGraph, TransactionalGraph {
         checkNotNull(edge);
 
         CPIEdgeProxy ep = (CPIEdgeProxy) edge;
-        String id = ep.rawId();
+        int h = ep.handle;
+        String label = ep.getLabel();
 
         CPIVertexProxy vOut = ep.outVertex();
-        vOut.removeEdge(id);
+        vOut.removeEdge(h, label);
 
         CPIVertexProxy vIn = ep.inVertex();
-        vIn.removeEdge(id);
+        vIn.removeEdge(h, label);
 
-        mutatedEdges.remove(id);
-        deletedEdges.add(id);
+        CPITransaction tx = tx();
+        tx.mutatedEdges.remove(h);
+        tx.deletedEdges.put(h, visible(committedEdge(h), tx.snapshot));
+        tx.writes++;
 
-        persister.removeEdge(id);
+        tx.changes.removeEdge(ep.rawId());
     }
 
+    // streams, as getVertices
     @Override
     public Iterable<Edge> getEdges() {
-        Set<String> s = FluentIterable.from(edgeCache.asMap().keySet())
-                .append(mutatedEdges.keySet())
-                .filter(not(in(deletedEdges)))
-                .toSet();
-        return FluentIterable.from(s)
-                .transform(CPIEdgeProxy.MAKE(this))
-                .transform(CPIEdgeProxy.DOWNCAST);
+        return new Iterable<Edge>() {
+            @Override
+            public Iterator<Edge> iterator() {
+                final CPITransaction tx = tx();
+                final Set<Integer> mine = ImmutableSet.copyOf(tx.mutatedEdges.keySet());
+                final Iterator<CPIEdge> committed = committedEdges(tx.snapshot).iterator();
+                final Iterator<Integer> changed = mine.iterator();
+                return new AbstractIterator<Edge>() {
+                    @Override
+                    protected Edge computeNext() {
+                        checkLive(tx);
+                        while (committed.hasNext()) {
+                            CPIEdge e = committed.next();
+                            if (!mine.contains(e.handle) && !tx.deletedEdges.containsKey(e.handle))
+                                return edgeProxy(e.handle, e.id);
+                        }
+                        while (changed.hasNext()) {
+                            int h = changed.next();
+                            if (!tx.deletedEdges.containsKey(h))
+                                return edgeProxy(h);
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+        };
     }
 
     @Override
     public Iterable<Edge> getEdges(String key, Object value) {
-        if (eIndices.has(key)) {
-            return FluentIterable.from(eIndices.indexed(key, value))
-                    .transform(CPIEdgeProxy.PROXY(this))
-                    .transform(CPIEdgeProxy.DOWNCAST)
-                    .toList();
+        if (eIndices.ready(key)) {
+            List<Edge> l = newArrayList();
+            for (CPIEdge e : visibleEdges(eIndices.indexed(key, value))) {
+                if (matches(e, key, value))
+                    l.add(edgeProxy(e.handle, e.id));
+            }
+            return l;
         }
         return new PropertyFilteredIterable<>(key, value, this.getEdges());
     }
 
+    // as visibleVertices
+    List<CPIEdge> visibleEdges(Set<Integer> committed) {
+        CPITransaction tx = tx();
+        List<CPIEdge> l = newArrayList();
+        for (int h : Sets.union(committed, tx.mutatedEdges.keySet())) {
+            if (tx.deletedEdges.containsKey(h))
+                continue;
+            CPIEdge e = tx.mutatedEdges.get(h);
+            if (null == e)
+                e = visible(committedEdge(h), tx.snapshot);
+            if (null != e)
+                l.add(e);
+        }
+        return l;
+    }
+
+    // index entries can be stale, or ahead of the snapshot
+    private static boolean matches(CPIElementProxy.CPIElement impl, String key, Object value) {
+        Object v = impl.properties.get(key);
+        return null != v && v.equals(value);
+    }
+
     // =================================
     @Override
     public String toString() {
@@ -335,45 +1029,282 @@ public class CPIGraph implements KeyIndexableGraph, TransactionalGraph {
     public void stopTransaction(Conclusion conclusion) {
     }
 
-    private void reset() {
-        mutatedEdges.clear();
-        mutatedVertices.clear();
-        deletedVertices.clear();
-        deletedEdges.clear();
-        // TODO: ditch incremental indices?
+    /**
+     * Commits this thread's transaction. Changes made to an element since the
+     * transaction started are merged when they don't overlap: adjacency always merges,
+     * properties merge key by key. Anything else throws CPIConflictException, and
+     * the transaction is rolled back.
+     */
+    @Override
+    public void commit() {
+        CPITransaction tx = current.get();
+        if (null != tx && !tx.touch())
+            tx = expired(tx);
+        if (null == tx)
+            return;
+        if (!tx.changes.isEmpty()) {
+            long seq;
+            commitLock.lock();
+            try {
+                long version = committedVersion + 1;
+                List<CPIElementProxy.CPIElement> installs = merge(tx, version);
+                Unpersisted u = unpersisted(installs);
+                // before anything is installed, so a full write-behind queue leaves this transaction intact
+                try {
+                    seq = persister.put(tx.changes);
+                } catch (RuntimeException e) {
+                    synchronized (unpersisted) {
+                        unpersisted.removeLastOccurrence(u);
+                    }
+                    release(u);
+                    throw e;
+                }
+                for (CPIElementProxy.CPIElement impl : installs) {
+                    if (impl instanceof CPIVertex)
+                        vertexStore.put((CPIVertex) impl);
+                    else
+                        edgeStore.put((CPIEdge) impl);
+                    if (null != impl.prev || impl.removed)
+                        retired.add(impl);
+                }
+                // entries for the values these had before are dropped when they're pruned
+                for (CPIElementProxy.CPIElement impl : installs) {
+                    if (impl.removed)
+                        continue;
+                    if (impl instanceof CPIVertex)
+                        vIndices.index((CPIVertex) impl);
+                    else
+                        eIndices.index((CPIEdge) impl);
+                }
+                synchronized (active) {
+                    committedVersion = version;
+                    committedSeq = seq;
+                }
+            } catch (CPIConflictException e) {
+                end(tx, false);
+                throw e;
+            } finally {
+                commitLock.unlock();
+            }
+            // outside the lock, so concurrent commits share a journal force
+            persister.sync(seq);
+        }
+        end(tx, true);
+        evict();
     }
 
     @Override
-    public void commit() {
-        edgeCache.invalidateAll(deletedEdges);
-        vertexCache.invalidateAll(deletedVertices);
+    public void rollback() {
+        CPITransaction tx = current.get();
+        if (null != tx)
+            end(tx, false);
+    }
 
-        vertexCache.putAll(mutatedVertices);
-        edgeCache.putAll(mutatedEdges);
-        // TODO: incremental indices?
+    private void end(CPITransaction tx, boolean committed) {
+        current.remove();
+        tx.close();
+        abandoned(tx, committed);
+        synchronized (active) {
+            // unless it expired, and was unpinned then
+            if (open.remove(tx))
+                active.remove(tx.snapshot);
+        }
+        // readers never wait on a commit; if one is running, it prunes
+        if (commitLock.tryLock()) {
+            try {
+                prune();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
 
-        reset();
-        persister.commit();
+    // the handles of elements the transaction added that weren't committed, which
+    // nothing may refer to any more
+    private void abandoned(CPITransaction tx, boolean committed) {
+        if (!committed) {
+            for (CPIVertex v : tx.mutatedVertices.values()) {
+                if (null == v.prev)
+                    unreferencedVertices.add(v.handle);
+            }
+            for (CPIEdge e : tx.mutatedEdges.values()) {
+                if (null == e.prev)
+                    unreferencedEdges.add(e.handle);
+            }
+        }
+        // added, then removed
+        for (Map.Entry<Integer, CPIVertex> me : tx.deletedVertices.entrySet()) {
+            if (null == me.getValue())
+                unreferencedVertices.add(me.getKey());
+        }
+        for (Map.Entry<Integer, CPIEdge> me : tx.deletedEdges.entrySet()) {
+            if (null == me.getValue())
+                unreferencedEdges.add(me.getKey());
+        }
     }
 
-    @Override
-    public void rollback() {
-        reset();
-        persister.rollback();
+    /**
+     * Releases the handles of elements that are gone, for reuse. One that's in use
+     * again is dropped; one that a transaction still open may refer to, or whose
+     * removal the SoR doesn't have yet, is tried again at the next prune.
+     */
+    private void release(Queue<Integer> unreferenced, IdInterner ids, ElementStore<?> store,
+                         Multiset<Integer> unpersisted, boolean edges, long before) {
+        for (int n = unreferenced.size(); n > 0; n--) {
+            Integer h = unreferenced.poll();
+            if (null == h)
+                return;
+            if (null != store.get(h) || store.evicted(h) || (edges && null != offHeap && offHeap.hasEdge(h)))
+                continue;
+            if (unpersisted.contains(h) || !ids.release(h, before))
+                unreferenced.add(h);
+        }
+    }
+
+    // =================================
+    // under the commit lock. Builds the impls to install, without touching the caches.
+    private List<CPIElementProxy.CPIElement> merge(CPITransaction tx, long version) {
+        List<CPIElementProxy.CPIElement> installs = newArrayList();
+        for (CPIEdge base : tx.deletedEdges.values()) {
+            // null if it was added in this transaction
+            if (null != base)
+                installs.add(tombstone(new CPIEdge(base), committedEdge(base.handle), tx, version));
+        }
+        for (CPIVertex base : tx.deletedVertices.values()) {
+            if (null != base)
+                installs.add(tombstone(new CPIVertex(base), committedVertex(base.handle), tx, version));
+        }
+        for (CPIVertex mine : tx.mutatedVertices.values()) {
+            CPIVertex latest = committedVertex(mine.handle);
+            CPIVertex merged = mine;
+            if (changedSince(latest, mine, tx)) {
+                CPIVertex base = (CPIVertex) mine.prev;
+                merged = new CPIVertex(latest);
+                mergeProperties(base, mine, merged);
+                // the latest adjacency, plus the edges this transaction added, less the ones it removed
+                merged.outEdges = mine.outEdges.rebase(base.outEdges, latest.outEdges);
+                merged.inEdges = mine.inEdges.rebase(base.inEdges, latest.inEdges);
+            }
+            installs.add(versioned(merged, latest, version));
+        }
+        for (CPIEdge mine : tx.mutatedEdges.values()) {
+            CPIEdge latest = committedEdge(mine.handle);
+            CPIEdge merged = mine;
+            if (changedSince(latest, mine, tx)) {
+                merged = new CPIEdge(latest);
+                mergeProperties(mine.prev, mine, merged);
+            }
+            installs.add(versioned(merged, latest, version));
+        }
+        return installs;
+    }
+
+    /**
+     * @return whether another transaction has committed to the element since this
+     * one started
+     * @throws CPIConflictException if that change can't be merged with this one
+     */
+    private boolean changedSince(CPIElementProxy.CPIElement latest, CPIElementProxy.CPIElement mine,
+                                 CPITransaction tx) {
+        if (null == latest ? null == mine.prev : latest.version <= tx.snapshot)
+            return false;
+        // removed, added twice, or evicted out from under us
+        if (null == latest || latest.removed || null == mine.prev)
+            throw new CPIConflictException(graphId, mine.id);
+        return true;
+    }
+
+    private <T extends CPIElementProxy.CPIElement> T tombstone(T stone, T latest, CPITransaction tx, long version) {
+        if (null != latest && latest.version > tx.snapshot)
+            throw new CPIConflictException(graphId, stone.id);
+        stone.removed = true;
+        return versioned(stone, latest, version);
+    }
+
+    private static <T extends CPIElementProxy.CPIElement> T versioned(T impl, T latest, long version) {
+        impl.version = version;
+        impl.prev = latest;
+        return impl;
+    }
+
+    // applies the keys this transaction changed to a copy of the latest committed impl
+    private void mergeProperties(CPIElementProxy.CPIElement base, CPIElementProxy.CPIElement mine,
+                                 CPIElementProxy.CPIElement merged) {
+        for (String key : Sets.union(base.properties.keySet(), mine.properties.keySet()).immutableCopy()) {
+            Object was = base.properties.get(key);
+            Object ours = mine.properties.get(key);
+            if (Objects.equal(was, ours))
+                continue;
+            if (!Objects.equal(was, merged.properties.get(key)))
+                throw new CPIConflictException(graphId, mine.id + "." + key);
+            if (null == ours)
+                merged.properties.remove(key);
+            else
+                merged.properties.put(key, ours);
+        }
+    }
+
+    // under the commit lock. Drops versions no transaction can see any more.
+    private void prune() {
+        long oldest = oldestSnapshot();
+        while (!retired.isEmpty() && retired.peek().version <= oldest) {
+            CPIElementProxy.CPIElement impl = retired.poll();
+            CPIElementProxy.CPIElement stale = impl.prev;
+            impl.prev = null;
+            if (impl instanceof CPIVertex) {
+                CPIVertex latest = vertexStore.get(impl.handle);
+                if (null != stale)
+                    vIndices.retire((CPIVertex) stale, latest);
+                if (impl.removed) {
+                    vIndices.retire((CPIVertex) impl, latest);
+                    vertexStore.remove((CPIVertex) impl);
+                    unreferencedVertices.add(impl.handle);
+                }
+            } else {
+                // from an edge's first commit its record is shadowed; it goes before the store entry does
+                if (null != offHeap)
+                    offHeap.dropEdge(impl.handle);
+                CPIEdge latest = edgeStore.get(impl.handle);
+                if (null != stale)
+                    eIndices.retire((CPIEdge) stale, latest);
+                if (impl.removed) {
+                    eIndices.retire((CPIEdge) impl, latest);
+                    edgeStore.remove((CPIEdge) impl);
+                    unreferencedEdges.add(impl.handle);
+                }
+            }
+        }
+        long before = oldestSerial();
+        release(unreferencedVertices, vertexIds, vertexStore, unpersistedVertices, false, before);
+        release(unreferencedEdges, edgeIds, edgeStore, unpersistedEdges, true, before);
     }
 
     // =======================================
     CPIIndex<CPIVertex> vIndices = new CPIIndex<>();
     CPIIndex<CPIEdge> eIndices = new CPIIndex<>();
 
+    // Blueprints declares indexParameters raw
+    @SuppressWarnings("rawtypes")
     @Override
     public <T extends Element> void createKeyIndex(String key, Class<T> elementClass, Parameter... indexParameters) {
         checkNotNull(elementClass);
 
+        // built in the background; lookups scan until it's ready
+        boolean sorted = CPIIndex.sorted(indexParameters);
         if (Vertex.class.isAssignableFrom(elementClass)) {
-            vIndices.addIndex(key);
+            IndexBuilder.build(graphId, key, sorted, vIndices, vertexIds, new Function<Integer, CPIVertex>() {
+                @Override
+                public CPIVertex apply(Integer h) {
+                    return scannedVertex.apply(h);
+                }
+            }, commitLock);
         } else if (Edge.class.isAssignableFrom(elementClass)) {
-            eIndices.addIndex(key);
+            IndexBuilder.build(graphId, key, sorted, eIndices, edgeIds, new Function<Integer, CPIEdge>() {
+                @Override
+                public CPIEdge apply(Integer h) {
+                    return scannedEdge.apply(h);
+                }
+            }, commitLock);
         } else {
             throw ExceptionFactory.classIsNotIndexable(elementClass);
         }
@@ -408,7 +1339,7 @@ public class CPIGraph implements KeyIndexableGraph, TransactionalGraph {
     // =======================================
     @Override
     public GraphQuery query() {
-        return new DefaultGraphQuery(this);
+        return new CPIGraphQuery(this);
     }
 
     @Override
@@ -419,26 +1350,100 @@ public class CPIGraph implements KeyIndexableGraph, TransactionalGraph {
 //        manager.commit();
         log.info("{} shutdown", this);
         persister.shutdown();
+        releaseCache();
+    }
+    public WriteBehindStats getWriteBehindStats() {
+        return persister.getStats();
     }
-    void waitShutdown() {
+
+    // whether everything committed was persisted
+    boolean waitShutdown() {
         log.info("waitShutdown");
-        persister.await();
+        return persister.await();
     }
 
     // =======================================
     private final String graphId;
     final CPIWriteBehind persister;
 
-    final Cache<String, CPIVertex> vertexCache = CacheBuilder.newBuilder()
-            .maximumSize(100000)
-            .build();
-    final Cache<String, CPIEdge> edgeCache = CacheBuilder.newBuilder()
-            .maximumSize(100000)
-            .build();
-
-    Map<String, CPIVertex> mutatedVertices = newHashMap();
-    Set<String> deletedVertices = newHashSet();
-    Map<String, CPIEdge> mutatedEdges = newHashMap();
-    Set<String> deletedEdges = newHashSet();
+    // elements are addressed by handle everywhere past the Blueprints API
+    final IdInterner vertexIds = new IdInterner();
+    final IdInterner edgeIds = new IdInterner();
+    final ElementStore<CPIVertex> vertexStore = new ElementStore<>();
+    final ElementStore<CPIEdge> edgeStore = new ElementStore<>();
+    private final ProxyPool<CPIVertexProxy> vertexProxies = new ProxyPool<>();
+    private final ProxyPool<CPIEdgeProxy> edgeProxies = new ProxyPool<>();
+    // where the SoR has its own ids for elements, so the write-behind needn't query for them
+    final NativeIds vertexNatives = new NativeIds();
+    final NativeIds edgeNatives = new NativeIds();
+    private final OffHeapStore offHeap;
+    private volatile long cacheBytes = DEFAULT_CACHE_BYTES;
+    // what cacheBytes is reserved out of; null for none
+    private CacheBudget budget = null;
+    // where each sweep left off; under the commit lock
+    private int vertexHand = 0;
+    private int edgeHand = 0;
+    private final Striped<Lock> fetching = Striped.lock(64);
+    // what each commit the write-behind holds installed, oldest first, and how many of
+    // those commits each handle is in; an impl isn't evicted until the SoR has it
+    private final Deque<Unpersisted> unpersisted = newArrayDeque();
+    private final Multiset<Integer> unpersistedVertices = ConcurrentHashMultiset.create();
+    private final Multiset<Integer> unpersistedEdges = ConcurrentHashMultiset.create();
+    private final Function<Integer, CPIVertex> fetchVertex = new Function<Integer, CPIVertex>() {
+        @Override
+        public CPIVertex apply(Integer h) {
+            CPIVertex v = persister.fetchVertex(CPIGraph.this, vertexIds.id(h));
+            if (null == v) {
+                log.warn("{} evicted vertex {} isn't in the SoR", graphId, vertexIds.id(h));
+                vertexStore.forget(h);
+            }
+            return v;
+        }
+    };
+    private final Function<Integer, CPIEdge> fetchEdge = new Function<Integer, CPIEdge>() {
+        @Override
+        public CPIEdge apply(Integer h) {
+            CPIEdge e = persister.fetchEdge(CPIGraph.this, edgeIds.id(h));
+            if (null == e) {
+                log.warn("{} evicted edge {} isn't in the SoR", graphId, edgeIds.id(h));
+                edgeStore.forget(h);
+            }
+            return e;
+        }
+    };
+    // the latest committed impls, for scans, which fetch evicted ones without putting them back
+    private final Function<Integer, CPIVertex> scannedVertex = new Function<Integer, CPIVertex>() {
+        @Override
+        public CPIVertex apply(Integer h) {
+            CPIVertex v = vertexStore.get(h);
+            if (null != v || !vertexStore.evicted(h))
+                return v;
+            return refetch(vertexStore, h, false, fetchVertex);
+        }
+    };
+    private final Function<Integer, CPIEdge> scannedEdge = new Function<Integer, CPIEdge>() {
+        @Override
+        public CPIEdge apply(Integer h) {
+            CPIEdge e = residentEdge(h);
+            if (null != e || !edgeStore.evicted(h))
+                return e;
+            return refetch(edgeStore, h, false, fetchEdge);
+        }
+    };
+
+    private final ThreadLocal<CPITransaction> current = new ThreadLocal<>();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    // guards the committed version, and the snapshots transactions are reading at
+    private final TreeMultiset<Long> active = TreeMultiset.create();
+    // the threads' own transactions, which expire when left idle
+    private final Set<CPITransaction> open = newHashSet();
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private volatile long committedVersion = 0;
+    private long committedSeq;
+    // committed impls whose older versions may still be read, in version order
+    private final Queue<CPIElementProxy.CPIElement> retired = newArrayDeque();
+    // handles of elements that are gone, to be released once nothing refers to them
+    private final Queue<Integer> unreferencedVertices = new ConcurrentLinkedQueue<>();
+    private final Queue<Integer> unreferencedEdges = new ConcurrentLinkedQueue<>();
 
 }
@@ -1,11 +1,14 @@
 package edu.utexas.arlut.ciads.cpiGraph;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.*;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.tinkerpop.blueprints.*;
+import edu.utexas.arlut.ciads.cacheGraph.CacheBudget;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -23,36 +26,144 @@ public class CPIGraphManager<T extends KeyIndexableGraph & TransactionalGraph> {
     }
 
     public CPIGraph create(String graphId) {
-        TransactionalGraph tg = buildSOR(graphId);
-        // TODO: load
-        CPIWriteBehind wb = new CPIWriteBehind(tg);
-        CPIGraph g = new CPIGraph(graphId, wb);
-        load(g);
+        Persister persister = buildPersister(graphId);
+        File snapshot = snapshotFile(graphId);
+        GraphSnapshot.Header header = snapshotHeader(snapshot);
+        CPIWriteBehind wb = buildWriteBehind(graphId, persister, (null == header) ? -1 : header.seq);
+        CPIGraph g = warmStart(graphId, wb, snapshot, header);
+        if (null == g) {
+            // the snapshot isn't used, so the journal needn't keep what would catch it up
+            wb.retainAfter(Long.MAX_VALUE);
+            g = new CPIGraph(graphId, wb, offHeapStore(graphId));
+            g.setCacheBytes(cacheBytes, cacheBudget);
+            persister.load(g, loaderThreads);
+            g.offload();
+            g.evict();
+        }
         graphs.put(graphId, g);
         return g;
     }
     public CPIGraph createFrom(CPIGraph src, String graphId) {
-        TransactionalGraph tg = buildSOR(graphId);
         // TODO: load?
-        CPIWriteBehind wb = new CPIWriteBehind(tg);
+        CPIWriteBehind wb = buildWriteBehind(graphId, buildPersister(graphId), -1);
         CPIGraph g = new CPIGraph(src, graphId, wb);
+        g.setCacheBytes(cacheBytes, cacheBudget);
         graphs.put(graphId, g);
         return g;
     }
 
+    private Persister buildPersister(String graphId) {
+        if (null == storeDir)
+            return new BlueprintsPersister<>(graphId, buildSOR(graphId), writeBehindConfig.getAppliers());
+        try {
+            return new SegmentPersister(new File(storeDir, graphId));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open segment store for " + graphId, e);
+        }
+    }
+
     private T buildSOR(String graphId) {
         T t = sorBuilder.build(graphId);
         t.createKeyIndex(CPIGraph.ID, Vertex.class);
         t.createKeyIndex(CPIGraph.ID, Edge.class);
+        // a new index on a populated SoR is built in this thread's transaction, which
+        // holds locks on what it indexed until it's committed
+        t.commit();
         return t;
     }
 
+    // the SoR is caught up with the journal before anything reads from it. Journal
+    // records after a snapshot are kept, so the snapshot can be caught up too.
+    private CPIWriteBehind buildWriteBehind(String graphId, Persister persister, long snapshotSeq) {
+        try {
+            CommitJournal journal = (null == journalDir) ? null
+                    : new CommitJournal(new File(journalDir, graphId), CommitJournal.DEFAULT_SEGMENT_SIZE);
+            if (null != journal && snapshotSeq >= 0)
+                journal.retainAfter(snapshotSeq);
+            CPIWriteBehind wb = new CPIWriteBehind(graphId, persister, writeBehindConfig, journal);
+            wb.recover();
+            return wb;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open commit journal for " + graphId, e);
+        }
+    }
+
+    private OffHeapStore offHeapStore(String graphId) {
+        if (!offHeap)
+            return null;
+        File dir = (null == offHeapDir) ? null : new File(offHeapDir, graphId);
+        return new OffHeapStore(dir, OffHeapStore.DEFAULT_SEGMENT_SIZE);
+    }
+
+    private File snapshotFile(String graphId) {
+        return (null == snapshotDir) ? null : new File(snapshotDir, graphId + ".snapshot");
+    }
+
+    private static GraphSnapshot.Header snapshotHeader(File snapshot) {
+        if (null == snapshot || !snapshot.exists())
+            return null;
+        try {
+            return GraphSnapshot.readHeader(snapshot);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable snapshot {}", snapshot, e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds a graph from its snapshot, caught up from the journal. Without a journal,
+     * only a snapshot from a clean shutdown is any good, and only until the next commit.
+     *
+     * @return null if there's no usable snapshot
+     */
+    private CPIGraph warmStart(String graphId, CPIWriteBehind wb, File snapshot, GraphSnapshot.Header header) {
+        if (null == header || (null == journalDir && !header.clean))
+            return null;
+        CPIGraph g = new CPIGraph(graphId, wb, offHeapStore(graphId));
+        g.setCacheBytes(cacheBytes, cacheBudget);
+        try {
+            GraphSnapshot.read(g, snapshot);
+            if (!wb.catchUp(g, header.seq)) {
+                g.releaseCache();
+                return null;
+            }
+            g.offload();
+            g.evict();
+            if (null == journalDir && !snapshot.delete())
+                log.warn("Unable to delete used snapshot {}", snapshot);
+            return g;
+        } catch (IOException e) {
+            g.releaseCache();
+            log.warn("Unable to warm start {} from {}", graphId, snapshot, e);
+            return null;
+        }
+    }
+
+    /**
+     * Snapshots every graph into the snapshot directory.
+     */
+    public void snapshot() throws IOException {
+        for (CPIGraph g : graphs.asMap().values())
+            g.snapshot(snapshotFile(g.getId()));
+    }
+
     public void shutdown() {
         log.info("CPIManager shutdown");
         for (CPIGraph g : graphs.asMap().values())
             g.shutdown();
-        for (CPIGraph g : graphs.asMap().values())
-            g.waitShutdown();
+        for (CPIGraph g : graphs.asMap().values()) {
+            boolean persisted = g.waitShutdown();
+            if (null == snapshotDir)
+                continue;
+            // a graph whose write-behind didn't finish may be ahead of its SoR
+            if (!persisted)
+                log.warn("{} write-behind didn't finish, its snapshot isn't clean", g.getId());
+            try {
+                g.snapshot(snapshotFile(g.getId()), persisted);
+            } catch (IOException e) {
+                log.error("Unable to snapshot {} at shutdown", g.getId(), e);
+            }
+        }
     }
 
     public CPIGraph getGraph(final String graphId) {
@@ -94,24 +205,49 @@ public class CPIGraphManager<T extends KeyIndexableGraph & TransactionalGraph> {
 //                : idx;
 //    }
 
-    private void load(CPIGraph g) {
-        // load up from system of record
-//        for (Vertex v : vIndex.buildSOR(g.getId(), TRUE))
-//            g.rawAdd(v);
-//        for (Edge e : eIndex.buildSOR(g.getId(), TRUE))
-//            g.rawAdd(e);
-    }
-
     // =================================
 //    static final String V_PARTITION_IDX = "partitionV";
 //    static final String E_PARTITION_IDX = "partitionE";
 //    private final Index<Vertex> vIndex;
 //    private final Index<Edge> eIndex;
 
+    // these apply to graphs created after they're set
+    // graphs are persisted as append-only segments under storeDir/graphId, instead
+    // of to the SoR; null for the SoR
+    @Setter
+    private File storeDir = null;
+    @Setter
+    private WriteBehindConfig writeBehindConfig = WriteBehindConfig.DEFAULT;
+    // commits are journaled under journalDir/graphId; null for no journal
+    @Setter
+    private File journalDir = null;
+    // graphs are snapshotted here at shutdown, and warm started from here; null for none
+    @Setter
+    private File snapshotDir = null;
+    // loaded adjacency and bare edges are kept off heap, in direct buffers, or mapped
+    // from scratch files under offHeapDir/graphId if it's set. Element ids stay on heap
+    // either way, with the tables that intern them: about 70 bytes per vertex and per
+    // edge, plus two per character of its id, for every element the graph has handed
+    // out a handle to, so that's what bounds a graph's size on heap
+    @Setter
+    private boolean offHeap = false;
+    @Setter
+    private File offHeapDir = null;
+    // estimated bytes of elements each graph keeps in memory where it can fetch the
+    // rest from the SoR, reserved out of cacheBudget, if it's set, which the graphs
+    // share; a graph is refused if the budget hasn't enough left
+    @Setter
+    private long cacheBytes = CPIGraph.DEFAULT_CACHE_BYTES;
+    @Setter
+    private CacheBudget cacheBudget = null;
+    @Setter
+    private int loaderThreads = Runtime.getRuntime().availableProcessors();
+
+    // set here too, so graphs built without a manager can make ids
     @Setter
-    static IdFactory vertexIdFactory;
+    static IdFactory vertexIdFactory = new IdFactory.DefaultIdFactory();
     @Setter
-    static IdFactory edgeIdFactory;
+    static IdFactory edgeIdFactory = new IdFactory.DefaultIdFactory();
 
     private Cache<String, CPIGraph> graphs = CacheBuilder.newBuilder()
             .maximumSize(100)
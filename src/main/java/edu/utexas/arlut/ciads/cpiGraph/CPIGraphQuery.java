@@ -0,0 +1,184 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.tinkerpop.blueprints.Compare.EQUAL;
+import static com.tinkerpop.blueprints.Compare.GREATER_THAN;
+import static com.tinkerpop.blueprints.Compare.GREATER_THAN_EQUAL;
+import static com.tinkerpop.blueprints.Compare.LESS_THAN;
+import static com.tinkerpop.blueprints.Compare.LESS_THAN_EQUAL;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.DefaultGraphQuery;
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIElementProxy.CPIElement;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+
+/**
+ * A GraphQuery that plans its conditions against the key indices: equalities on
+ * indexed keys, and bounds (has with a Compare, or interval) on keys with a sorted
+ * index, each give a list of candidates, and those are intersected smallest first.
+ * The candidates left are then checked against every condition, as DefaultGraphQuery
+ * checks all elements, up to the limit. A query no index helps with is left to
+ * DefaultGraphQuery.
+ * <p>
+ * The Compare constants are imported statically: inside a Query, the simple name
+ * Compare is the deprecated Query.Compare.
+ */
+class CPIGraphQuery extends DefaultGraphQuery {
+    CPIGraphQuery(CPIGraph g) {
+        super(g);
+        this.g = g;
+    }
+
+    @Override
+    public Iterable<Vertex> vertices() {
+        Set<Integer> candidates = candidates(g.vIndices);
+        if (null == candidates)
+            return super.vertices();
+        List<Vertex> l = newArrayList();
+        for (CPIVertex v : g.visibleVertices(candidates)) {
+            if (l.size() >= limit)
+                break;
+            if (legal(v))
+                l.add(g.vertexProxy(v.handle, v.id));
+        }
+        return l;
+    }
+
+    @Override
+    public Iterable<Edge> edges() {
+        Set<Integer> candidates = candidates(g.eIndices);
+        if (null == candidates)
+            return super.edges();
+        List<Edge> l = newArrayList();
+        for (CPIEdge e : g.visibleEdges(candidates)) {
+            if (l.size() >= limit)
+                break;
+            if (legal(e))
+                l.add(g.edgeProxy(e.handle, e.id));
+        }
+        return l;
+    }
+
+    // =================================
+    /**
+     * @return committed handles that may match, or null to scan. Each equality on an
+     * indexed key gives a posting list, and each key with bounds on a sorted index a
+     * range. The smallest list drives, and the others are only probed, so the cost
+     * is in the smallest list. Ranges have to be copied to be sized, so a range is
+     * only copied while it's smaller than the best list found so far.
+     */
+    private Set<Integer> candidates(CPIIndex<?> indices) {
+        List<Set<Integer>> postings = newArrayList();
+        Set<Integer> smallest = null;
+        for (HasContainer hc : hasContainers) {
+            if (EQUAL != hc.predicate || null == hc.value || !indices.ready(hc.key))
+                continue;
+            Set<Integer> p = indices.indexed(hc.key, hc.value);
+            postings.add(p);
+            if (null == smallest || p.size() < smallest.size())
+                smallest = p;
+        }
+        for (Range r : ranges(indices)) {
+            if (r.empty)
+                return Collections.emptySet();
+            int max = (null == smallest) ? Integer.MAX_VALUE : smallest.size() - 1;
+            Set<Integer> p = indices.range(r.key, r.from, r.fromInclusive, r.to, r.toInclusive, max);
+            if (null != p) {
+                postings.add(p);
+                smallest = p;
+            }
+        }
+        if (null == smallest)
+            return null;
+        Set<Integer> c = smallest;
+        for (Set<Integer> p : postings) {
+            if (p != smallest)
+                c = Sets.intersection(c, p);
+        }
+        return c;
+    }
+
+    // the tightest bounds on each key with a sorted index
+    private List<Range> ranges(CPIIndex<?> indices) {
+        Map<String, Range> ranges = newLinkedHashMap();
+        for (HasContainer hc : hasContainers) {
+            if (!bound(hc) || !indices.ready(hc.key) || !indices.sorted(hc.key))
+                continue;
+            Range r = ranges.get(hc.key);
+            if (null == r) {
+                r = new Range(hc.key);
+                ranges.put(hc.key, r);
+            }
+            r.add(hc);
+        }
+        return newArrayList(ranges.values());
+    }
+
+    private static boolean bound(HasContainer hc) {
+        return (hc.value instanceof Comparable)
+                && (GREATER_THAN == hc.predicate || GREATER_THAN_EQUAL == hc.predicate
+                || LESS_THAN == hc.predicate || LESS_THAN_EQUAL == hc.predicate);
+    }
+
+    private static final class Range {
+        Range(String key) {
+            this.key = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(HasContainer b) {
+            Object v = b.value;
+            Object other = (null != from) ? from : to;
+            // bounds of two classes can't both hold
+            if (null != other && other.getClass() != v.getClass()) {
+                empty = true;
+                return;
+            }
+            if (GREATER_THAN == b.predicate || GREATER_THAN_EQUAL == b.predicate) {
+                boolean inclusive = (GREATER_THAN_EQUAL == b.predicate);
+                int c = (null == from) ? 1 : ((Comparable<Object>) v).compareTo(from);
+                if (c > 0 || (0 == c && !inclusive)) {
+                    from = v;
+                    fromInclusive = inclusive;
+                }
+            } else {
+                boolean inclusive = (LESS_THAN_EQUAL == b.predicate);
+                int c = (null == to) ? -1 : ((Comparable<Object>) v).compareTo(to);
+                if (c < 0 || (0 == c && !inclusive)) {
+                    to = v;
+                    toInclusive = inclusive;
+                }
+            }
+        }
+
+        final String key;
+        Object from = null, to = null;
+        boolean fromInclusive = false, toInclusive = false;
+        boolean empty = false;
+    }
+
+    // as HasContainer.isLegal, without going through a proxy. A bound doesn't
+    // compare values of another class, which it would throw on, as the index doesn't
+    private boolean legal(CPIElement impl) {
+        for (HasContainer hc : hasContainers) {
+            Object value = impl.properties.get(hc.key);
+            if (bound(hc) && null != value && value.getClass() != hc.value.getClass())
+                return false;
+            if (!hc.predicate.evaluate(value, hc.value))
+                return false;
+        }
+        return true;
+    }
+
+    // =================================
+    private final CPIGraph g;
+}
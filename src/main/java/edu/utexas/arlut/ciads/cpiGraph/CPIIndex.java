@@ -1,19 +1,154 @@
 package edu.utexas.arlut.ciads.cpiGraph;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
+import com.google.common.base.Objects;
 import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Parameter;
 
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiFunction;
 
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newConcurrentMap;
 import static edu.utexas.arlut.ciads.cpiGraph.CPIElementProxy.CPIElement;
 
+/**
+ * Key indices over one kind of element, from property value to element handles.
+ * Handles outlive the versions of an element, so an entry is added as soon as a
+ * version with that value commits, and only dropped once no transaction can see a
+ * version that had it. Until then a lookup may return handles whose visible version
+ * has some other value; callers check.
+ * <p>
+ * An index added to a graph that's in use is built in the background (see
+ * IndexBuilder). Until it's ready, lookups on its key scan, and the handles commits
+ * and prunes touch are logged for the build to redo at the end.
+ * <p>
+ * Each index is a concurrent map from value to a concurrent set of handles. Lookups
+ * take no locks; changes to one value lock only that value's bin of the map, so
+ * that a set is never dropped for being empty while another change adds to it.
+ * <p>
+ * An index created with the parameter TYPE = SORTED also keeps its Comparable values
+ * in a skip list, for range lookups. Values are ordered as Compare orders them:
+ * naturally within a class, and a range only ever covers values of its bounds' class.
+ */
 public class CPIIndex<T extends CPIElement> {
+    public static final String TYPE = "type";
+    public static final String SORTED = "sorted";
+
+    // within a class, natural order; classes apart, by name
+    private static final Comparator<Object> ORDER = new Comparator<Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object a, Object b) {
+            if (a.getClass() != b.getClass())
+                return a.getClass().getName().compareTo(b.getClass().getName());
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+    };
+
+    static boolean sorted(Parameter<?, ?>... indexParameters) {
+        for (Parameter<?, ?> p : indexParameters) {
+            if (TYPE.equals(p.getKey()) && SORTED.equals(p.getValue()))
+                return true;
+        }
+        return false;
+    }
+
+    static final class Index {
+        Index(boolean ready, boolean sorted) {
+            this.ready = ready;
+            this.sorted = sorted ? new ConcurrentSkipListMap<Object, Set<Integer>>(ORDER) : null;
+        }
+
+        void put(Object value, final int handle) {
+            mapFor(value).compute(value, new BiFunction<Object, Set<Integer>, Set<Integer>>() {
+                @Override
+                public Set<Integer> apply(Object v, Set<Integer> handles) {
+                    if (null == handles)
+                        handles = ConcurrentHashMap.newKeySet();
+                    handles.add(handle);
+                    return handles;
+                }
+            });
+        }
+
+        void remove(Object value, final int handle) {
+            mapFor(value).computeIfPresent(value, new BiFunction<Object, Set<Integer>, Set<Integer>>() {
+                @Override
+                public Set<Integer> apply(Object v, Set<Integer> handles) {
+                    handles.remove(handle);
+                    return handles.isEmpty() ? null : handles;
+                }
+            });
+        }
+
+        // a live view; iterating it sees some or all of the changes made meanwhile
+        Set<Integer> get(Object value) {
+            Set<Integer> handles = mapFor(value).get(value);
+            return (null == handles) ? Collections.<Integer>emptySet() : Collections.unmodifiableSet(handles);
+        }
+
+        /**
+         * @return a copy of the handles with values between the bounds, of the class of
+         * the bounds; a null bound is open, but not both. null if there are more than max.
+         */
+        Set<Integer> range(Object from, boolean fromInclusive, Object to, boolean toInclusive, int max) {
+            Class<?> c = (null != from) ? from.getClass() : to.getClass();
+            if (null != from && null != to && (from.getClass() != to.getClass() || ORDER.compare(from, to) > 0))
+                return Collections.emptySet();
+            NavigableMap<Object, Set<Integer>> m = sorted;
+            if (null != from)
+                m = m.tailMap(from, fromInclusive);
+            if (null != to)
+                m = m.headMap(to, toInclusive);
+            // walk away from the bound, so other classes end the walk
+            if (null == from)
+                m = m.descendingMap();
+            Set<Integer> handles = Sets.newHashSet();
+            for (Map.Entry<Object, Set<Integer>> me : m.entrySet()) {
+                if (c != me.getKey().getClass())
+                    break;
+                handles.addAll(me.getValue());
+                if (handles.size() > max)
+                    return null;
+            }
+            return handles;
+        }
+
+        boolean sorted() {
+            return null != sorted;
+        }
+
+        int size() {
+            int n = 0;
+            for (Set<Integer> handles : entries.values())
+                n += handles.size();
+            if (null != sorted) {
+                for (Set<Integer> handles : sorted.values())
+                    n += handles.size();
+            }
+            return n;
+        }
+
+        private ConcurrentMap<Object, Set<Integer>> mapFor(Object value) {
+            return (null != sorted && value instanceof Comparable) ? sorted : entries;
+        }
+
+        private final ConcurrentMap<Object, Set<Integer>> entries = new ConcurrentHashMap<>();
+        // null unless the index is sorted; the values that aren't Comparable stay in entries
+        private final ConcurrentNavigableMap<Object, Set<Integer>> sorted;
+        volatile boolean ready;
+        // while building, the handles changed since the build started
+        final Set<Integer> delta = Sets.newConcurrentHashSet();
+        volatile ForkJoinTask<?> build = null;
+    }
 
     Set<String> keys() {
         return indices.keySet();
@@ -23,9 +158,41 @@ public class CPIIndex<T extends CPIElement> {
         return indices.containsKey(key);
     }
 
-    void addIndex(String key) {
-        if (!indices.containsKey(key))
-            indices.put(key, makeIndex());
+    boolean ready(String key) {
+        Index index = indices.get(key);
+        return null != index && index.ready;
+    }
+
+    boolean sorted(String key) {
+        Index index = indices.get(key);
+        return null != index && index.sorted();
+    }
+
+    // for an index on elements that aren't there yet
+    void addIndex(String key, boolean sorted) {
+        indices.putIfAbsent(key, new Index(true, sorted));
+    }
+
+    /**
+     * Under the commit lock, so that every commit after it logs what it changes.
+     *
+     * @return the new index, to be built and marked ready; null if there already is one
+     */
+    Index building(String key, boolean sorted) {
+        Index index = new Index(false, sorted);
+        return (null == indices.putIfAbsent(key, index)) ? index : null;
+    }
+
+    // a dropped index that was still building is discarded when the build finishes
+    boolean current(String key, Index index) {
+        return index == indices.get(key);
+    }
+
+    // waits for a background build of the key's index, if there is one
+    void await(String key) {
+        Index index = indices.get(key);
+        if (null != index && null != index.build)
+            index.build.join();
     }
 
     void dropIndex(String key) {
@@ -33,26 +200,58 @@ public class CPIIndex<T extends CPIElement> {
     }
 
     void index(T t) {
-        Set<String> pkeys = t.properties.keySet();
-        Set<String> indexedKeys = Sets.union(pkeys, keys());
-        for (String k : indexedKeys) {
-            indices.get(k).put(t.properties.get(k), t);
+        for (Map.Entry<String, Index> me : indices.entrySet()) {
+            Index index = me.getValue();
+            Object value = t.properties.get(me.getKey());
+            if (!index.ready)
+                index.delta.add(t.handle);
+            else if (null != value)
+                index.put(value, t.handle);
         }
     }
 
-    void index(String key, Object value, T t) {
-        if (indices.containsKey(key))
-            indices.get(key).put(value, t);
+    void unindex(T t) {
+        for (Map.Entry<String, Index> me : indices.entrySet()) {
+            Index index = me.getValue();
+            Object value = t.properties.get(me.getKey());
+            if (!index.ready)
+                index.delta.add(t.handle);
+            else if (null != value)
+                index.remove(value, t.handle);
+        }
+    }
+
+    /**
+     * Drops the entries for values a superseded version had that the latest
+     * committed version doesn't.
+     *
+     * @param latest null, or a tombstone, if the element is gone
+     */
+    void retire(T stale, T latest) {
+        for (Map.Entry<String, Index> me : indices.entrySet()) {
+            Index index = me.getValue();
+            Object value = stale.properties.get(me.getKey());
+            if (!index.ready) {
+                index.delta.add(stale.handle);
+                continue;
+            }
+            if (null == value)
+                continue;
+            Object current = (null == latest || latest.removed) ? null : latest.properties.get(me.getKey());
+            if (!Objects.equal(value, current))
+                index.remove(value, stale.handle);
+        }
     }
 
-    Collection<T> indexed(String key, Object value) {
+    // candidate handles
+    Set<Integer> indexed(String key, Object value) {
         return indices.get(key).get(value);
     }
 
-    private Multimap<Object, T> makeIndex() {
-        ListMultimap<Object, T> l = ArrayListMultimap.create();
-        return Multimaps.synchronizedListMultimap(l);
+    // candidate handles, for a ready sorted index; null if there are more than max
+    Set<Integer> range(String key, Object from, boolean fromInclusive, Object to, boolean toInclusive, int max) {
+        return indices.get(key).range(from, fromInclusive, to, toInclusive, max);
     }
 
-    final Map<String, Multimap<Object, T>> indices = newHashMap();
+    final ConcurrentMap<String, Index> indices = newConcurrentMap();
 }
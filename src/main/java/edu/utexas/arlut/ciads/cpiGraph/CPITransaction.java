@@ -0,0 +1,117 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+
+/**
+ * One thread's write set against a CPIGraph, and the committed version it reads at.
+ * Mutated impls are private copies; each remembers (as its prev) the committed impl
+ * it was copied from, so commit() can tell what changed underneath it. Removed
+ * elements map to the impl that was visible when they were removed, null if the
+ * element was added in this transaction.
+ */
+class CPITransaction {
+    private static final AtomicLong SERIALS = new AtomicLong();
+    private static final long EXPIRED = -1;
+    private static final long EXPIRING = -2;
+
+    CPITransaction(long snapshot, long seq) {
+        this.snapshot = snapshot;
+        this.seq = seq;
+    }
+
+    // the serial the next transaction will get
+    static long nextSerial() {
+        return SERIALS.get() + 1;
+    }
+
+    boolean isEmpty() {
+        return mutatedVertices.isEmpty() && mutatedEdges.isEmpty()
+                && deletedVertices.isEmpty() && deletedEdges.isEmpty()
+                && changes.isEmpty();
+    }
+
+    /**
+     * Notes that the transaction is in use. It only raises a flag for the prune sweep
+     * to sample, so once raised, this is two reads: no clock, no CAS.
+     *
+     * @return false if it has expired, and can't be used any more
+     */
+    boolean touch() {
+        if (!used)
+            used = true;
+        for (;;) {
+            long t = seen.get();
+            if (EXPIRING != t)
+                return EXPIRED != t;
+            // a sweep is deciding, and will see the flag
+            Thread.yield();
+        }
+    }
+
+    // once it's been committed or rolled back
+    void close() {
+        seen.set(EXPIRED);
+    }
+
+    /**
+     * Samples the flag touch() raises. If it's up, it's lowered, and the transaction
+     * was in use as of now; if not, the transaction is expired once it's gone unused
+     * for longer than the timeout. So expiry is as coarse as the sweeps, and never
+     * early. The flag is read again after the transaction is marked expiring, and a
+     * touch raises it before it checks that mark, so a touch and an expiry can't both
+     * succeed.
+     *
+     * @return whether this call expired it
+     */
+    boolean expire(long now, long timeoutMillis) {
+        long t = seen.get();
+        if (t < 0)
+            return false;
+        if (used) {
+            used = false;
+            seen.compareAndSet(t, now);
+            return false;
+        }
+        if (now - t <= timeoutMillis || !seen.compareAndSet(t, EXPIRING))
+            return false;
+        if (used) {
+            seen.set(t);
+            return false;
+        }
+        seen.set(EXPIRED);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "CPITransaction@" + snapshot + " " + changes;
+    }
+
+    // =================================
+    // orders transactions, for the handles they claim
+    final long serial = SERIALS.incrementAndGet();
+    final long snapshot;
+    // the journal sequence number of the snapshot's last commit
+    final long seq;
+    // by handle
+    final Map<Integer, CPIVertex> mutatedVertices = newHashMap();
+    final Map<Integer, CPIVertex> deletedVertices = newHashMap();
+    final Map<Integer, CPIEdge> mutatedEdges = newHashMap();
+    final Map<Integer, CPIEdge> deletedEdges = newHashMap();
+    // what goes to the write-behind
+    final ChangeSet changes = new ChangeSet();
+    // when a sweep last found the transaction in use, or it began; EXPIRED once it
+    // has been given up or has ended
+    private final AtomicLong seen = new AtomicLong(System.currentTimeMillis());
+    // whether it's been used since the last sweep
+    private volatile boolean used = false;
+    // bumped whenever an element is added to, copied into or removed in the write set,
+    // the only times what a handle resolves to can change
+    int writes = 0;
+}
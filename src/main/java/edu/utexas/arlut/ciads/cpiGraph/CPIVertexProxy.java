@@ -1,32 +1,19 @@
 package edu.utexas.arlut.ciads.cpiGraph;
 
-import static com.google.common.base.MoreObjects.firstNonNull;
-import static com.google.common.collect.Sets.newHashSet;
-import static com.tinkerpop.blueprints.Direction.IN;
-import static com.tinkerpop.blueprints.Direction.OUT;
-import static java.util.Arrays.asList;
-
-import java.util.*;
-
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.collect.FluentIterable;
-import com.google.common.collect.Iterables;
 import com.tinkerpop.blueprints.*;
-import com.tinkerpop.blueprints.util.DefaultVertexQuery;
 import com.tinkerpop.blueprints.util.StringFactory;
-import com.tinkerpop.blueprints.util.VerticesFromEdgesIterable;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class CPIVertexProxy extends CPIElementProxy implements Vertex {
-    public static Function<String, CPIVertexProxy> MAKE(final CPIGraph g) {
-        return new Function<String, CPIVertexProxy>() {
+    public static Function<Integer, CPIVertexProxy> MAKE(final CPIGraph g) {
+        return new Function<Integer, CPIVertexProxy>() {
             @Override
-            public CPIVertexProxy apply(String id) {
-                return new CPIVertexProxy(id, g);
+            public CPIVertexProxy apply(Integer handle) {
+                return g.vertexProxy(handle);
             }
         };
     }
@@ -34,7 +21,7 @@ public class CPIVertexProxy extends CPIElementProxy implements Vertex {
         return new Function<CPIVertex, CPIVertexProxy>() {
             @Override
             public CPIVertexProxy apply(CPIVertex v) {
-                return new CPIVertexProxy(v.id, g);
+                return g.vertexProxy(v.handle, v.id);
             }
         };
     }
@@ -45,75 +32,58 @@ public class CPIVertexProxy extends CPIElementProxy implements Vertex {
         }
     };
 
-    protected CPIVertexProxy(String id, CPIGraph g) {
-        super(id, g);
+    protected CPIVertexProxy(int handle, String id, CPIGraph g) {
+        super(handle, id, g);
     }
     // =================================
     CPIVertex getImpl() {
-        return graph.vertexImpl(id);
+        CPIVertex v = (CPIVertex) cached();
+        if (null != v)
+            return v;
+        CPITransaction tx = graph.tx();
+        return cache(tx, live(graph.vertexImpl(tx, handle)));
     }
+    // the write set's copy is what reads resolve to from here on
     CPIVertex getMutableImpl() {
-        return graph.mutableVertexImpl(id);
+        live(getImpl());
+        return cache(graph.tx(), graph.mutableVertexImpl(handle));
     }
     @Override
     public Iterable<Edge> getEdges(Direction direction, String... labels) {
-        CPIVertex impl = graph.vertexImpl(id);
-        if (OUT == direction) {
-            return getEdges(impl.outEdges, asList(labels));
-        } else if (IN == direction) {
-            return getEdges(impl.inEdges, asList(labels));
-        } else if (direction.equals((Direction.BOTH))) {
-            Iterable<String> edges = Iterables.concat(impl.inEdges, impl.outEdges);
-            return getEdges(edges, asList(labels));
-        }
-        return Collections.emptyList();
-
-    }
-    private Iterable<Edge> getEdges(Iterable<String> edgeIDs, final Collection<String> labels) {
-        FluentIterable<CPIEdgeProxy> f = FluentIterable.from(edgeIDs).transform(CPIEdgeProxy.MAKE(graph));
-        if (labels.isEmpty()) {
-            return f.transform(CPIEdgeProxy.DOWNCAST).toList();
-        }
-        Predicate<CPIEdgeProxy> labelled = new Predicate<CPIEdgeProxy>() {
-            @Override
-            public boolean apply(CPIEdgeProxy e) {
-                return labels.contains(e.getLabel());
-            }
-        };
-        return f.filter(labelled).transform(CPIEdgeProxy.DOWNCAST).toList();
+        return query().direction(direction).labels(labels).edges();
     }
-    void removeEdge(String edgeId) {
-        getMutableImpl().outEdges.remove(edgeId);
-        getMutableImpl().inEdges.remove(edgeId);
+    void removeEdge(int edgeHandle, String label) {
+        CPIVertex impl = getMutableImpl();
+        impl.removeEdge(edgeHandle, label);
     }
     // =================================
     @Override
     public Iterable<Vertex> getVertices(Direction direction, String... labels) {
-        return new VerticesFromEdgesIterable(this, direction, labels);
+        return query().direction(direction).labels(labels).vertices();
     }
     @Override
     protected void _setProperty(String key, Object value) {
-        graph.persister.setVProperty(id, key, value);
+        graph.tx().changes.setVProperty(id, key, value);
     }
     @Override
     protected void _rmProperty(String key) {
-        graph.persister.removeVProperty(id, key);
+        graph.tx().changes.removeVProperty(id, key);
     }
 
     @Override
     public VertexQuery query() {
-        return new DefaultVertexQuery(this);
+        return new CPIVertexQuery(this);
     }
 
     @Override
     public Edge addEdge(String label, Vertex inVertex) {
         return graph.addEdge(null, this, inVertex, label);
     }
-    void addOutEdge(String edgeId) {
-        getMutableImpl().outEdges.add(edgeId);
+    void addOutEdge(int edgeHandle, String label) {
+        getMutableImpl().addOutEdge(edgeHandle, label);
     }
-    void addInEdge(String edgeId) {
-        getMutableImpl().inEdges.add(edgeId);
+    void addInEdge(int edgeHandle, String label) {
+        getMutableImpl().addInEdge(edgeHandle, label);
     }
     @Override
     public void remove() {
@@ -126,29 +96,34 @@ public class CPIVertexProxy extends CPIElementProxy implements Vertex {
     }
     // =================================
     public static class CPIVertex extends CPIElement {
-        CPIVertex(String id) {
-            super(id);
-            outEdges = newHashSet();
-            inEdges = newHashSet();
+        CPIVertex(int handle, String id) {
+            super(handle, id);
+            outEdges = Adjacency.EMPTY;
+            inEdges = Adjacency.EMPTY;
         }
+        // shares src's adjacency until either changes
         CPIVertex(CPIVertex src) {
             super(src);
-            outEdges = newHashSet(src.outEdges);
-            inEdges = newHashSet(src.inEdges);
-//            base = src.base;
+            outEdges = src.outEdges;
+            inEdges = src.inEdges;
         }
-        CPIVertex(String id, Vertex v) {
-            super(id, v);
-            outEdges = newHashSet();
-            inEdges = newHashSet();
-//            base = v;
+        // a committed impl's adjacency is only replaced in place while the graph loads
+        void addOutEdge(int edgeHandle, String label) {
+            outEdges = outEdges.with(label, edgeHandle);
         }
-        final Set<String> outEdges;
-        final Set<String> inEdges;
-
-        // this *may* be populated later by the write-behind queue. It's an optimization to keep from repeatedly
-        // looking up the underlying element from the id.
-//        @Setter @Getter
-//        protected Vertex base = null;
+        void addInEdge(int edgeHandle, String label) {
+            inEdges = inEdges.with(label, edgeHandle);
+        }
+        void removeEdge(int edgeHandle, String label) {
+            outEdges = outEdges.without(label, edgeHandle);
+            inEdges = inEdges.without(label, edgeHandle);
+        }
+        @Override
+        long bytes() {
+            return super.bytes() + outEdges.bytes() + inEdges.bytes();
+        }
+        // edge handles by label: persistent sets, or read-only off-heap blocks
+        Adjacency outEdges;
+        Adjacency inEdges;
     }
 }
@@ -0,0 +1,170 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.tinkerpop.blueprints.Direction.IN;
+import static com.tinkerpop.blueprints.Direction.OUT;
+
+import java.util.Iterator;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.DefaultVertexQuery;
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+
+/**
+ * A VertexQuery that walks only the adjacency buckets of the labels asked for. Edges
+ * are only resolved to check conditions or find the vertex at the other end: with
+ * no conditions, edges() makes proxies straight from the handles, and count() adds
+ * up bucket sizes. Conditions are checked against the edge's visible version,
+ * without a proxy.
+ * <p>
+ * edges() and vertices() are lazy: each bucket's handles are copied out as the walk
+ * reaches it, and a caller that stops early never touches the rest.
+ */
+class CPIVertexQuery extends DefaultVertexQuery {
+    private static final int[] NO_HANDLES = new int[0];
+
+    CPIVertexQuery(CPIVertexProxy vertex) {
+        super(vertex);
+        this.vp = vertex;
+    }
+
+    @Override
+    public Iterable<Edge> edges() {
+        return walk(false, new Visitor<Edge>() {
+            @Override
+            public Edge visit(int handle, CPIEdge impl, boolean out) {
+                return vp.graph.edgeProxy(handle);
+            }
+        });
+    }
+
+    @Override
+    public Iterable<Vertex> vertices() {
+        return walk(true, new Visitor<Vertex>() {
+            @Override
+            public Vertex visit(int handle, CPIEdge impl, boolean out) {
+                return vp.graph.vertexProxy(out ? impl.inVertex : impl.outVertex);
+            }
+        });
+    }
+
+    @Override
+    public long count() {
+        if (!hasContainers.isEmpty())
+            return Iterables.size(walk(false, new Visitor<Object>() {
+                @Override
+                public Object visit(int handle, CPIEdge impl, boolean out) {
+                    return impl;
+                }
+            }));
+        CPIVertex impl = vp.getImpl();
+        long n = 0;
+        if (IN != direction)
+            n += count(impl.outEdges);
+        if (OUT != direction)
+            n += count(impl.inEdges);
+        return Math.min(limit, n);
+    }
+
+    @Override
+    public Object vertexIds() {
+        return newArrayList(walk(true, new Visitor<Object>() {
+            @Override
+            public Object visit(int handle, CPIEdge impl, boolean out) {
+                return vp.graph.vertexIds.id(out ? impl.inVertex : impl.outVertex);
+            }
+        }));
+    }
+
+    // =================================
+    private interface Visitor<T> {
+        // impl is null unless the walk resolved it
+        T visit(int handle, CPIEdge impl, boolean out);
+    }
+
+    private long count(Adjacency adjacency) {
+        long n = 0;
+        for (int i = 0; i < adjacency.labels(); i++) {
+            if (wanted(adjacency.label(i)))
+                n += adjacency.edges(i).size();
+        }
+        return n;
+    }
+
+    /**
+     * @param resolve whether the visitor needs the edges' impls
+     * @return what the visitor makes of each matching edge, up to the limit, one
+     * bucket at a time as it's iterated
+     */
+    private <T> Iterable<T> walk(final boolean resolve, final Visitor<T> visitor) {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                final CPIVertex impl = vp.getImpl();
+                final boolean resolving = resolve || !hasContainers.isEmpty();
+                return new AbstractIterator<T>() {
+                    // out, then in
+                    private boolean out = (IN != direction);
+                    private Adjacency adjacency = out ? impl.outEdges : impl.inEdges;
+                    private int bucket = -1;
+                    private int[] handles = NO_HANDLES;
+                    private int at = 0;
+                    private long n = 0;
+
+                    @Override
+                    protected T computeNext() {
+                        while (n < limit) {
+                            if (at < handles.length) {
+                                int h = handles[at++];
+                                CPIEdge e = resolving ? vp.graph.edgeImpl(h) : null;
+                                if (resolving && (null == e || !legal(e)))
+                                    continue;
+                                n++;
+                                return visitor.visit(h, e, out);
+                            }
+                            if (++bucket < adjacency.labels()) {
+                                if (wanted(adjacency.label(bucket))) {
+                                    handles = adjacency.edges(bucket).toArray();
+                                    at = 0;
+                                }
+                                continue;
+                            }
+                            if (!out || OUT == direction)
+                                break;
+                            out = false;
+                            adjacency = impl.inEdges;
+                            bucket = -1;
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+        };
+    }
+
+    private boolean wanted(String label) {
+        if (0 == labels.length)
+            return true;
+        for (String l : labels) {
+            if (l.equals(label))
+                return true;
+        }
+        return false;
+    }
+
+    // as HasContainer.isLegal, without going through a proxy
+    private boolean legal(CPIEdge impl) {
+        for (HasContainer hc : hasContainers) {
+            if (!hc.predicate.evaluate(impl.properties.get(hc.key), hc.value))
+                return false;
+        }
+        return true;
+    }
+
+    // =================================
+    private final CPIVertexProxy vp;
+}
@@ -1,204 +1,218 @@
 package edu.utexas.arlut.ciads.cpiGraph;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.tinkerpop.blueprints.Edge;
-import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
 import com.tinkerpop.blueprints.TransactionalGraph;
-import com.tinkerpop.blueprints.Vertex;
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.NoSuchElementException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
-import static com.google.common.collect.Iterables.getFirst;
-import static com.google.common.collect.Iterables.getOnlyElement;
-import static java.lang.Boolean.TRUE;
-
 @Slf4j
 public class CPIWriteBehind {
+    // tries at a batch the persister rejects, with the wait doubling between them
+    private static final int RETRIES = 5;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+
+    <T extends TransactionalGraph & KeyIndexableGraph> CPIWriteBehind(String name, T sor, WriteBehindConfig config) {
+        this(name, sor, config, null);
+    }
 
-    CPIWriteBehind(TransactionalGraph sor) {
-        this.sor = sor;
+    <T extends TransactionalGraph & KeyIndexableGraph> CPIWriteBehind(String name, T sor, WriteBehindConfig config,
+                                                                     CommitJournal journal) {
+        this(name, new BlueprintsPersister<>(name, sor, config.getAppliers()), config, journal);
+    }
+
+    CPIWriteBehind(String name, Persister persister, WriteBehindConfig config, CommitJournal journal) {
+        this.persister = persister;
+        this.journal = journal;
+        this.queue = new WriteBehindQueue(name, config, journal);
+        this.applier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "write-behind-" + name);
+        applier.start();
     }
 
 
-    void await() {
+    /**
+     * @return whether the applier finished, with everything committed applied, rather
+     * than failing or still running after the wait
+     */
+    boolean await() {
         try {
             log.info("start await");
-            executor.awaitTermination(10, TimeUnit.SECONDS);
+            applier.join(TimeUnit.SECONDS.toMillis(10));
             log.info("end await");
 
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        return drained;
     }
 
-    void stats() {
-        log.info("vCache stats {}", vertexCache.stats());
-        log.info("eCache stats {}", edgeCache.stats());
+    void attach(CPIGraph g) {
+        graph = g;
+        persister.attach(g);
     }
 
-
-    // =======================================
-    void addVertex(final String id) {
-        executor.submit(() -> {
-            try {
-                Vertex sorV = sor.addVertex(id);
-                log.info("SOR addVertex {} => {}", id, sorV);
-                vertexCache.put(id, sorV);
-                sorV.setProperty(CPIGraph.ID, id);
-            } catch (Exception e) {
-                log.error("SOR addVertex Exception", e);
-            }
-        });
+    boolean fetches() {
+        return persister.fetches();
     }
 
-    void removeVertex(final String id) {
-        executor.submit(() -> {
-            try {
-                Vertex sorV = lookupVertex(id);
-                log.info("SOR removeVertex {} {}", id, sorV);
-                sor.removeVertex(sorV);
-            } catch (Exception e) {
-                log.error("SOR removeVertex Exception", e);
-            }
-        });
+    CPIVertex fetchVertex(CPIGraph g, String id) {
+        return persister.fetchVertex(g, id);
     }
 
-    void addEdge(final String id, final String ovID, final String ivID, final String label) {
-        executor.submit(() -> {
-            try {
-                Vertex oSorV = lookupVertex(ovID);
-                Vertex iSorV = lookupVertex(ivID);
-                Edge sorE = sor.addEdge(id, oSorV, iSorV, label);
-                log.info("SOR addEdge {} {}", id, sorE);
-                sorE.setProperty(CPIGraph.ID, id);
-            } catch (Exception e) {
-                log.error("SOR addEdge Exception", e);
-            }
-        });
+    CPIEdge fetchEdge(CPIGraph g, String id) {
+        return persister.fetchEdge(g, id);
     }
 
-    void removeEdge(final String id) {
-        executor.submit(() -> {
-            try {
-                Edge sorE = lookupEdge(id);
-                log.info("SOR removeEdge {} {}", id, sorE);
-                sor.removeEdge(sorE);
-            } catch (Exception e) {
-                log.error("SOR removeEdge Exception", e);
+    void stats() {
+        log.info("queue stats {}", queue.stats());
+    }
+
+    WriteBehindStats getStats() {
+        return queue.stats();
+    }
+
+    /**
+     * Applies whatever the journal holds past its checkpoint, before anything else
+     * is committed. The persister may already have some of it (we can die between
+     * its apply and the checkpoint), and is told it's a replay.
+     */
+    void recover() throws IOException {
+        if (null == journal)
+            return;
+        journal.replay(new CommitJournal.Replay() {
+            @Override
+            public void apply(long seq, ChangeSet batch) {
+                log.info("SOR replay journal seq {}", seq);
+                persister.apply(batch, true);
+                journal.markApplied(seq);
             }
         });
     }
 
-    void setVProperty(final String id, final String key, final Object value) {
-        executor.submit(() -> setProperty(lookupVertex(id), key, value));
-    }
-
-    void setEProperty(final String id, final String key, final Object value) {
-        executor.submit(() -> setProperty(lookupEdge(id), key, value));
-    }
 
-    private void setProperty(final Element sorE, final String key, final Object value) {
-        try {
-            log.info("SOR setProperty {} {} => {}", sorE, key, value);
-            sorE.setProperty(key, value);
-        } catch (Exception e) {
-            log.error("SOR setProperty Exception", e);
+    /**
+     * Rolls the journal after seq into a graph's caches.
+     *
+     * @return false if the journal doesn't reach back that far
+     */
+    boolean catchUp(final CPIGraph g, long seq) throws IOException {
+        if (null == journal)
+            return true;
+        if (journal.firstSeq() > seq + 1) {
+            log.warn("{} journal starts at {}, can't catch up from {}", g.getId(), journal.firstSeq(), seq);
+            return false;
         }
+        journal.replay(seq, new CommitJournal.Replay() {
+            @Override
+            public void apply(long seq, ChangeSet batch) {
+                g.rawApply(batch);
+            }
+        });
+        return true;
     }
 
-    void removeVProperty(final String id, final String key) {
-        executor.submit(() -> removeProperty(lookupVertex(id), key));
+    // the journal sequence number of the last commit, 0 without a journal
+    long lastSeq() {
+        return (null == journal) ? 0 : journal.lastSeq();
     }
 
-    void removeEProperty(final String id, final String key) {
-        executor.submit(() -> removeProperty(lookupEdge(id), key));
+    void retainAfter(long seq) {
+        if (null != journal)
+            journal.retainAfter(seq);
     }
 
-    private void removeProperty(final Element sorE, final String key) {
-        try {
-            log.info("SOR removeProperty {} {}", sorE, key);
-            sorE.removeProperty(key);
-        } catch (Exception e) {
-            log.error("SOR removeProperty Exception", e);
-        }
+    /**
+     * Hands a committed batch to the applier. The graph calls this under its commit
+     * lock, so batches reach the SoR in commit order. Depending on the overflow policy
+     * this may block, spill, or throw WriteBehindFullException.
+     *
+     * @return the journal sequence number to sync() on, 0 without a journal
+     */
+    long put(ChangeSet batch) {
+        return queue.put(batch);
     }
 
-    void commit() {
-        // TODO: invalidate cache
-        executor.submit(() -> {
-                    log.info("SOR commit");
-                    sor.commit();
-                    vertexCache.invalidateAll();
-                    log.info("vCache stats {}", vertexCache.stats());
-                    log.info("eCache stats {}", edgeCache.stats());
-                }
-        );
+    /**
+     * Blocks until a batch is durable. Called outside the commit lock, so concurrent
+     * commits share a single force.
+     */
+    void sync(long seq) {
+        if (null != journal && seq > 0)
+            journal.sync(seq);
     }
 
-    void rollback() {
-        executor.submit(() -> {
-            log.info("SOR rollback");
-            sor.rollback();
-            vertexCache.invalidateAll();
-        });
+    void commit(ChangeSet batch) {
+        if (!batch.isEmpty())
+            sync(put(batch));
     }
 
     void shutdown() {
-        executor.submit(() -> {
-            executor.shutdown();
-            log.info("sor shutdown");
-            sor.shutdown();
-            vertexCache.invalidateAll();
-        });
+        // the applier drains what's been committed, then shuts down the persister
+        queue.close();
     }
 
     // =======================================
-    private Vertex lookupVertex(String id) {
+    private void drain() {
         try {
-            return vertexCache.get(id);
+            for (WriteBehindQueue.Entry e = queue.take(); null != e; e = queue.take()) {
+                try {
+                    applyWithRetry(e.batch);
+                    if (null != journal)
+                        journal.markApplied(e.seq);
+                    CPIGraph g = graph;
+                    if (null != g)
+                        g.persisted();
+                } finally {
+                    queue.done(e);
+                }
+            }
+            drained = true;
         } catch (Exception e) {
-            log.error("Error looking up vertex with id {}", id, e);
-            throw new NoSuchElementException();
+            log.error("write-behind applier failed, {}", queue.stats(), e);
+            queue.fail(e);
         }
-    }
-
-    private Edge lookupEdge(String id) {
-        try {
-            return edgeCache.get(id);
-        } catch (ExecutionException e) {
-            log.error("Error looking up vertex with id {}", id);
-            throw new NoSuchElementException();
+        log.info("persister shutdown");
+        persister.shutdown();
+        if (null != journal)
+            journal.close();
+    }
+
+    /**
+     * Applies a batch, backing off and trying again while the persister rejects it.
+     * A retry may find part of the batch already persisted, so it's a replay. If the
+     * last try fails too, the batch is left unapplied in the journal for recover().
+     */
+    private void applyWithRetry(ChangeSet batch) throws InterruptedException {
+        long backoff = RETRY_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                persister.apply(batch, attempt > 1);
+                return;
+            } catch (RuntimeException ex) {
+                if (attempt == RETRIES)
+                    throw ex;
+                log.warn("SOR apply failed, try {} of {}, retrying in {}ms", attempt, RETRIES, backoff, ex);
+            }
+            Thread.sleep(backoff);
+            backoff *= 2;
         }
     }
+
     // =======================================
-    final LoadingCache<String, Vertex> vertexCache = CacheBuilder.newBuilder()
-            .maximumSize(1000)
-            .recordStats()
-            .build(new CacheLoader<String, Vertex>() {
-                       public Vertex load(String id) {
-                           log.info("vertexCache load {}", id);
-                           return getOnlyElement(sor.getVertices(CPIGraph.ID, id));
-                       }
-                   }
-            );
-    final LoadingCache<String, Edge> edgeCache = CacheBuilder.newBuilder()
-            .maximumSize(2000)
-            .build(new CacheLoader<String, Edge>() {
-                       public Edge load(String id) {
-                           log.info("edgeCache load {}", id);
-                           return getOnlyElement(sor.getEdges(CPIGraph.ID, id));
-                       }
-                   }
-            );
-    // =======================================
-    private final TransactionalGraph sor;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Persister persister;
+    private final CommitJournal journal;
+    private final WriteBehindQueue queue;
+    private final Thread applier;
+    // told as each batch is persisted, in commit order
+    private volatile CPIGraph graph = null;
+    // set once the applier has applied everything and the queue's closed
+    private volatile boolean drained = false;
 }
@@ -0,0 +1,259 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SoR-bound mutations of one logical commit, coalesced as they are recorded:
+ * <ul>
+ * <li>repeated writes of the same element/key keep only the last value</li>
+ * <li>an element added and removed in the same batch never reaches the SoR</li>
+ * <li>property writes on an element removed in the batch are dropped, whether made
+ * before or after the removal</li>
+ * </ul>
+ * Apply in the order of the merge rules in notes.txt: remove edges, remove vertices,
+ * add vertices, add edges, then properties.
+ */
+class ChangeSet {
+    // marks a property removal in the property maps
+    static final Object REMOVED = new Object() {
+        @Override
+        public String toString() {
+            return "<removed>";
+        }
+    };
+
+    static class EdgeSpec {
+        EdgeSpec(String id, String outVertexId, String inVertexId, String label) {
+            this.id = id;
+            this.outVertexId = outVertexId;
+            this.inVertexId = inVertexId;
+            this.label = label;
+        }
+
+        final String id, outVertexId, inVertexId;
+        final String label;
+    }
+
+    // =================================
+    void addVertex(String id) {
+        goneVertices.remove(id);
+        addedVertices.add(id);
+        ops++;
+    }
+
+    void removeVertex(String id) {
+        vProperties.remove(id);
+        goneVertices.add(id);
+        if (!addedVertices.remove(id))
+            removedVertices.add(id);
+        ops++;
+    }
+
+    void addEdge(String id, String outVertexId, String inVertexId, String label) {
+        goneEdges.remove(id);
+        addedEdges.put(id, new EdgeSpec(id, outVertexId, inVertexId, label));
+        ops++;
+    }
+
+    void removeEdge(String id) {
+        eProperties.remove(id);
+        goneEdges.add(id);
+        if (null == addedEdges.remove(id))
+            removedEdges.add(id);
+        ops++;
+    }
+
+    void setVProperty(String id, String key, Object value) {
+        if (goneVertices.contains(id))
+            ops++;
+        else
+            put(vProperties, id, key, value);
+    }
+
+    void removeVProperty(String id, String key) {
+        if (addedVertices.contains(id) || goneVertices.contains(id))
+            drop(vProperties, id, key);
+        else
+            put(vProperties, id, key, REMOVED);
+    }
+
+    void setEProperty(String id, String key, Object value) {
+        if (goneEdges.contains(id))
+            ops++;
+        else
+            put(eProperties, id, key, value);
+    }
+
+    void removeEProperty(String id, String key) {
+        if (addedEdges.containsKey(id) || goneEdges.contains(id))
+            drop(eProperties, id, key);
+        else
+            put(eProperties, id, key, REMOVED);
+    }
+
+    private void put(Map<String, Map<String, Object>> properties, String id, String key, Object value) {
+        Map<String, Object> m = properties.get(id);
+        if (null == m) {
+            m = newLinkedHashMap();
+            properties.put(id, m);
+        }
+        m.put(key, value);
+        ops++;
+    }
+
+    private void drop(Map<String, Map<String, Object>> properties, String id, String key) {
+        Map<String, Object> m = properties.get(id);
+        if (null != m)
+            m.remove(key);
+        ops++;
+    }
+
+    // =================================
+    boolean isEmpty() {
+        return addedVertices.isEmpty() && removedVertices.isEmpty()
+                && addedEdges.isEmpty() && removedEdges.isEmpty()
+                && vProperties.isEmpty() && eProperties.isEmpty();
+    }
+
+    /**
+     * @return the number of operations recorded, before coalescing
+     */
+    int recorded() {
+        return ops;
+    }
+
+    /**
+     * @return the number of SoR operations left after coalescing
+     */
+    int size() {
+        int sz = addedVertices.size() + removedVertices.size() + addedEdges.size() + removedEdges.size();
+        for (Map<String, Object> m : vProperties.values())
+            sz += m.size();
+        for (Map<String, Object> m : eProperties.values())
+            sz += m.size();
+        return sz;
+    }
+
+    Set<String> addedVertices() {
+        return Collections.unmodifiableSet(addedVertices);
+    }
+
+    Set<String> removedVertices() {
+        return Collections.unmodifiableSet(removedVertices);
+    }
+
+    Map<String, EdgeSpec> addedEdges() {
+        return Collections.unmodifiableMap(addedEdges);
+    }
+
+    Set<String> removedEdges() {
+        return Collections.unmodifiableSet(removedEdges);
+    }
+
+    Map<String, Map<String, Object>> vProperties() {
+        return Collections.unmodifiableMap(vProperties);
+    }
+
+    Map<String, Map<String, Object>> eProperties() {
+        return Collections.unmodifiableMap(eProperties);
+    }
+
+    // =================================
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(ops);
+        writeIds(out, removedEdges);
+        writeIds(out, removedVertices);
+        writeIds(out, addedVertices);
+        out.writeInt(addedEdges.size());
+        for (EdgeSpec es : addedEdges.values()) {
+            ValueCodec.writeString(out, es.id);
+            ValueCodec.writeString(out, es.outVertexId);
+            ValueCodec.writeString(out, es.inVertexId);
+            ValueCodec.writeString(out, es.label);
+        }
+        writeProperties(out, vProperties);
+        writeProperties(out, eProperties);
+    }
+
+    static ChangeSet readFrom(DataInput in) throws IOException {
+        ChangeSet cs = new ChangeSet();
+        cs.ops = in.readInt();
+        readIds(in, cs.removedEdges);
+        readIds(in, cs.removedVertices);
+        readIds(in, cs.addedVertices);
+        for (int i = in.readInt(); i > 0; i--) {
+            EdgeSpec es = new EdgeSpec(ValueCodec.readString(in), ValueCodec.readString(in),
+                    ValueCodec.readString(in), ValueCodec.readString(in));
+            cs.addedEdges.put(es.id, es);
+        }
+        readProperties(in, cs.vProperties);
+        readProperties(in, cs.eProperties);
+        return cs;
+    }
+
+    private static void writeIds(DataOutput out, Set<String> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (String id : ids)
+            ValueCodec.writeString(out, id);
+    }
+
+    private static void readIds(DataInput in, Set<String> ids) throws IOException {
+        for (int i = in.readInt(); i > 0; i--)
+            ids.add(ValueCodec.readString(in));
+    }
+
+    private static void writeProperties(DataOutput out, Map<String, Map<String, Object>> properties) throws IOException {
+        out.writeInt(properties.size());
+        for (Map.Entry<String, Map<String, Object>> me : properties.entrySet()) {
+            ValueCodec.writeString(out, me.getKey());
+            out.writeInt(me.getValue().size());
+            for (Map.Entry<String, Object> pe : me.getValue().entrySet()) {
+                ValueCodec.writeString(out, pe.getKey());
+                boolean removed = REMOVED == pe.getValue();
+                out.writeBoolean(removed);
+                if (!removed)
+                    ValueCodec.writeValue(out, pe.getValue());
+            }
+        }
+    }
+
+    private static void readProperties(DataInput in, Map<String, Map<String, Object>> properties) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            String id = ValueCodec.readString(in);
+            Map<String, Object> m = newLinkedHashMap();
+            for (int j = in.readInt(); j > 0; j--) {
+                String key = ValueCodec.readString(in);
+                m.put(key, in.readBoolean() ? REMOVED : ValueCodec.readValue(in));
+            }
+            properties.put(id, m);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeSet[+v" + addedVertices.size() + " -v" + removedVertices.size()
+                + " +e" + addedEdges.size() + " -e" + removedEdges.size()
+                + " ops " + ops + "=>" + size() + "]";
+    }
+
+    // =================================
+    private final Set<String> addedVertices = newLinkedHashSet();
+    private final Set<String> removedVertices = newLinkedHashSet();
+    private final Map<String, EdgeSpec> addedEdges = newLinkedHashMap();
+    private final Set<String> removedEdges = newLinkedHashSet();
+    private final Map<String, Map<String, Object>> vProperties = newLinkedHashMap();
+    private final Map<String, Map<String, Object>> eProperties = newLinkedHashMap();
+    // removed in this batch and not added back, whether or not the removal reaches the
+    // SoR; only consulted while recording, so not written out
+    private final Set<String> goneVertices = newLinkedHashSet();
+    private final Set<String> goneEdges = newLinkedHashSet();
+    private int ops = 0;
+}
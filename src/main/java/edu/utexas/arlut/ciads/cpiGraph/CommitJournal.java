@@ -0,0 +1,255 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only log of committed ChangeSets, so a commit is durable before the
+ * write-behind gets it to the SoR.
+ * <p>
+ * The log is a directory of memory-mapped segments, each named for the first
+ * sequence number it holds. A record is [length][crc][seq][ChangeSet bytes]; a zero
+ * length marks the end of a segment. sync() is a group commit: one caller forces
+ * the mapping on behalf of everyone appended so far. The write-behind checkpoints the
+ * last sequence it has applied, and segments wholly below the checkpoint are deleted,
+ * unless a snapshot still needs them to catch up.
+ */
+@Slf4j
+class CommitJournal implements Closeable {
+    interface Replay {
+        void apply(long seq, ChangeSet batch);
+    }
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int HEADER = 4 + 4 + 8;
+    private static final String SUFFIX = ".journal";
+
+    CommitJournal(File dir, int segmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create journal directory " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "applied"), "rw")) {
+            checkpoint = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        }
+        applied = checkpoint.getLong(0);
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        long last = applied;
+        for (File f : files) {
+            Segment s = new Segment(Long.parseLong(f.getName().replace(SUFFIX, ""), 16), f);
+            segments.add(s);
+            last = Math.max(last, scan(s, null, 0));
+        }
+        nextSeq = last + 1;
+        appended = synced = last;
+        log.info("journal {}: {} segments, applied through {}, last {}", dir, segments.size(), applied, last);
+    }
+
+    // =================================
+    /**
+     * @return the sequence number of the record, to sync() on
+     */
+    synchronized long append(ChangeSet batch) {
+        byte[] payload = encode(batch);
+        if (null == current || current.buffer.remaining() < HEADER + payload.length)
+            roll(HEADER + payload.length);
+        long seq = nextSeq++;
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, seq).array());
+        crc.update(payload);
+        current.buffer.putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .putLong(seq)
+                .put(payload);
+        appended = seq;
+        return seq;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is on disk. Concurrent
+     * callers share a single force.
+     */
+    void sync(long seq) {
+        if (synced >= seq)
+            return;
+        synchronized (syncLock) {
+            if (synced >= seq)
+                return;
+            MappedByteBuffer b;
+            long upTo;
+            synchronized (this) {
+                b = current.buffer;
+                upTo = appended;
+            }
+            b.force();
+            synced = upTo;
+        }
+    }
+
+    synchronized void markApplied(long seq) {
+        if (seq <= applied)
+            return;
+        checkpoint.putLong(0, seq);
+        checkpoint.force();
+        applied = seq;
+        purge();
+    }
+
+    /**
+     * Keeps records after seq, even once they've been applied.
+     */
+    synchronized void retainAfter(long seq) {
+        retainAfter = seq;
+        purge();
+    }
+
+    // the current segment is never dropped
+    private void purge() {
+        long floor = Math.min(applied, retainAfter);
+        while (segments.size() > 1 && segments.get(1).firstSeq - 1 <= floor) {
+            Segment s = segments.remove(0);
+            if (!s.file.delete())
+                log.warn("Unable to delete journal segment {}", s.file);
+        }
+    }
+
+    long applied() {
+        return applied;
+    }
+
+    synchronized long lastSeq() {
+        return appended;
+    }
+
+    /**
+     * @return the sequence number of the oldest record still held
+     */
+    synchronized long firstSeq() {
+        return segments.isEmpty() ? nextSeq : segments.get(0).firstSeq;
+    }
+
+    /**
+     * Hands every record past the checkpoint to the replay, in order.
+     */
+    void replay(Replay replay) throws IOException {
+        replay(applied, replay);
+    }
+
+    /**
+     * Hands every record after seq to the replay, in order.
+     */
+    void replay(long after, Replay replay) throws IOException {
+        List<Segment> ss;
+        synchronized (this) {
+            ss = newArrayList(segments);
+        }
+        for (Segment s : ss)
+            scan(s, replay, after);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (null != current)
+            current.buffer.force();
+        current = null;
+    }
+
+    // =================================
+    private void roll(int minSize) {
+        if (null != current)
+            current.buffer.force();
+        Segment s = new Segment(nextSeq, new File(dir, String.format("%016x", nextSeq) + SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(s.file, "rw")) {
+            s.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minSize + 4));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create journal segment " + s.file, e);
+        }
+        segments.add(s);
+        current = s;
+        log.debug("journal rolled to {}", s.file);
+    }
+
+    /**
+     * Reads the valid records of a segment, stopping at the end marker or a torn write.
+     *
+     * @return the last sequence number found
+     */
+    private long scan(Segment s, Replay replay, long after) throws IOException {
+        long last = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(s.file, "r")) {
+            ByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            while (b.remaining() >= HEADER) {
+                int length = b.getInt();
+                int crc = b.getInt();
+                long seq = b.getLong();
+                if (length <= 0 || length > b.remaining())
+                    break;
+                byte[] payload = new byte[length];
+                b.get(payload);
+                CRC32 check = new CRC32();
+                check.update(ByteBuffer.allocate(8).putLong(0, seq).array());
+                check.update(payload);
+                if ((int) check.getValue() != crc) {
+                    log.warn("journal {} torn at seq {}", s.file, seq);
+                    break;
+                }
+                last = seq;
+                if (null != replay && seq > after)
+                    replay.apply(seq, ChangeSet.readFrom(new DataInputStream(new ByteArrayInputStream(payload))));
+            }
+        }
+        return last;
+    }
+
+    private static byte[] encode(ChangeSet batch) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            batch.writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to journal " + batch, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // =================================
+    private static class Segment {
+        Segment(long firstSeq, File file) {
+            this.firstSeq = firstSeq;
+            this.file = file;
+        }
+
+        final long firstSeq;
+        final File file;
+        // only mapped for the segment being appended to
+        MappedByteBuffer buffer;
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final MappedByteBuffer checkpoint;
+    private final List<Segment> segments = newArrayList();
+    private final Object syncLock = new Object();
+    private Segment current = null;
+    private long nextSeq;
+    private long appended;
+    private volatile long synced;
+    private volatile long applied;
+    private long retainAfter = Long.MAX_VALUE;
+}
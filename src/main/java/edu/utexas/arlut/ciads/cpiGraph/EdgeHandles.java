@@ -0,0 +1,16 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+/**
+ * One direction of a vertex's adjacency, as edge handles: a PersistentIntSet on heap, or a
+ * read-only block in an OffHeapStore.
+ */
+interface EdgeHandles {
+    int size();
+
+    boolean contains(int handle);
+
+    int[] toArray();
+
+    // a rough count of the bytes the set holds on heap
+    long bytes();
+}
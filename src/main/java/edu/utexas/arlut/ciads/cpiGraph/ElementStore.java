@@ -0,0 +1,240 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.utexas.arlut.ciads.cpiGraph.CPIElementProxy.CPIElement;
+
+/**
+ * The latest committed impl of each element, in a chunked array indexed by handle
+ * (see IdInterner). Reads don't lock; chunks are added under the store's monitor.
+ * <p>
+ * An impl can be evicted, leaving a mark in its slot's bit, so a miss can tell an
+ * element that's been let go of, and can be fetched back, from one that's gone.
+ * <p>
+ * The store keeps a rough count of the bytes its impls hold, for CPIGraph's bound:
+ * each impl is weighed as it goes in, and reweighed if it's changed in place.
+ */
+final class ElementStore<T extends CPIElement> implements Iterable<T> {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+
+    // rough heap sizes, for weighing impls
+    static final long OBJECT = 48, STRING = 40, ARRAY = 16, BOXED = 16;
+
+    static long string(String s) {
+        return STRING + 2L * s.length();
+    }
+
+    T get(int handle) {
+        if (handle < 0)
+            return null;
+        AtomicReferenceArray<T>[] cs = chunks;
+        int chunk = handle >>> CHUNK_BITS;
+        if (chunk >= cs.length || null == cs[chunk])
+            return null;
+        return cs[chunk].get(handle & (CHUNK - 1));
+    }
+
+    void put(T impl) {
+        long w = impl.bytes();
+        T was = chunk(impl.handle, true).getAndSet(impl.handle & (CHUNK - 1), impl);
+        if (null == was)
+            size.incrementAndGet();
+        // was may be impl itself, put again
+        long old = (null == was) ? 0 : was.weight;
+        impl.weight = w;
+        bytes.addAndGet(w - old);
+        mark(impl.handle, false);
+    }
+
+    void remove(int handle) {
+        AtomicReferenceArray<T> c = chunk(handle, false);
+        T was = (null == c) ? null : c.getAndSet(handle & (CHUNK - 1), null);
+        if (null != was) {
+            size.decrementAndGet();
+            bytes.addAndGet(-was.weight);
+        }
+        mark(handle, false);
+    }
+
+    /**
+     * Removes the handle's impl only if it's still the given one.
+     */
+    boolean remove(T impl) {
+        AtomicReferenceArray<T> c = chunk(impl.handle, false);
+        if (null == c || !c.compareAndSet(impl.handle & (CHUNK - 1), impl, null))
+            return false;
+        size.decrementAndGet();
+        bytes.addAndGet(-impl.weight);
+        return true;
+    }
+
+    /**
+     * Drops the handle's impl, if it's still the given one, and marks it evicted. The
+     * mark goes first, so a reader never finds the slot empty and unmarked.
+     */
+    boolean evict(T impl) {
+        mark(impl.handle, true);
+        if (remove(impl))
+            return true;
+        mark(impl.handle, false);
+        return false;
+    }
+
+    boolean evicted(int handle) {
+        AtomicLongArray bits = bits(handle);
+        return null != bits && 0 != (bits.get((handle & (CHUNK - 1)) >>> 6) & (1L << handle));
+    }
+
+    /**
+     * Puts back an impl fetched for an evicted handle, unless the slot has been
+     * filled meanwhile. The mark stays until the next put.
+     *
+     * @return the impl now in the slot
+     */
+    T install(T fetched) {
+        AtomicReferenceArray<T> c = chunk(fetched.handle, true);
+        fetched.weight = fetched.bytes();
+        if (c.compareAndSet(fetched.handle & (CHUNK - 1), null, fetched)) {
+            size.incrementAndGet();
+            bytes.addAndGet(fetched.weight);
+            return fetched;
+        }
+        return c.get(fetched.handle & (CHUNK - 1));
+    }
+
+    // an evicted handle whose element turned out to be gone
+    void forget(int handle) {
+        mark(handle, false);
+    }
+
+    /**
+     * Weighs again an impl that's been changed in place, as a loading graph's are.
+     * Changes to one impl mustn't race, nor its removal.
+     */
+    void reweigh(T impl) {
+        if (impl != get(impl.handle))
+            return;
+        long w = impl.bytes();
+        bytes.addAndGet(w - impl.weight);
+        impl.weight = w;
+    }
+
+    // the number of impls in memory
+    int size() {
+        return size.get();
+    }
+
+    // the estimated bytes of the impls in memory
+    long bytes() {
+        return bytes.get();
+    }
+
+    // weakly consistent, like a ConcurrentHashMap's
+    @Override
+    public Iterator<T> iterator() {
+        final AtomicReferenceArray<T>[] cs = chunks;
+        return new Iterator<T>() {
+            private int chunk = 0, index = -1;
+            private T next = advance();
+
+            private T advance() {
+                while (chunk < cs.length) {
+                    AtomicReferenceArray<T> c = cs[chunk];
+                    if (null != c) {
+                        while (++index < CHUNK) {
+                            T t = c.get(index);
+                            if (null != t)
+                                return t;
+                        }
+                    }
+                    chunk++;
+                    index = -1;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return null != next;
+            }
+
+            @Override
+            public T next() {
+                if (null == next)
+                    throw new NoSuchElementException();
+                T t = next;
+                next = advance();
+                return t;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // =================================
+    private void mark(int handle, boolean evicted) {
+        AtomicLongArray bits = bits(handle);
+        if (null == bits)
+            return;
+        int i = (handle & (CHUNK - 1)) >>> 6;
+        long bit = 1L << handle;
+        for (long word = bits.get(i); ; word = bits.get(i)) {
+            long marked = evicted ? (word | bit) : (word & ~bit);
+            if (marked == word || bits.compareAndSet(i, word, marked))
+                return;
+        }
+    }
+
+    // the chunk's evicted bits, which exist once its slots do
+    private AtomicLongArray bits(int handle) {
+        if (handle < 0)
+            return null;
+        int chunk = handle >>> CHUNK_BITS;
+        AtomicLongArray[] es = evicted;
+        return (chunk < es.length) ? es[chunk] : null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private AtomicReferenceArray<T> chunk(int handle, boolean create) {
+        int chunk = handle >>> CHUNK_BITS;
+        AtomicReferenceArray<T>[] cs = chunks;
+        if (chunk < cs.length && null != cs[chunk])
+            return cs[chunk];
+        if (!create)
+            return null;
+        synchronized (this) {
+            cs = chunks;
+            if (chunk >= cs.length) {
+                AtomicReferenceArray<T>[] grown = new AtomicReferenceArray[Math.max(cs.length * 2, chunk + 1)];
+                System.arraycopy(cs, 0, grown, 0, cs.length);
+                cs = grown;
+            }
+            AtomicLongArray[] es = evicted;
+            if (chunk >= es.length)
+                es = Arrays.copyOf(es, cs.length);
+            if (null == es[chunk])
+                es[chunk] = new AtomicLongArray(CHUNK >>> 6);
+            evicted = es;
+            if (null == cs[chunk])
+                cs[chunk] = new AtomicReferenceArray<>(CHUNK);
+            chunks = cs;
+            return cs[chunk];
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private volatile AtomicReferenceArray<T>[] chunks = new AtomicReferenceArray[16];
+    private volatile AtomicLongArray[] evicted = new AtomicLongArray[16];
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+}
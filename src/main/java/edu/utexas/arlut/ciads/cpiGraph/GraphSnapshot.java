@@ -0,0 +1,234 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Stopwatch;
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Binary image of a CPIGraph's committed caches, tagged with the journal sequence
+ * number it reflects. Layout:
+ * <pre>
+ * magic, version, seq, clean
+ * vertex index keys, edge index keys
+ * vertices: (1, id, properties)* 0
+ * edges:    (1, id, out id, in id, label, properties)* 0
+ * </pre>
+ * Property keys and edge labels are written once and referred to by number after
+ * that. Adjacency isn't written; it's rebuilt from the edges. The file is read
+ * back through memory-mapped windows.
+ */
+@Slf4j
+final class GraphSnapshot {
+    private GraphSnapshot() {
+    }
+
+    private static final int MAGIC = 0x43504953; // CPIS
+    private static final int VERSION = 2;
+
+    static class Header {
+        Header(long seq, boolean clean) {
+            this.seq = seq;
+            this.clean = clean;
+        }
+
+        // the journal sequence number the snapshot reflects, 0 without a journal
+        final long seq;
+        // taken at shutdown, with nothing left in the write-behind
+        final boolean clean;
+    }
+
+    static void write(CPIGraph g, long version, Header header, File file) throws IOException {
+        Stopwatch sw = Stopwatch.createStarted();
+        File tmp = new File(file.getPath() + ".tmp");
+        Dictionary keys = new Dictionary();
+        Dictionary labels = new Dictionary();
+        long vertices = 0, edges = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(header.seq);
+            out.writeBoolean(header.clean);
+            writeKeys(out, g.vIndices);
+            writeKeys(out, g.eIndices);
+
+            for (CPIVertex v : g.committedVertices(version)) {
+                out.writeBoolean(true);
+                ValueCodec.writeString(out, v.id);
+                writeProperties(out, keys, v.properties);
+                vertices++;
+            }
+            out.writeBoolean(false);
+            for (CPIEdge e : g.committedEdges(version)) {
+                out.writeBoolean(true);
+                ValueCodec.writeString(out, e.id);
+                // handles are only good for this process, so endpoints go out as ids
+                ValueCodec.writeString(out, g.vertexIds.id(e.outVertex));
+                ValueCodec.writeString(out, g.vertexIds.id(e.inVertex));
+                labels.write(out, e.label);
+                writeProperties(out, keys, e.properties);
+                edges++;
+            }
+            out.writeBoolean(false);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Unable to move snapshot into place at " + file);
+        log.info("{} snapshot at seq {}: {} vertices, {} edges in {}", g.getId(), header.seq, vertices, edges, sw);
+    }
+
+    static Header readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return readHeader(in, file);
+        }
+    }
+
+    /**
+     * Fills an empty graph from a snapshot.
+     */
+    static Header read(CPIGraph g, File file) throws IOException {
+        Stopwatch sw = Stopwatch.createStarted();
+        List<String> keys = newArrayList();
+        List<String> labels = newArrayList();
+        long vertices = 0, edges = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             DataInputStream in = new DataInputStream(new MappedInputStream(raf.getChannel()))) {
+            Header header = readHeader(in, file);
+            for (int i = in.readInt(); i > 0; i--)
+                g.vIndices.addIndex(ValueCodec.readString(in), in.readBoolean());
+            for (int i = in.readInt(); i > 0; i--)
+                g.eIndices.addIndex(ValueCodec.readString(in), in.readBoolean());
+
+            while (in.readBoolean()) {
+                String id = ValueCodec.readString(in);
+                CPIVertex v = new CPIVertex(g.vertexIds.intern(id), id);
+                readProperties(in, keys, v.properties);
+                g.rawPut(v);
+                vertices++;
+            }
+            while (in.readBoolean()) {
+                String id = ValueCodec.readString(in);
+                int out = g.vertexIds.intern(ValueCodec.readString(in));
+                int inV = g.vertexIds.intern(ValueCodec.readString(in));
+                CPIEdge e = new CPIEdge(g.edgeIds.intern(id), id, out, inV, Dictionary.read(in, labels));
+                readProperties(in, keys, e.properties);
+                g.rawPut(e);
+                edges++;
+            }
+            log.info("{} read snapshot at seq {}: {} vertices, {} edges in {}",
+                    g.getId(), header.seq, vertices, edges, sw);
+            return header;
+        }
+    }
+
+    // =================================
+    private static Header readHeader(DataInput in, File file) throws IOException {
+        if (MAGIC != in.readInt())
+            throw new IOException(file + " isn't a snapshot");
+        int version = in.readInt();
+        if (VERSION != version)
+            throw new IOException(file + " is snapshot version " + version + ", expected " + VERSION);
+        return new Header(in.readLong(), in.readBoolean());
+    }
+
+    private static void writeKeys(DataOutput out, CPIIndex<?> indices) throws IOException {
+        List<String> l = newArrayList(indices.keys());
+        out.writeInt(l.size());
+        for (String k : l) {
+            ValueCodec.writeString(out, k);
+            out.writeBoolean(indices.sorted(k));
+        }
+    }
+
+    private static void writeProperties(DataOutput out, Dictionary keys, Map<String, Object> properties) throws IOException {
+        out.writeInt(properties.size());
+        for (Map.Entry<String, Object> me : properties.entrySet()) {
+            keys.write(out, me.getKey());
+            ValueCodec.writeValue(out, me.getValue());
+        }
+    }
+
+    private static void readProperties(DataInput in, List<String> keys, Map<String, Object> properties) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            String key = Dictionary.read(in, keys);
+            properties.put(key, ValueCodec.readValue(in));
+        }
+    }
+
+    // strings are numbered in order of first appearance; a string's first
+    // occurrence is written out in full after its number
+    private static class Dictionary {
+        void write(DataOutput out, String s) throws IOException {
+            Integer n = numbers.get(s);
+            if (null != n) {
+                out.writeInt(n);
+            } else {
+                out.writeInt(numbers.size());
+                ValueCodec.writeString(out, s);
+                numbers.put(s, numbers.size());
+            }
+        }
+
+        static String read(DataInput in, List<String> strings) throws IOException {
+            int n = in.readInt();
+            if (n == strings.size())
+                strings.add(ValueCodec.readString(in));
+            return strings.get(n);
+        }
+
+        private final Map<String, Integer> numbers = newHashMap();
+    }
+
+    // maps the file a window at a time, as a single mapping can't exceed 2GB
+    private static class MappedInputStream extends InputStream {
+        private static final long WINDOW = 1L << 30;
+
+        MappedInputStream(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return next() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (0 == len)
+                return 0;
+            if (!next())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        private boolean next() throws IOException {
+            if (null != buffer && buffer.hasRemaining())
+                return true;
+            if (position >= size)
+                return false;
+            long length = Math.min(WINDOW, size - position);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+            return true;
+        }
+
+        private final FileChannel channel;
+        private final long size;
+        private long position = 0;
+        private MappedByteBuffer buffer;
+    }
+}
@@ -0,0 +1,222 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Queues.newArrayDeque;
+
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps external (String) element ids to dense int handles, and back. Internally the
+ * graph refers to elements by handle only, so a hop from a vertex to its edges and on
+ * to their endpoints indexes arrays instead of hashing ids; a String is hashed once,
+ * where it comes in through the Blueprints API.
+ * <p>
+ * The lookup table is open-addressed with linear probing, holding handle + 1 (0 is an
+ * empty slot, -1 a released one) with the id's hash alongside, so a probe only
+ * compares Strings whose hashes match. Lookups don't lock; intern() and release() do.
+ * <p>
+ * A handle is released once nothing refers to it, and is then reused. Whoever interns
+ * an id for a transaction claims its handle with the transaction's serial, and a
+ * handle isn't released while any transaction from that serial on is open.
+ */
+final class IdInterner {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+    private static final int RELEASED = -1;
+
+    IdInterner() {
+        this(1024);
+    }
+
+    IdInterner(int expected) {
+        table = new Table(tableSize(expected));
+    }
+
+    /**
+     * @return the id's handle, or -1 if it has none
+     */
+    int handle(String id) {
+        int h = spread(id.hashCode());
+        Table t = table;
+        int mask = t.mask;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int slot = t.slots.get(i);
+            if (0 == slot)
+                return -1;
+            if (RELEASED != slot && t.hashes[i] == h && id.equals(id(slot - 1)))
+                return slot - 1;
+        }
+    }
+
+    /**
+     * @return the id's handle, assigning one if it has none
+     */
+    int intern(String id) {
+        return intern(id, 0);
+    }
+
+    /**
+     * @param claimant the serial of the transaction the handle is for; 0 for none
+     * @return the id's handle, assigning one if it has none
+     */
+    int intern(String id, long claimant) {
+        int handle = handle(id);
+        if (-1 != handle) {
+            // the claim goes in before the id is read back, and release() nulls the id
+            // before it reads the claim; so one of them sees the other
+            claim(handle, claimant);
+            if (id.equals(id(handle)))
+                return handle;
+        }
+        synchronized (this) {
+            handle = handle(id);
+            if (-1 != handle) {
+                claim(handle, claimant);
+                return handle;
+            }
+            handle = free.isEmpty() ? size : free.pop();
+            int chunk = handle >>> CHUNK_BITS;
+            if (chunk == ids.length) {
+                AtomicReferenceArray<String>[] grown = newChunks(ids.length * 2);
+                System.arraycopy(ids, 0, grown, 0, ids.length);
+                AtomicLongArray[] cs = new AtomicLongArray[grown.length];
+                System.arraycopy(claims, 0, cs, 0, claims.length);
+                claims = cs;
+                ids = grown;
+            }
+            if (null == ids[chunk]) {
+                claims[chunk] = new AtomicLongArray(CHUNK);
+                ids[chunk] = new AtomicReferenceArray<>(CHUNK);
+            }
+            ids[chunk].set(handle & (CHUNK - 1), id);
+            claim(handle, claimant);
+            if (handle == size)
+                size++;
+            if ((size - free.size() + released) * 4 > table.slots.length() * 3)
+                table = rehash(table, tableSize(size - free.size()) * 2);
+            insert(table, spread(id.hashCode()), handle);
+            return handle;
+        }
+    }
+
+    /**
+     * Releases the handle for reuse, unless a transaction from serial before on has
+     * claimed it. The caller knows nothing else refers to it.
+     *
+     * @return false if it's claimed
+     */
+    synchronized boolean release(int handle, long before) {
+        AtomicReferenceArray<String> chunk = ids[handle >>> CHUNK_BITS];
+        int i = handle & (CHUNK - 1);
+        String id = chunk.get(i);
+        if (null == id)
+            return true;
+        if (claimed(handle) >= before)
+            return false;
+        chunk.set(i, null);
+        if (claimed(handle) >= before) {
+            chunk.set(i, id);
+            return false;
+        }
+        Table t = table;
+        int mask = t.mask;
+        for (int s = spread(id.hashCode()) & mask; ; s = (s + 1) & mask) {
+            if (handle + 1 == t.slots.get(s)) {
+                t.slots.set(s, RELEASED);
+                break;
+            }
+        }
+        released++;
+        free.push(handle);
+        return true;
+    }
+
+    // null for a released handle
+    String id(int handle) {
+        return ids[handle >>> CHUNK_BITS].get(handle & (CHUNK - 1));
+    }
+
+    // one past the highest handle given out; released ones below it are reused first
+    int size() {
+        return size;
+    }
+
+    // =================================
+    private void claim(int handle, long claimant) {
+        if (0 == claimant)
+            return;
+        AtomicLongArray cs = claims[handle >>> CHUNK_BITS];
+        int i = handle & (CHUNK - 1);
+        for (long c = cs.get(i); c < claimant; c = cs.get(i)) {
+            if (cs.compareAndSet(i, c, claimant))
+                return;
+        }
+    }
+
+    private long claimed(int handle) {
+        return claims[handle >>> CHUNK_BITS].get(handle & (CHUNK - 1));
+    }
+
+    // drops released slots
+    private Table rehash(Table from, int capacity) {
+        Table to = new Table(capacity);
+        for (int i = 0; i < from.slots.length(); i++) {
+            int slot = from.slots.get(i);
+            if (0 != slot && RELEASED != slot)
+                insert(to, from.hashes[i], slot - 1);
+        }
+        released = 0;
+        return to;
+    }
+
+    // the hash goes in before the slot, which readers see through a volatile read. A
+    // released slot is reused; a probe for another id passes it either way.
+    private static void insert(Table t, int h, int handle) {
+        int mask = t.mask;
+        int i = h & mask;
+        for (int slot = t.slots.get(i); 0 != slot && RELEASED != slot; slot = t.slots.get(i))
+            i = (i + 1) & mask;
+        t.hashes[i] = h;
+        t.slots.set(i, handle + 1);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int expected) {
+        int n = 16;
+        while (n * 3 < expected * 4)
+            n <<= 1;
+        return n;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicReferenceArray<String>[] newChunks(int n) {
+        return new AtomicReferenceArray[n];
+    }
+
+    private static class Table {
+        Table(int capacity) {
+            slots = new AtomicIntegerArray(capacity);
+            hashes = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        final AtomicIntegerArray slots;
+        final int[] hashes;
+        final int mask;
+    }
+
+    // =================================
+    private volatile Table table;
+    private volatile AtomicReferenceArray<String>[] ids = newChunks(16);
+    // the highest serial that's claimed each handle
+    private volatile AtomicLongArray[] claims = new AtomicLongArray[16];
+    private volatile int size = 0;
+    // under the monitor
+    private final Deque<Integer> free = newArrayDeque();
+    private int released = 0;
+}
@@ -0,0 +1,117 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static edu.utexas.arlut.ciads.cpiGraph.CPIElementProxy.CPIElement;
+
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fills a new key index from a graph that's in use. The handle range is split
+ * fork-join style, and each element's retained versions (the latest committed one
+ * and those behind it that some transaction may still read) are scanned without
+ * locking. Commits and prunes while that runs only log the handles they touch;
+ * at the end, under the commit lock, the scan is installed for every other handle,
+ * the logged ones are scanned again, and the index is marked ready. The index is
+ * registered, and the handle range taken, under the commit lock too, so a commit
+ * is either wholly in what the scan can see or wholly in the log.
+ */
+@Slf4j
+final class IndexBuilder<T extends CPIElement> extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int LEAF = 4096;
+
+    static <T extends CPIElement> void build(final String graphId, final String key, boolean sorted,
+                                             final CPIIndex<T> indices, IdInterner ids,
+                                             final Function<Integer, T> latest, final Lock commitLock) {
+        final CPIIndex.Index index;
+        final int limit;
+        commitLock.lock();
+        try {
+            index = indices.building(key, sorted);
+            limit = ids.size();
+        } finally {
+            commitLock.unlock();
+        }
+        if (null == index)
+            return;
+        index.build = new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                Stopwatch sw = Stopwatch.createStarted();
+                Multimap<Integer, Object> scanned = HashMultimap.create();
+                new IndexBuilder<>(key, 0, limit, latest, scanned).invoke();
+                commitLock.lock();
+                try {
+                    if (!indices.current(key, index))
+                        return;
+                    for (Map.Entry<Integer, Object> me : scanned.entries()) {
+                        if (!index.delta.contains(me.getKey()))
+                            index.put(me.getValue(), me.getKey());
+                    }
+                    for (int h : index.delta) {
+                        Multimap<Integer, Object> again = HashMultimap.create();
+                        scan(latest.apply(h), key, again);
+                        for (Object value : again.values())
+                            index.put(value, h);
+                    }
+                    log.info("{} built index on {}: {} entries, {} redone, in {}",
+                            graphId, key, index.size(), index.delta.size(), sw);
+                    index.delta.clear();
+                    index.ready = true;
+                } finally {
+                    commitLock.unlock();
+                }
+            }
+        }.fork();
+    }
+
+    private IndexBuilder(String key, int lo, int hi, Function<Integer, T> latest, Multimap<Integer, Object> into) {
+        this.key = key;
+        this.lo = lo;
+        this.hi = hi;
+        this.latest = latest;
+        this.into = into;
+    }
+
+    @Override
+    protected void compute() {
+        if (hi - lo > LEAF) {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new IndexBuilder<>(key, lo, mid, latest, into),
+                    new IndexBuilder<>(key, mid, hi, latest, into));
+            return;
+        }
+        Multimap<Integer, Object> local = HashMultimap.create();
+        for (int h = lo; h < hi; h++)
+            scan(latest.apply(h), key, local);
+        synchronized (into) {
+            into.putAll(local);
+        }
+    }
+
+    // the key's values in every retained version
+    private static void scan(CPIElement impl, String key, Multimap<Integer, Object> into) {
+        for (CPIElement v = impl; null != v; v = v.prev) {
+            if (v.removed)
+                continue;
+            Object value = v.properties.get(key);
+            if (null != value)
+                into.put(v.handle, value);
+        }
+    }
+
+    // =================================
+    private final String key;
+    private final int lo, hi;
+    private final Function<Integer, T> latest;
+    private final Multimap<Integer, Object> into;
+}
@@ -0,0 +1,66 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Each element's id in the SoR, by handle, so the write-behind can fetch an element
+ * from the SoR directly rather than query the SoR's index on CPIGraph.ID. Only
+ * numeric ids, like Neo4j's, are kept; an element without one is looked up the slow
+ * way. Chunked like ElementStore, with id + 1 in each slot so that 0 is none. Reads
+ * don't lock; chunks are added under the table's monitor.
+ */
+final class NativeIds {
+    static final long NONE = -1;
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+
+    /**
+     * @return the handle's SoR id, or NONE
+     */
+    long get(int handle) {
+        if (handle < 0)
+            return NONE;
+        AtomicLongArray[] cs = chunks;
+        int chunk = handle >>> CHUNK_BITS;
+        if (chunk >= cs.length || null == cs[chunk])
+            return NONE;
+        return cs[chunk].get(handle & (CHUNK - 1)) - 1;
+    }
+
+    // a non-numeric id is dropped
+    void put(int handle, Object nativeId) {
+        if (handle < 0 || !(nativeId instanceof Long || nativeId instanceof Integer))
+            return;
+        chunk(handle, true).set(handle & (CHUNK - 1), ((Number) nativeId).longValue() + 1);
+    }
+
+    void remove(int handle) {
+        AtomicLongArray c = (handle < 0) ? null : chunk(handle, false);
+        if (null != c)
+            c.set(handle & (CHUNK - 1), 0);
+    }
+
+    // =================================
+    private AtomicLongArray chunk(int handle, boolean create) {
+        int chunk = handle >>> CHUNK_BITS;
+        AtomicLongArray[] cs = chunks;
+        if (chunk < cs.length && null != cs[chunk])
+            return cs[chunk];
+        if (!create)
+            return null;
+        synchronized (this) {
+            cs = chunks;
+            if (chunk >= cs.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[Math.max(cs.length * 2, chunk + 1)];
+                System.arraycopy(cs, 0, grown, 0, cs.length);
+                cs = grown;
+            }
+            if (null == cs[chunk])
+                cs[chunk] = new AtomicLongArray(CHUNK);
+            chunks = cs;
+            return cs[chunk];
+        }
+    }
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[16];
+}
@@ -0,0 +1,236 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the bulk of a loaded graph's structure out of the Java heap: the adjacency of
+ * loaded vertices, and the endpoints and label of loaded edges that have no
+ * properties of their own. Both go in ByteBuffers, either direct or mapped from
+ * scratch files (unlinked as soon as they're mapped, so the OS can page them out),
+ * and the collector never sees them.
+ * <p>
+ * Adjacency blocks are written once and never changed. A vertex whose adjacency
+ * changes gets an on-heap PersistentIntSet in its new version, and its old block
+ * is left behind; that space comes back when the graph is next loaded.
+ * <p>
+ * Edge records are indexed by edge handle: out vertex + 1 (0 for no record), in
+ * vertex, label. They're written while the graph is loading, and dropped under the
+ * graph's commit lock once no transaction can see them; reads don't lock.
+ * <p>
+ * Ids aren't kept here: each element's String id and its slot in the graph's
+ * IdInterner stay on heap, so an edge that's otherwise off heap still costs its id.
+ */
+@Slf4j
+final class OffHeapStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int RECORD = 12;
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+
+    static final EdgeHandles NONE = new EdgeHandles() {
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public boolean contains(int handle) {
+            return false;
+        }
+
+        @Override
+        public int[] toArray() {
+            return new int[0];
+        }
+
+        // shared
+        @Override
+        public long bytes() {
+            return 0;
+        }
+    };
+
+    /**
+     * @param dir where segments are mapped from; null for direct buffers
+     */
+    OffHeapStore(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (null != dir && !dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalArgumentException("Unable to create off-heap directory " + dir);
+    }
+
+    // =================================
+    /**
+     * @return the handles in a read-only off-heap block; empty sets aren't stored
+     */
+    EdgeHandles freeze(EdgeHandles handles) {
+        if (handles instanceof Block)
+            return handles;
+        if (0 == handles.size())
+            return NONE;
+        int[] a = handles.toArray();
+        synchronized (this) {
+            int bytes = a.length * 4;
+            if (null == block || block.capacity() - blockUsed < bytes) {
+                block = allocate(Math.max(segmentSize, bytes));
+                blockUsed = 0;
+            }
+            int offset = blockUsed;
+            for (int i = 0; i < a.length; i++)
+                block.putInt(offset + i * 4, a[i]);
+            blockUsed += bytes;
+            return new Block(block, offset, a.length);
+        }
+    }
+
+    // a frozen adjacency set. Sets are small, so contains() scans.
+    private static final class Block implements EdgeHandles {
+        Block(ByteBuffer buf, int offset, int size) {
+            this.buf = buf;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(int handle) {
+            for (int i = 0; i < size; i++) {
+                if (handle == buf.getInt(offset + i * 4))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int[] toArray() {
+            int[] a = new int[size];
+            for (int i = 0; i < size; i++)
+                a[i] = buf.getInt(offset + i * 4);
+            return a;
+        }
+
+        // the handles are off heap
+        @Override
+        public long bytes() {
+            return ElementStore.OBJECT;
+        }
+
+        private final ByteBuffer buf;
+        private final int offset, size;
+    }
+
+    // =================================
+    void putEdge(int handle, int outVertex, int inVertex, String label) {
+        ByteBuffer c = recordChunk(handle, true);
+        int at = (handle & (CHUNK - 1)) * RECORD;
+        c.putInt(at + 4, inVertex);
+        c.putInt(at + 8, labels.intern(label));
+        c.putInt(at, outVertex + 1);
+        edges.incrementAndGet();
+    }
+
+    boolean hasEdge(int handle) {
+        ByteBuffer c = recordChunk(handle, false);
+        return null != c && 0 != c.getInt((handle & (CHUNK - 1)) * RECORD);
+    }
+
+    int outVertex(int handle) {
+        return recordChunk(handle, false).getInt((handle & (CHUNK - 1)) * RECORD) - 1;
+    }
+
+    int inVertex(int handle) {
+        return recordChunk(handle, false).getInt((handle & (CHUNK - 1)) * RECORD + 4);
+    }
+
+    String label(int handle) {
+        return labels.id(recordChunk(handle, false).getInt((handle & (CHUNK - 1)) * RECORD + 8));
+    }
+
+    void dropEdge(int handle) {
+        ByteBuffer c = recordChunk(handle, false);
+        int at = (handle & (CHUNK - 1)) * RECORD;
+        if (null != c && 0 != c.getInt(at)) {
+            c.putInt(at, 0);
+            edges.decrementAndGet();
+        }
+    }
+
+    // one past the highest handle that may have a record
+    int edgeLimit() {
+        return records.length << CHUNK_BITS;
+    }
+
+    long edgeCount() {
+        return edges.get();
+    }
+
+    long bytes() {
+        return allocated.get();
+    }
+
+    // =================================
+    private ByteBuffer recordChunk(int handle, boolean create) {
+        if (handle < 0)
+            return null;
+        int chunk = handle >>> CHUNK_BITS;
+        ByteBuffer[] rs = records;
+        if (chunk < rs.length && null != rs[chunk])
+            return rs[chunk];
+        if (!create)
+            return null;
+        synchronized (this) {
+            rs = records;
+            if (chunk >= rs.length) {
+                ByteBuffer[] grown = new ByteBuffer[Math.max(rs.length * 2, chunk + 1)];
+                System.arraycopy(rs, 0, grown, 0, rs.length);
+                rs = grown;
+            }
+            if (null == rs[chunk])
+                rs[chunk] = allocate(CHUNK * RECORD);
+            records = rs;
+            return rs[chunk];
+        }
+    }
+
+    private ByteBuffer allocate(int bytes) {
+        allocated.addAndGet(bytes);
+        if (null == dir)
+            return ByteBuffer.allocateDirect(bytes);
+        try {
+            File f = File.createTempFile("offheap", ".seg", dir);
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength(bytes);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            } finally {
+                // the mapping outlives the file
+                if (!f.delete())
+                    log.warn("Unable to unlink off-heap segment {}", f);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map an off-heap segment in " + dir, e);
+        }
+    }
+
+    // =================================
+    private final File dir;
+    private final int segmentSize;
+    // the segment adjacency is being written to
+    private ByteBuffer block = null;
+    private int blockUsed = 0;
+    private volatile ByteBuffer[] records = new ByteBuffer[16];
+    private final IdInterner labels = new IdInterner(64);
+    private final AtomicLong edges = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+}
@@ -0,0 +1,274 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of ints (edge handles), as a compressed hash-array mapped trie:
+ * each node has 32 positions, taking 5 bits of the value's hash per level, split by
+ * two bitmaps into values held inline and child nodes. with() and without() copy
+ * only the path to the value they change, so a transaction's copy of a vertex
+ * shares its adjacency with the committed one, and adding an edge to a hub costs
+ * O(log degree) rather than O(degree).
+ * <p>
+ * The hash is a bijection on ints, so two values never share a full path and no
+ * collision nodes are needed. Removal inlines children left with a single value,
+ * keeping each set's shape canonical, so sets derived from one another share
+ * every subtree they didn't change and rebase() can skip those.
+ */
+final class PersistentIntSet implements EdgeHandles {
+    private static final int BITS = 5;
+    private static final int[] NO_VALUES = new int[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    static final PersistentIntSet EMPTY = new PersistentIntSet(new Node(0, 0, NO_VALUES, NO_NODES), 0);
+
+    static PersistentIntSet of(EdgeHandles handles) {
+        if (handles instanceof PersistentIntSet)
+            return (PersistentIntSet) handles;
+        PersistentIntSet s = EMPTY;
+        for (int h : handles.toArray())
+            s = s.with(h);
+        return s;
+    }
+
+    private PersistentIntSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(int v) {
+        int h = mix(v);
+        Node n = root;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = bit(h, shift);
+            if (0 != (n.datamap & bit))
+                return v == n.values[index(n.datamap, bit)];
+            if (0 == (n.nodemap & bit))
+                return false;
+            n = n.nodes[index(n.nodemap, bit)];
+        }
+    }
+
+    PersistentIntSet with(int v) {
+        Node r = with(root, v, mix(v), 0);
+        return (r == root) ? this : new PersistentIntSet(r, size + 1);
+    }
+
+    PersistentIntSet without(int v) {
+        Node r = without(root, v, mix(v), 0);
+        return (r == root) ? this : new PersistentIntSet(r, size - 1);
+    }
+
+    @Override
+    public int[] toArray() {
+        int[] a = new int[size];
+        collect(root, a, 0);
+        return a;
+    }
+
+    // each value, and its share of the trie's nodes, at about 12 bytes
+    @Override
+    public long bytes() {
+        return ElementStore.OBJECT + 12L * size;
+    }
+
+    /**
+     * @return onto, plus the values this set has that from doesn't, less the ones
+     * from has that this set doesn't. Subtrees this set shares with from are skipped,
+     * so the cost is in the changes, not the size.
+     */
+    PersistentIntSet rebase(PersistentIntSet from, PersistentIntSet onto) {
+        return rebase(from.root, root, onto);
+    }
+
+    @Override
+    public String toString() {
+        int[] a = toArray();
+        Arrays.sort(a);
+        return Arrays.toString(a);
+    }
+
+    // =================================
+    private static final class Node {
+        Node(int datamap, int nodemap, int[] values, Node[] nodes) {
+            this.datamap = datamap;
+            this.nodemap = nodemap;
+            this.values = values;
+            this.nodes = nodes;
+        }
+
+        final int datamap, nodemap;
+        // in position order
+        final int[] values;
+        final Node[] nodes;
+    }
+
+    private static Node with(Node n, int v, int h, int shift) {
+        int bit = bit(h, shift);
+        if (0 != (n.datamap & bit)) {
+            int i = index(n.datamap, bit);
+            int w = n.values[i];
+            if (w == v)
+                return n;
+            Node sub = pair(w, mix(w), v, h, shift + BITS);
+            return new Node(n.datamap ^ bit, n.nodemap | bit,
+                    removeAt(n.values, i), insertAt(n.nodes, index(n.nodemap, bit), sub));
+        }
+        if (0 != (n.nodemap & bit)) {
+            int i = index(n.nodemap, bit);
+            Node child = n.nodes[i];
+            Node changed = with(child, v, h, shift + BITS);
+            return (changed == child) ? n : new Node(n.datamap, n.nodemap, n.values, replaceAt(n.nodes, i, changed));
+        }
+        return new Node(n.datamap | bit, n.nodemap, insertAt(n.values, index(n.datamap, bit), v), n.nodes);
+    }
+
+    private static Node without(Node n, int v, int h, int shift) {
+        int bit = bit(h, shift);
+        if (0 != (n.datamap & bit)) {
+            int i = index(n.datamap, bit);
+            if (v != n.values[i])
+                return n;
+            return new Node(n.datamap ^ bit, n.nodemap, removeAt(n.values, i), n.nodes);
+        }
+        if (0 != (n.nodemap & bit)) {
+            int i = index(n.nodemap, bit);
+            Node child = n.nodes[i];
+            Node changed = without(child, v, h, shift + BITS);
+            if (changed == child)
+                return n;
+            if (0 == changed.nodemap && 1 == changed.values.length)
+                return new Node(n.datamap | bit, n.nodemap ^ bit,
+                        insertAt(n.values, index(n.datamap, bit), changed.values[0]), removeAt(n.nodes, i));
+            return new Node(n.datamap, n.nodemap, n.values, replaceAt(n.nodes, i, changed));
+        }
+        return n;
+    }
+
+    // a node holding two values whose hashes agree up to shift
+    private static Node pair(int a, int ha, int b, int hb, int shift) {
+        int pa = (ha >>> shift) & 31, pb = (hb >>> shift) & 31;
+        if (pa == pb)
+            return new Node(0, 1 << pa, NO_VALUES, new Node[]{pair(a, ha, b, hb, shift + BITS)});
+        int[] values = (pa < pb) ? new int[]{a, b} : new int[]{b, a};
+        return new Node((1 << pa) | (1 << pb), 0, values, NO_NODES);
+    }
+
+    private static int collect(Node n, int[] into, int at) {
+        System.arraycopy(n.values, 0, into, at, n.values.length);
+        at += n.values.length;
+        for (Node child : n.nodes)
+            at = collect(child, into, at);
+        return at;
+    }
+
+    private static PersistentIntSet rebase(Node from, Node to, PersistentIntSet onto) {
+        if (from == to)
+            return onto;
+        int positions = from.datamap | from.nodemap | to.datamap | to.nodemap;
+        while (0 != positions) {
+            int bit = Integer.lowestOneBit(positions);
+            positions ^= bit;
+            if (0 != (from.nodemap & bit) && 0 != (to.nodemap & bit)) {
+                onto = rebase(from.nodes[index(from.nodemap, bit)], to.nodes[index(to.nodemap, bit)], onto);
+                continue;
+            }
+            // a value on one side, or anything against nothing: small enough to compare outright
+            int[] was = at(from, bit), is = at(to, bit);
+            Arrays.sort(was);
+            Arrays.sort(is);
+            for (int v : was) {
+                if (Arrays.binarySearch(is, v) < 0)
+                    onto = onto.without(v);
+            }
+            for (int v : is) {
+                if (Arrays.binarySearch(was, v) < 0)
+                    onto = onto.with(v);
+            }
+        }
+        return onto;
+    }
+
+    // the values under one position of a node
+    private static int[] at(Node n, int bit) {
+        if (0 != (n.datamap & bit))
+            return new int[]{n.values[index(n.datamap, bit)]};
+        if (0 == (n.nodemap & bit))
+            return NO_VALUES;
+        Node child = n.nodes[index(n.nodemap, bit)];
+        int[] a = new int[count(child)];
+        collect(child, a, 0);
+        return a;
+    }
+
+    private static int count(Node n) {
+        int c = n.values.length;
+        for (Node child : n.nodes)
+            c += count(child);
+        return c;
+    }
+
+    // =================================
+    private static int mix(int v) {
+        int h = v * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int h, int shift) {
+        return 1 << ((h >>> shift) & 31);
+    }
+
+    private static int index(int map, int bit) {
+        return Integer.bitCount(map & (bit - 1));
+    }
+
+    private static int[] insertAt(int[] a, int i, int v) {
+        int[] b = new int[a.length + 1];
+        System.arraycopy(a, 0, b, 0, i);
+        b[i] = v;
+        System.arraycopy(a, i, b, i + 1, a.length - i);
+        return b;
+    }
+
+    private static int[] removeAt(int[] a, int i) {
+        if (1 == a.length)
+            return NO_VALUES;
+        int[] b = new int[a.length - 1];
+        System.arraycopy(a, 0, b, 0, i);
+        System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+        return b;
+    }
+
+    private static Node[] insertAt(Node[] a, int i, Node n) {
+        Node[] b = new Node[a.length + 1];
+        System.arraycopy(a, 0, b, 0, i);
+        b[i] = n;
+        System.arraycopy(a, i, b, i + 1, a.length - i);
+        return b;
+    }
+
+    private static Node[] removeAt(Node[] a, int i) {
+        if (1 == a.length)
+            return NO_NODES;
+        Node[] b = new Node[a.length - 1];
+        System.arraycopy(a, 0, b, 0, i);
+        System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+        return b;
+    }
+
+    private static Node[] replaceAt(Node[] a, int i, Node n) {
+        Node[] b = a.clone();
+        b[i] = n;
+        return b;
+    }
+
+    // =================================
+    private final Node root;
+    private final int size;
+}
@@ -0,0 +1,46 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+
+/**
+ * Where a graph's commits are persisted. The write-behind hands it each commit's
+ * ChangeSet, in commit order, on the write-behind's thread. Once apply returns, the
+ * batch counts as persisted and the journal may drop it; a batch the store rejects
+ * throws, and stays in the journal to be tried again. A graph without a usable
+ * snapshot is loaded from it. A store that can read back single elements lets the
+ * graph evict them, and fetch them again when they're next read.
+ */
+interface Persister {
+    /**
+     * @param replay whether the batch is being replayed from the journal, so may
+     *               already be persisted, in whole or in part
+     * @throws RuntimeException if the batch isn't wholly persisted
+     */
+    void apply(ChangeSet batch, boolean replay);
+
+    // the graph these commits come from, once it's built and before it commits
+    void attach(CPIGraph g);
+
+    /**
+     * Fills an empty graph with everything persisted.
+     *
+     * @param threads how many threads may load at once, where the store can be read
+     *                in parallel
+     */
+    void load(CPIGraph g, int threads);
+
+    // whether fetchVertex and fetchEdge work
+    boolean fetches();
+
+    /**
+     * @return the vertex as persisted, with its adjacency, or null if there's none
+     */
+    CPIVertex fetchVertex(CPIGraph g, String id);
+
+    // the edge as persisted, or null if there's none
+    CPIEdge fetchEdge(CPIGraph g, String id);
+
+    // once the last batch is applied
+    void shutdown();
+}
@@ -0,0 +1,276 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An element's properties, stored as parallel arrays: key ids from a dictionary shared
+ * by every graph, and a value slot per key. int, long, double, float and boolean
+ * values are kept unboxed in a long[]; anything else goes in an Object[], allocated
+ * only once there's such a value. Keys are found by a linear scan of the key ids,
+ * which for the handful of keys most elements have beats hashing.
+ * <p>
+ * A copy shares its source's arrays until either side next changes, so the copy a
+ * transaction makes of an element it touches costs one object. Not thread-safe; a
+ * committed element's properties aren't changed once it's visible.
+ */
+final class PropertyMap extends AbstractMap<String, Object> {
+    // keys are few and long-lived, so the dictionary is never trimmed
+    private static final IdInterner KEYS = new IdInterner(64);
+
+    private static final byte REF = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte FLOAT = 4;
+    private static final byte BOOLEAN = 5;
+
+    private static final int[] NO_KEYS = new int[0];
+    private static final byte[] NO_TYPES = new byte[0];
+
+    PropertyMap() {
+    }
+
+    PropertyMap(PropertyMap src) {
+        keys = src.keys;
+        types = src.types;
+        bits = src.bits;
+        refs = src.refs;
+        size = src.size;
+        shared = src.shared = true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return -1 != slot(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = slot(key);
+        return (-1 == i) ? null : value(i);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        unshare();
+        int k = KEYS.intern(key);
+        int i = indexOf(k);
+        Object was = null;
+        if (-1 == i) {
+            if (size == keys.length)
+                grow();
+            i = size++;
+            keys[i] = k;
+        } else {
+            was = value(i);
+        }
+        set(i, value);
+        return was;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int i = slot(key);
+        if (-1 == i)
+            return null;
+        unshare();
+        Object was = value(i);
+        removeAt(i);
+        return was;
+    }
+
+    @Override
+    public void clear() {
+        keys = NO_KEYS;
+        types = NO_TYPES;
+        bits = null;
+        refs = null;
+        size = 0;
+        shared = false;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int next = 0;
+                    private boolean removable = false;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (next >= size)
+                            throw new NoSuchElementException();
+                        removable = true;
+                        int i = next++;
+                        return new SimpleImmutableEntry<>(KEYS.id(keys[i]), value(i));
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (!removable)
+                            throw new IllegalStateException();
+                        removable = false;
+                        unshare();
+                        // the last slot moves into the hole, so look at it next
+                        removeAt(--next);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return a rough count of the bytes the map holds: its arrays, and the values
+     * that aren't unboxed. Arrays shared with a copy are counted by each.
+     */
+    long bytes() {
+        long n = ElementStore.OBJECT + 2 * ElementStore.ARRAY + 5L * keys.length;
+        if (null != bits)
+            n += ElementStore.ARRAY + 8L * bits.length;
+        if (null != refs) {
+            n += ElementStore.ARRAY + 8L * refs.length;
+            for (int i = 0; i < size; i++) {
+                Object v = refs[i];
+                if (v instanceof String)
+                    n += ElementStore.string((String) v);
+                else if (v instanceof byte[])
+                    n += ElementStore.ARRAY + ((byte[]) v).length;
+                else if (null != v)
+                    n += ElementStore.BOXED;
+            }
+        }
+        return n;
+    }
+
+    // =================================
+    private int slot(Object key) {
+        if (!(key instanceof String))
+            return -1;
+        int k = KEYS.handle((String) key);
+        return (-1 == k) ? -1 : indexOf(k);
+    }
+
+    private int indexOf(int k) {
+        for (int i = 0; i < size; i++) {
+            if (k == keys[i])
+                return i;
+        }
+        return -1;
+    }
+
+    private Object value(int i) {
+        long b = (null == bits) ? 0 : bits[i];
+        switch (types[i]) {
+            case INT:
+                return (int) b;
+            case LONG:
+                return b;
+            case DOUBLE:
+                return Double.longBitsToDouble(b);
+            case FLOAT:
+                return Float.intBitsToFloat((int) b);
+            case BOOLEAN:
+                return 0 != b;
+            default:
+                return refs[i];
+        }
+    }
+
+    private void set(int i, Object value) {
+        byte type;
+        long b;
+        if (value instanceof Integer) {
+            type = INT;
+            b = (Integer) value;
+        } else if (value instanceof Long) {
+            type = LONG;
+            b = (Long) value;
+        } else if (value instanceof Double) {
+            type = DOUBLE;
+            b = Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof Float) {
+            type = FLOAT;
+            b = Float.floatToRawIntBits((Float) value);
+        } else if (value instanceof Boolean) {
+            type = BOOLEAN;
+            b = ((Boolean) value) ? 1 : 0;
+        } else {
+            if (null == refs)
+                refs = new Object[keys.length];
+            types[i] = REF;
+            refs[i] = value;
+            return;
+        }
+        if (null == bits)
+            bits = new long[keys.length];
+        types[i] = type;
+        bits[i] = b;
+        if (null != refs)
+            refs[i] = null;
+    }
+
+    private void removeAt(int i) {
+        int last = --size;
+        keys[i] = keys[last];
+        types[i] = types[last];
+        if (null != bits)
+            bits[i] = bits[last];
+        if (null != refs) {
+            refs[i] = refs[last];
+            refs[last] = null;
+        }
+    }
+
+    private void grow() {
+        int capacity = Math.max(2, keys.length + (keys.length >> 1) + 1);
+        keys = Arrays.copyOf(keys, capacity);
+        types = Arrays.copyOf(types, capacity);
+        if (null != bits)
+            bits = Arrays.copyOf(bits, capacity);
+        if (null != refs)
+            refs = Arrays.copyOf(refs, capacity);
+    }
+
+    private void unshare() {
+        if (!shared)
+            return;
+        keys = keys.clone();
+        types = types.clone();
+        if (null != bits)
+            bits = bits.clone();
+        if (null != refs)
+            refs = refs.clone();
+        shared = false;
+    }
+
+    // =================================
+    private int[] keys = NO_KEYS;
+    private byte[] types = NO_TYPES;
+    private long[] bits = null;
+    private Object[] refs = null;
+    private int size = 0;
+    // the arrays may be another map's too
+    private boolean shared = false;
+}
@@ -0,0 +1,45 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.base.Objects;
+
+/**
+ * A flyweight table of a graph's proxies, direct-mapped by handle and bounded, so a
+ * traversal that keeps coming back to the same elements hands out the proxies it
+ * made before rather than making new ones. A slot holds whichever proxy was last put
+ * in it. One for a handle that has since been reused for another element isn't
+ * handed out, as its id doesn't match.
+ */
+final class ProxyPool<P extends CPIElementProxy> {
+    static final int DEFAULT_SIZE = 1 << 12;
+
+    ProxyPool() {
+        this(DEFAULT_SIZE);
+    }
+
+    // rounded up to a power of two
+    ProxyPool(int size) {
+        int n = Integer.highestOneBit(Math.max(1, size - 1) << 1);
+        slots = new AtomicReferenceArray<>(n);
+        mask = n - 1;
+    }
+
+    /**
+     * @return the pooled proxy for the element, or null if there isn't one
+     */
+    P get(int handle, String id) {
+        P p = slots.get(handle & mask);
+        return (null != p && p.handle == handle && Objects.equal(p.id, id)) ? p : null;
+    }
+
+    // the proxies are immutable but for what they last resolved to, so a racy put is harmless
+    P put(P p) {
+        slots.lazySet(p.handle & mask, p);
+        return p;
+    }
+
+    // =================================
+    private final AtomicReferenceArray<P> slots;
+    private final int mask;
+}
@@ -0,0 +1,83 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Stopwatch;
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persists a graph as the log of its commits, with no SoR: each batch is appended
+ * to a directory of segments in the journal's format, which are never checkpointed
+ * or purged, and the graph is loaded by replaying them all. Writes are sequential,
+ * with one force per batch.
+ * <p>
+ * A replayed batch can only already be here as the last record, since the journal
+ * checkpoints each batch as soon as it has been applied here. A batch applied twice
+ * in a row leaves the graph as applying it once, so it's simply appended again.
+ * <p>
+ * Nothing compacts the log yet, so it grows with every commit. Nor can it be read by
+ * element, so a graph persisted here keeps all its elements in memory.
+ */
+@Slf4j
+class SegmentPersister implements Persister {
+    SegmentPersister(File dir) throws IOException {
+        this.dir = dir;
+        this.segments = new CommitJournal(dir, CommitJournal.DEFAULT_SEGMENT_SIZE);
+    }
+
+    @Override
+    public void apply(ChangeSet batch, boolean replay) {
+        segments.sync(segments.append(batch));
+    }
+
+    @Override
+    public void attach(CPIGraph g) {
+    }
+
+    // in commit order, so single threaded
+    @Override
+    public void load(final CPIGraph g, int threads) {
+        Stopwatch sw = Stopwatch.createStarted();
+        final AtomicLong commits = new AtomicLong();
+        try {
+            segments.replay(0, new CommitJournal.Replay() {
+                @Override
+                public void apply(long seq, ChangeSet batch) {
+                    g.rawApply(batch);
+                    commits.incrementAndGet();
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load " + g.getId() + " from " + dir, e);
+        }
+        log.info("{} loaded {} commits from {} in {}", g.getId(), commits, dir, sw);
+    }
+
+    @Override
+    public boolean fetches() {
+        return false;
+    }
+
+    @Override
+    public CPIVertex fetchVertex(CPIGraph g, String id) {
+        throw new UnsupportedOperationException("segment store can't fetch " + id);
+    }
+
+    @Override
+    public CPIEdge fetchEdge(CPIGraph g, String id) {
+        throw new UnsupportedOperationException("segment store can't fetch " + id);
+    }
+
+    @Override
+    public void shutdown() {
+        segments.close();
+    }
+
+    // =======================================
+    private final File dir;
+    private final CommitJournal segments;
+}
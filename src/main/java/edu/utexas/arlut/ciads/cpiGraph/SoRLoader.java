@@ -0,0 +1,127 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Stopwatch;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
+import com.tinkerpop.blueprints.Vertex;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fills a CPIGraph from its system of record in a single pass over vertices, then
+ * edges. Elements are streamed off the SoR in chunks and turned into impls (and
+ * index entries) on a pool of workers; a bounded number of chunks is in flight, so
+ * the loader never holds more than a few chunks of SoR elements.
+ */
+@Slf4j
+class SoRLoader {
+    static final int CHUNK = 10000;
+    static final long REPORT_EVERY = 100000;
+
+    SoRLoader(CPIGraph graph, KeyIndexableGraph sor) {
+        this(graph, sor, Runtime.getRuntime().availableProcessors());
+    }
+
+    SoRLoader(CPIGraph graph, KeyIndexableGraph sor, int threads) {
+        this.graph = graph;
+        this.sor = sor;
+        this.threads = threads;
+    }
+
+    void load() {
+        Stopwatch sw = Stopwatch.createStarted();
+        for (String key : sor.getIndexedKeys(Vertex.class)) {
+            if (!CPIGraph.ID.equals(key))
+                graph.vIndices.addIndex(key, false);
+        }
+        for (String key : sor.getIndexedKeys(Edge.class)) {
+            if (!CPIGraph.ID.equals(key))
+                graph.eIndices.addIndex(key, false);
+        }
+
+        long vertices = stream(sor.getVertices(), "vertices");
+        // edges need all their endpoints in place first
+        long edges = stream(sor.getEdges(), "edges");
+        log.info("{} loaded {} vertices, {} edges in {}", graph.getId(), vertices, edges, sw);
+    }
+
+    // =================================
+    private <T extends Element> long stream(Iterable<T> elements, final String what) {
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(2 * threads);
+        final AtomicLong loaded = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Stopwatch sw = Stopwatch.createStarted();
+
+        try {
+            List<T> chunk = newArrayListWithCapacity(CHUNK);
+            for (T t : elements) {
+                chunk.add(t);
+                if (chunk.size() == CHUNK) {
+                    submit(workers, inFlight, chunk, loaded, failure, what, sw);
+                    chunk = newArrayListWithCapacity(CHUNK);
+                }
+                if (null != failure.get())
+                    break;
+            }
+            if (!chunk.isEmpty())
+                submit(workers, inFlight, chunk, loaded, failure, what, sw);
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted loading " + what + " for " + graph.getId(), e);
+        } finally {
+            workers.shutdownNow();
+        }
+        if (null != failure.get())
+            throw new IllegalStateException("Unable to load " + what + " for " + graph.getId(), failure.get());
+        return loaded.get();
+    }
+
+    private <T extends Element> void submit(final ExecutorService workers, final Semaphore inFlight,
+                                            final List<T> chunk, final AtomicLong loaded,
+                                            final AtomicReference<Throwable> failure,
+                                            final String what, final Stopwatch sw) throws InterruptedException {
+        inFlight.acquire();
+        workers.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (T t : chunk) {
+                        if (t instanceof Vertex)
+                            graph.rawAdd((Vertex) t);
+                        else
+                            graph.rawAdd((Edge) t);
+                    }
+                    // so a SoR bigger than the bound is loaded without holding all of it
+                    graph.evict();
+                    long before = loaded.getAndAdd(chunk.size());
+                    if (before / REPORT_EVERY != (before + chunk.size()) / REPORT_EVERY) {
+                        long n = before + chunk.size();
+                        log.info("{} loading {}: {} in {} ({}/s)", graph.getId(), what, n, sw,
+                                n * 1000 / Math.max(1, sw.elapsed(TimeUnit.MILLISECONDS)));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    private final CPIGraph graph;
+    private final KeyIndexableGraph sor;
+    private final int threads;
+}
@@ -0,0 +1,62 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+
+import lombok.Getter;
+
+/**
+ * How much committed-but-unapplied work a write-behind queue may hold, and
+ * what happens to a commit once it is full.
+ */
+@Getter
+public class WriteBehindConfig {
+    public enum Overflow {
+        // the committing thread waits for the SoR to catch up
+        BLOCK,
+        // the commit fails with a WriteBehindFullException
+        FAIL,
+        // batches past the limit are written to disk, and read back in order
+        SPILL
+    }
+
+    public static final WriteBehindConfig DEFAULT = block(1000000);
+
+    public static WriteBehindConfig block(int maxPendingOps) {
+        return new WriteBehindConfig(maxPendingOps, Overflow.BLOCK, null, 1);
+    }
+
+    public static WriteBehindConfig failFast(int maxPendingOps) {
+        return new WriteBehindConfig(maxPendingOps, Overflow.FAIL, null, 1);
+    }
+
+    public static WriteBehindConfig spill(int maxPendingOps, File spillDir) {
+        return new WriteBehindConfig(maxPendingOps, Overflow.SPILL, checkNotNull(spillDir), 1);
+    }
+
+    /**
+     * The same limits, with batches applied to a Blueprints SoR by this many threads.
+     * Vertex adds and property writes are spread over them by element id; see
+     * BlueprintsPersister.
+     */
+    public WriteBehindConfig withAppliers(int appliers) {
+        return new WriteBehindConfig(maxPendingOps, overflow, spillDir, appliers);
+    }
+
+    private WriteBehindConfig(int maxPendingOps, Overflow overflow, File spillDir, int appliers) {
+        checkArgument(maxPendingOps > 0, "maxPendingOps must be positive");
+        checkArgument(appliers > 0, "appliers must be positive");
+        this.maxPendingOps = maxPendingOps;
+        this.overflow = overflow;
+        this.spillDir = spillDir;
+        this.appliers = appliers;
+    }
+
+    // the in-memory limit, in coalesced SoR operations
+    private final int maxPendingOps;
+    private final Overflow overflow;
+    private final File spillDir;
+    private final int appliers;
+}
@@ -0,0 +1,13 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+/**
+ * Thrown from commit() when the write-behind queue is full and configured to fail fast.
+ * The transaction is left intact, so it may be retried or rolled back.
+ */
+public class WriteBehindFullException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    WriteBehindFullException(String graphId, long pendingOps, int maxPendingOps) {
+        super("Write-behind for " + graphId + " is full: " + pendingOps + " of " + maxPendingOps + " ops pending");
+    }
+}
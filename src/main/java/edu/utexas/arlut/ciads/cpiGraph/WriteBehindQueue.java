@@ -0,0 +1,248 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Queues.newArrayDeque;
+
+import java.io.*;
+import java.util.Queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Committed batches waiting for the SoR, bounded by the number of coalesced
+ * operations held in memory. What happens past the bound is up to the
+ * {@link WriteBehindConfig.Overflow} policy. Spilled batches are always newer than
+ * the ones in memory, so draining memory first and then the spill file keeps
+ * commit order. With a journal, each batch is journaled once it has been admitted,
+ * and before it's visible to the applier.
+ */
+@Slf4j
+class WriteBehindQueue {
+    static class Entry {
+        Entry(ChangeSet batch, long enqueued, long seq) {
+            this.batch = batch;
+            this.enqueued = enqueued;
+            this.seq = seq;
+            this.ops = batch.size();
+        }
+
+        final ChangeSet batch;
+        final long enqueued;
+        // journal sequence number, 0 when not journaled
+        final long seq;
+        final int ops;
+    }
+
+    WriteBehindQueue(String name, WriteBehindConfig config) {
+        this(name, config, null);
+    }
+
+    WriteBehindQueue(String name, WriteBehindConfig config, CommitJournal journal) {
+        this.name = name;
+        this.config = config;
+        this.journal = journal;
+    }
+
+    // =================================
+    /**
+     * @return the journal sequence number of the batch, 0 when not journaled
+     */
+    synchronized long put(ChangeSet batch) {
+        checkState(!closed, "write-behind for %s is shut down", name);
+        checkAlive();
+        int ops = batch.size();
+        switch (config.getOverflow()) {
+            case BLOCK:
+                while (full(ops)) {
+                    checkAlive();
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted waiting for write-behind " + name, ie);
+                    }
+                }
+                enqueue(admit(batch));
+                break;
+            case FAIL:
+                if (full(ops))
+                    throw new WriteBehindFullException(name, pendingOps, config.getMaxPendingOps());
+                enqueue(admit(batch));
+                break;
+            case SPILL:
+                if (spilled > 0 || full(ops))
+                    spill(admit(batch));
+                else
+                    enqueue(admit(batch));
+                break;
+        }
+        notifyAll();
+        return lastSeq;
+    }
+
+    /**
+     * @return the next batch to apply, or null once closed and drained
+     */
+    synchronized Entry take() throws InterruptedException {
+        while (memory.isEmpty() && 0 == spilled) {
+            if (closed)
+                return null;
+            wait();
+        }
+        if (memory.isEmpty()) {
+            inFlight = unspill();
+            pendingOps += inFlight.ops;
+        } else {
+            inFlight = memory.remove();
+        }
+        return inFlight;
+    }
+
+    synchronized void done(Entry e) {
+        inFlight = null;
+        pendingOps -= e.ops;
+        appliedOps += e.ops;
+        meter.mark(e.ops);
+        notifyAll();
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * The applier has died, and nothing will be taken again: committers waiting for
+     * room, and any that come later, get an IllegalStateException rather than hang.
+     */
+    synchronized void fail(Throwable cause) {
+        failure = cause;
+        notifyAll();
+    }
+
+    synchronized WriteBehindStats stats() {
+        long oldest = (null != inFlight) ? inFlight.enqueued
+                : !memory.isEmpty() ? memory.peek().enqueued
+                : !spillEnqueued.isEmpty() ? spillEnqueued.peek() : 0;
+        long age = (0 == oldest) ? 0 : System.currentTimeMillis() - oldest;
+        return new WriteBehindStats(memory.size() + spilled, spilled, pendingOps,
+                age, meter.rate(), appliedOps);
+    }
+
+    // =================================
+    private void checkAlive() {
+        if (null != failure)
+            throw new IllegalStateException("write-behind applier for " + name + " has failed", failure);
+    }
+
+    // an oversized batch is let through once everything ahead of it has been applied
+    private boolean full(int ops) {
+        return pendingOps > 0 && pendingOps + ops > config.getMaxPendingOps();
+    }
+
+    private Entry admit(ChangeSet batch) {
+        lastSeq = (null == journal) ? 0 : journal.append(batch);
+        return new Entry(batch, System.currentTimeMillis(), lastSeq);
+    }
+
+    private void enqueue(Entry e) {
+        memory.add(e);
+        pendingOps += e.ops;
+    }
+
+    private void spill(Entry e) {
+        try {
+            if (null == spillOut) {
+                File dir = config.getSpillDir();
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("Unable to create spill directory " + dir);
+                spillFile = new File(dir, name + ".spill");
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                log.warn("write-behind for {} spilling to {}", name, spillFile);
+            }
+            spillOut.writeLong(e.enqueued);
+            spillOut.writeLong(e.seq);
+            e.batch.writeTo(spillOut);
+            spillOut.flush();
+            spilled++;
+            spillEnqueued.add(e.enqueued);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to spill write-behind batch for " + name, ex);
+        }
+    }
+
+    private Entry unspill() {
+        try {
+            if (null == spillIn)
+                spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            long enqueued = spillIn.readLong();
+            long seq = spillIn.readLong();
+            Entry e = new Entry(ChangeSet.readFrom(spillIn), enqueued, seq);
+            spillEnqueued.remove();
+            if (0 == --spilled) {
+                spillOut.close();
+                spillIn.close();
+                spillOut = null;
+                spillIn = null;
+                if (!spillFile.delete())
+                    log.warn("Unable to delete spill file {}", spillFile);
+                log.info("write-behind for {} caught up with spill", name);
+            }
+            return e;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read spilled write-behind batch for " + name, ex);
+        }
+    }
+
+    // =================================
+    // ops per second over a ring of one-second buckets, the current bucket excluded
+    static class RateMeter {
+        private static final int WINDOW = 10;
+
+        void mark(long n) {
+            long now = System.currentTimeMillis() / 1000;
+            roll(now);
+            buckets[(int) (now % WINDOW)] += n;
+        }
+
+        double rate() {
+            long now = System.currentTimeMillis() / 1000;
+            roll(now);
+            long sum = 0;
+            for (int i = 0; i < WINDOW; i++) {
+                if (i != (int) (now % WINDOW))
+                    sum += buckets[i];
+            }
+            return sum / (double) (WINDOW - 1);
+        }
+
+        private void roll(long now) {
+            for (long s = Math.max(last + 1, now - WINDOW + 1); s <= now; s++)
+                buckets[(int) (s % WINDOW)] = 0;
+            last = Math.max(last, now);
+        }
+
+        private final long[] buckets = new long[WINDOW];
+        private long last = 0;
+    }
+
+    // =================================
+    private final String name;
+    private final WriteBehindConfig config;
+    private final CommitJournal journal;
+    private final Queue<Entry> memory = newArrayDeque();
+    private final RateMeter meter = new RateMeter();
+    private Entry inFlight = null;
+    private long pendingOps = 0;
+    private long appliedOps = 0;
+    private long lastSeq = 0;
+    private boolean closed = false;
+    private Throwable failure = null;
+
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    private int spilled = 0;
+    // when each spilled batch was enqueued, oldest first, for the lag
+    private final Queue<Long> spillEnqueued = newArrayDeque();
+}
@@ -0,0 +1,32 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A point-in-time view of write-behind lag.
+ */
+@Getter
+@ToString
+public class WriteBehindStats {
+    WriteBehindStats(int queuedBatches, int spilledBatches, long pendingOps,
+                     long oldestPendingMillis, double opsPerSecond, long appliedOps) {
+        this.queuedBatches = queuedBatches;
+        this.spilledBatches = spilledBatches;
+        this.pendingOps = pendingOps;
+        this.oldestPendingMillis = oldestPendingMillis;
+        this.opsPerSecond = opsPerSecond;
+        this.appliedOps = appliedOps;
+    }
+
+    // committed batches waiting for the SoR, including any spilled to disk
+    private final int queuedBatches;
+    private final int spilledBatches;
+    // coalesced operations held in memory, including the batch being applied
+    private final long pendingOps;
+    // age of the oldest committed batch not yet applied, 0 when caught up
+    private final long oldestPendingMillis;
+    // SoR operations applied per second, averaged over the last few seconds
+    private final double opsPerSecond;
+    private final long appliedOps;
+}
@@ -0,0 +1,255 @@
+package edu.utexas.arlut.ciads.cacheGraph;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.collect.Iterables.size;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GraphTransactionTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+    private CachedGraph<Neo4jGraph> g;
+    private ExecutorService other;
+
+    @Before
+    public void before() {
+        other = Executors.newSingleThreadExecutor();
+        Neo4jGraph sor = new Neo4jGraph(tmpDir.getRoot().getPath());
+        // neo4j's reference node has no id to cache it by
+        for (Vertex v : sor.getVertices())
+            sor.removeVertex(v);
+        sor.commit();
+        g = new CachedGraph<>(sor);
+    }
+
+    @After
+    public void after() {
+        other.shutdownNow();
+        g.shutdown();
+    }
+
+    private <T> T inOther(Callable<T> c) throws Exception {
+        try {
+            return other.submit(c).get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    @Test
+    public void testUncommittedChangesArePrivate() throws Exception {
+        Vertex v0 = g.addVertex(null);
+        v0.setProperty("name", "zero");
+        final String id = v0.getId().toString();
+        assertEquals("zero", g.getVertex(id).getProperty("name"));
+
+        assertNull(inOther(new Callable<Vertex>() {
+            @Override
+            public Vertex call() {
+                return g.getVertex(id);
+            }
+        }));
+        g.commit();
+        assertEquals("zero", inOther(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return g.getVertex(id).getProperty("name");
+            }
+        }));
+    }
+
+    @Test
+    public void testRollback() {
+        Vertex v0 = g.addVertex(null);
+        g.commit();
+        v0.setProperty("name", "zero");
+        g.addEdge(null, v0, g.addVertex(null), "to");
+        g.rollback();
+
+        assertNull(v0.getProperty("name"));
+        assertEquals(0, size(v0.getEdges(Direction.OUT)));
+        assertEquals(1, size(g.getVertices()));
+    }
+
+    @Test
+    public void testConflictPublishesNothing() throws Exception {
+        final Vertex v0 = g.addVertex(null);
+        final Vertex v1 = g.addVertex(null);
+        g.commit();
+
+        // this transaction's edge goes on before its endpoint turns out to be gone
+        g.addEdge(null, v0, v1, "to");
+        v0.setProperty("name", "zero");
+        g.addEdge(null, v1, v0, "back");
+        inOther(new Callable<Void>() {
+            @Override
+            public Void call() {
+                g.removeVertex(g.getVertex(v0.getId()));
+                g.commit();
+                return null;
+            }
+        });
+        try {
+            g.commit();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected, and none of it was staged on anything shared
+        }
+        assertNull(g.getVertex(v0.getId()));
+        assertEquals(0, size(v1.getEdges(Direction.BOTH)));
+        assertEquals(0, size(g.getEdges()));
+    }
+
+    @Test
+    public void testCommitSwapsInNewImpls() {
+        CachedVertex v0 = (CachedVertex) g.addVertex(null);
+        CachedVertex v1 = (CachedVertex) g.addVertex(null);
+        g.commit();
+
+        // a reader holding the impls from before the commit sees none of it
+        CachedElement.Impl was = v0.impl;
+        v0.setProperty("name", "zero");
+        g.addEdge(null, v0, v1, "to");
+        g.commit();
+        assertNull(was.properties.get("name"));
+        assertFalse(((CachedVertex.Impl) was).hasEdges());
+        assertEquals("zero", v0.impl.properties.get("name"));
+        assertTrue(((CachedVertex.Impl) v0.impl).hasEdges());
+    }
+
+    @Test
+    public void testIndexedLookup() {
+        g.createKeyIndex("name", Vertex.class);
+        Vertex v0 = g.addVertex(null);
+        v0.setProperty("name", "zero");
+        assertEquals(v0, getOnlyElement(g.getVertices("name", "zero")));
+        g.commit();
+
+        v0.setProperty("name", "nil");
+        assertEquals(0, size(g.getVertices("name", "zero")));
+        g.commit();
+        assertEquals(v0, getOnlyElement(g.getVertices("name", "nil")));
+    }
+
+    @Test
+    public void testReadThroughPastTheCache() throws Exception {
+        final int n = 3000;
+        Neo4jGraph sor = new Neo4jGraph(tmpDir.newFolder("big").getPath());
+        sor.createKeyIndex("name", Vertex.class);
+        Vertex prev = null;
+        for (int i = 0; i < n; i++) {
+            Vertex v = sor.addVertex(null);
+            v.setProperty(CachedGraph.ID, "v" + i);
+            v.setProperty("name", "name" + i);
+            if (null != prev)
+                sor.addEdge(null, prev, v, "next").setProperty(CachedGraph.ID, "e" + i);
+            prev = v;
+        }
+        sor.commit();
+
+        CachedGraph<Neo4jGraph> big = new CachedGraph<>(sor);
+        try {
+            Vertex v1 = big.getVertex("v1");
+            v1.setProperty("name", "one");
+            big.commit();
+            // every vertex and edge is found, well past the caches' bounds
+            assertEquals(n, size(big.getVertices()));
+            assertEquals(n - 1, size(big.getEdges()));
+            // and the scans don't cache what they pass over
+            assertEquals(1, big.vertexCache.size());
+            assertEquals(0, big.edgeCache.size());
+            // what's still referenced is the same element, and keeps its changes
+            assertSame(v1, big.getVertex("v1"));
+            assertEquals("one", big.getVertex("v1").getProperty("name"));
+            assertEquals("v1", getOnlyElement(big.getVertex("v0").getVertices(Direction.OUT)).getId());
+            assertEquals("v2", getOnlyElement(v1.getVertices(Direction.OUT)).getId());
+            assertEquals(v1, getOnlyElement(big.getVertices("name", "one")));
+            assertEquals("v2999", getOnlyElement(big.getVertices("name", "name2999")).getId());
+            assertEquals(0, size(big.getVertices("name", "name1")));
+            assertNull(big.getVertex("v" + n));
+        } finally {
+            big.shutdown();
+        }
+    }
+
+    @Test
+    public void testIndexOverAPopulatedSoR() throws Exception {
+        final int n = 1000;
+        Neo4jGraph sor = new Neo4jGraph(tmpDir.newFolder("populated").getPath());
+        for (int i = 0; i < n; i++) {
+            Vertex v = sor.addVertex(null);
+            v.setProperty(CachedGraph.ID, "v" + i);
+            v.setProperty("name", "name" + (i % 10));
+        }
+        sor.commit();
+
+        CachedGraph<Neo4jGraph> populated = new CachedGraph<>(sor);
+        try {
+            // found whether or not the index has been filled in from the SoR yet
+            populated.createKeyIndex("name", Vertex.class);
+            assertEquals(n / 10, size(populated.getVertices("name", "name3")));
+            assertEquals("v7", populated.getVertex("v7").getId());
+            while (!populated.vertexIndex.get("name").isComplete())
+                Thread.sleep(10);
+            assertEquals(n / 10, size(populated.getVertices("name", "name3")));
+            assertEquals(n / 10, populated.indexedVertices("name", "name3").size());
+        } finally {
+            populated.shutdown();
+        }
+    }
+
+    @Test
+    public void testCacheBudget() throws Exception {
+        CacheBudget budget = new CacheBudget(2 << 20);
+        // a gets what's left of what it asks for
+        CachedGraph<Neo4jGraph> a = new CachedGraph<>(new Neo4jGraph(tmpDir.newFolder("a").getPath()), 4 << 20, budget);
+        try {
+            assertEquals(0, budget.remaining());
+            // and then there's nothing for b
+            Neo4jGraph sor = new Neo4jGraph(tmpDir.newFolder("b").getPath());
+            try {
+                new CachedGraph<>(sor, 1 << 20, budget);
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected, the budget is spent
+            } finally {
+                sor.shutdown();
+            }
+
+            Vertex hub = a.addVertex(null);
+            Vertex leaf = a.addVertex(null);
+            for (int i = 0; i < 1000; i++)
+                a.addEdge(null, hub, a.addVertex(null), "to");
+            a.commit();
+            assertTrue(((CachedVertex) hub).bytes() > 100 * ((CachedVertex) leaf).bytes());
+
+            String id = leaf.getId().toString();
+            a.getVertex(id).setProperty("name", "leaf");
+            a.commit();
+            // whether or not that's been written yet, it's not lost
+            System.gc();
+            assertEquals("leaf", a.getVertex(id).getProperty("name"));
+        } finally {
+            a.shutdown();
+        }
+        assertEquals(2 << 20, budget.remaining());
+    }
+}
@@ -0,0 +1,56 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Iterables.size;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlueprintsPersisterTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private void assertStepFailureFailsTheBatch(int appliers) throws IOException {
+        Neo4jGraph sor = new Neo4jGraph(tmpDir.newFolder().getPath());
+        sor.createKeyIndex(CPIGraph.ID, Vertex.class);
+        sor.createKeyIndex(CPIGraph.ID, Edge.class);
+        sor.commit();
+        BlueprintsPersister<Neo4jGraph> p = new BlueprintsPersister<>("test", sor, appliers);
+        ChangeSet batch = new ChangeSet();
+        batch.addVertex("v0");
+        batch.setVProperty("missing", "name", "nobody");
+        try {
+            p.apply(batch, false);
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+
+        // a replay picks up where the failure left off
+        batch = new ChangeSet();
+        batch.addVertex("v0");
+        batch.setVProperty("v0", "name", "zero");
+        p.apply(batch, true);
+        assertEquals(1, size(sor.getVertices(CPIGraph.ID, "v0")));
+        assertEquals("zero", sor.getVertices(CPIGraph.ID, "v0").iterator().next().getProperty("name"));
+        p.shutdown();
+    }
+
+    @Test
+    public void testStepFailureFailsTheBatch() throws IOException {
+        assertStepFailureFailsTheBatch(1);
+    }
+
+    @Test
+    public void testShardFailureFailsTheBatch() throws IOException {
+        assertStepFailureFailsTheBatch(3);
+    }
+}
@@ -0,0 +1,190 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.collect.Iterables.size;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.tinkerpop.blueprints.Compare;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Parameter;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CPIIndexTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+    private CPIGraph g;
+    private ExecutorService other;
+
+    @Before
+    public void before() throws IOException {
+        Neo4jGraph sor = new Neo4jGraph(tmpDir.newFolder("sor").getPath());
+        sor.createKeyIndex(CPIGraph.ID, Vertex.class);
+        sor.createKeyIndex(CPIGraph.ID, Edge.class);
+        g = new CPIGraph("aaa", new CPIWriteBehind("aaa", sor, WriteBehindConfig.DEFAULT));
+        g.createKeyIndex("name", Vertex.class);
+        g.createKeyIndex("weight", Edge.class);
+        g.vIndices.await("name");
+        g.eIndices.await("weight");
+        other = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void after() {
+        other.shutdownNow();
+        g.shutdown();
+        g.waitShutdown();
+    }
+
+    @Test
+    public void testCommitsAreIndexed() {
+        Vertex v0 = g.addVertex("v0");
+        v0.setProperty("name", "zero");
+        g.addEdge("e0", v0, g.addVertex("v1"), "to").setProperty("weight", 1);
+        // this transaction sees its own changes
+        assertEquals(v0, getOnlyElement(g.getVertices("name", "zero")));
+        g.commit();
+        assertEquals(v0, getOnlyElement(g.getVertices("name", "zero")));
+        assertEquals("e0", getOnlyElement(g.getEdges("weight", 1)).getId());
+
+        g.getVertex("v0").setProperty("name", "nil");
+        g.commit();
+        assertEquals(0, size(g.getVertices("name", "zero")));
+        assertEquals(v0, getOnlyElement(g.getVertices("name", "nil")));
+
+        g.removeVertex(g.getVertex("v0"));
+        g.commit();
+        assertEquals(0, size(g.getVertices("name", "nil")));
+        assertEquals(0, size(g.getEdges("weight", 1)));
+    }
+
+    @Test
+    public void testLookupsAreAtTheSnapshot() throws Exception {
+        g.addVertex("v0").setProperty("name", "zero");
+        g.commit();
+
+        assertEquals(1, size(g.getVertices("name", "zero")));
+        other.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                g.getVertex("v0").setProperty("name", "nil");
+                g.addVertex("v1").setProperty("name", "zero");
+                g.commit();
+                return null;
+            }
+        }).get();
+        Vertex v0 = getOnlyElement(g.getVertices("name", "zero"));
+        assertEquals("v0", v0.getId());
+        assertEquals(0, size(g.getVertices("name", "nil")));
+
+        g.rollback();
+        assertEquals("v1", getOnlyElement(g.getVertices("name", "zero")).getId());
+        assertEquals("v0", getOnlyElement(g.getVertices("name", "nil")).getId());
+    }
+
+    @Test
+    public void testBuildOnAPopulatedGraph() {
+        for (int i = 0; i < 10000; i++)
+            g.addVertex("v" + i).setProperty("color", (0 == i % 2) ? "red" : "blue");
+        g.commit();
+
+        g.createKeyIndex("color", Vertex.class);
+        g.getVertex("v0").setProperty("color", "blue");
+        g.commit();
+        g.vIndices.await("color");
+        assertTrue(g.vIndices.ready("color"));
+        assertEquals(4999, size(g.getVertices("color", "red")));
+        assertEquals(5001, size(g.getVertices("color", "blue")));
+        assertEquals(4999, g.vIndices.indexed("color", "red").size());
+    }
+
+    @Test
+    public void testConcurrentChangesToOneValue() throws Exception {
+        final CPIIndex.Index index = new CPIIndex.Index(true, false);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (int t = 0; t < 4; t++) {
+                final int base = t * 10000;
+                pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        // each thread leaves only its even handles behind
+                        for (int h = base; h < base + 10000; h++) {
+                            index.put("red", h);
+                            if (1 == h % 2)
+                                index.remove("red", h);
+                        }
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        assertEquals(20000, index.get("red").size());
+        assertEquals(20000, index.size());
+    }
+
+    @Test
+    public void testRangeQueries() {
+        g.createKeyIndex("at", Edge.class, new Parameter<>(CPIIndex.TYPE, CPIIndex.SORTED));
+        g.eIndices.await("at");
+        Vertex a = g.addVertex("a");
+        Vertex b = g.addVertex("b");
+        for (long t = 0; t < 100; t++)
+            g.addEdge("e" + t, a, b, "saw").setProperty("at", t);
+        g.commit();
+        g.getEdge("e50").setProperty("at", "later");
+
+        assertTrue(g.eIndices.sorted("at"));
+        assertEquals(49, size(g.query().has("at", Compare.GREATER_THAN, 50L).edges()));
+        assertEquals(10, size(g.query().interval("at", 10L, 20L).edges()));
+        // this transaction's own changes are seen
+        assertEquals(9, size(g.query().interval("at", 45L, 55L).edges()));
+        assertEquals(5, size(g.query().has("at", Compare.LESS_THAN_EQUAL, 4L).edges()));
+        assertEquals(0, size(g.query().has("at", Compare.GREATER_THAN, 5).edges()));
+        assertEquals(3, size(g.query().interval("at", 10L, 20L).limit(3).edges()));
+        g.rollback();
+        assertEquals(10, size(g.query().interval("at", 45L, 55L).edges()));
+    }
+
+    @Test
+    public void testMultiplePredicates() {
+        g.createKeyIndex("age", Vertex.class, new Parameter<>(CPIIndex.TYPE, CPIIndex.SORTED));
+        g.createKeyIndex("city", Vertex.class);
+        g.vIndices.await("age");
+        g.vIndices.await("city");
+        for (int i = 0; i < 1000; i++) {
+            Vertex v = g.addVertex("v" + i);
+            v.setProperty("name", "n" + (i % 10));
+            v.setProperty("city", (0 == i % 2) ? "austin" : "dallas");
+            v.setProperty("age", i);
+        }
+        g.commit();
+
+        assertEquals(100, size(g.query().has("name", "n3").has("city", "dallas").vertices()));
+        assertEquals(0, size(g.query().has("name", "n3").has("city", "austin").vertices()));
+        assertEquals(5, size(g.query().has("name", "n4").interval("age", 100, 150).vertices()));
+        assertEquals(10, size(g.query().interval("age", 100, 200).has("age", Compare.GREATER_THAN_EQUAL, 190)
+                .has("age", Compare.LESS_THAN, 900).vertices()));
+        assertEquals(0, size(g.query().has("age", Compare.GREATER_THAN, 10).has("age", Compare.LESS_THAN, 20L).vertices()));
+        assertEquals(2, size(g.query().has("city", "austin").has("age", Compare.LESS_THAN, 500)
+                .has("name", "n2").limit(2).vertices()));
+        // conditions no index helps with are still checked
+        assertEquals(2, size(g.query().has("name", "n7").has("age", Compare.LESS_THAN, 20)
+                .has("missing", Compare.NOT_EQUAL, "x").vertices()));
+    }
+}
@@ -0,0 +1,390 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Iterables.size;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Compare;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CPITransactionTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+    private CPIGraph g;
+    private ExecutorService other;
+
+    @Before
+    public void before() throws IOException {
+        Neo4jGraph sor = new Neo4jGraph(tmpDir.newFolder("sor").getPath());
+        sor.createKeyIndex(CPIGraph.ID, Vertex.class);
+        sor.createKeyIndex(CPIGraph.ID, Edge.class);
+        g = new CPIGraph("aaa", new CPIWriteBehind("aaa", sor, WriteBehindConfig.DEFAULT));
+        other = Executors.newSingleThreadExecutor();
+
+        g.addVertex("v0").setProperty("name", "zero");
+        g.commit();
+    }
+
+    @After
+    public void after() {
+        other.shutdownNow();
+        g.shutdown();
+        g.waitShutdown();
+    }
+
+    private <T> T inOther(Callable<T> c) throws Exception {
+        try {
+            return other.submit(c).get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    // until the write-behind has everything committed so far
+    private void awaitPersisted() throws InterruptedException {
+        while (0 != g.getWriteBehindStats().getQueuedBatches() || 0 != g.getWriteBehindStats().getPendingOps())
+            Thread.sleep(10);
+    }
+
+    @Test
+    public void testSnapshotIsolation() throws Exception {
+        assertEquals("zero", g.getVertex("v0").getProperty("name"));
+        inOther(new Callable<Void>() {
+            @Override
+            public Void call() {
+                g.getVertex("v0").setProperty("name", "nil");
+                g.addVertex("v1");
+                g.commit();
+                return null;
+            }
+        });
+        // this thread's transaction still reads as of its start
+        assertEquals("zero", g.getVertex("v0").getProperty("name"));
+        assertEquals(1, size(g.getVertices()));
+
+        g.rollback();
+        assertEquals("nil", g.getVertex("v0").getProperty("name"));
+        assertEquals(2, size(g.getVertices()));
+    }
+
+    @Test
+    public void testPooledProxyResolvesPerTransaction() throws Exception {
+        final Vertex v0 = g.getVertex("v0");
+        assertSame(v0, g.getVertex("v0"));
+        assertEquals("zero", v0.getProperty("name"));
+        // the same proxy, in another thread's transaction
+        assertEquals("nil", inOther(new Callable<Object>() {
+            @Override
+            public Object call() {
+                v0.setProperty("name", "nil");
+                Object name = v0.getProperty("name");
+                g.commit();
+                return name;
+            }
+        }));
+        assertEquals("zero", v0.getProperty("name"));
+        g.rollback();
+        assertEquals("nil", v0.getProperty("name"));
+    }
+
+    @Test
+    public void testConflict() throws Exception {
+        g.getVertex("v0").setProperty("name", "mine");
+        inOther(new Callable<Void>() {
+            @Override
+            public Void call() {
+                g.getVertex("v0").setProperty("name", "theirs");
+                g.commit();
+                return null;
+            }
+        });
+        try {
+            g.commit();
+            fail("expected CPIConflictException");
+        } catch (CPIConflictException e) {
+            // rolled back
+        }
+        assertEquals("theirs", g.getVertex("v0").getProperty("name"));
+    }
+
+    @Test
+    public void testDisjointChangesMerge() throws Exception {
+        g.getVertex("v0").setProperty("color", "red");
+        g.addEdge("e0", g.getVertex("v0"), g.addVertex("v1"), "to");
+        inOther(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Vertex v0 = g.getVertex("v0");
+                v0.setProperty("size", 3);
+                g.addEdge("e1", v0, g.addVertex("v2"), "to");
+                g.commit();
+                return null;
+            }
+        });
+        g.commit();
+
+        Vertex v0 = g.getVertex("v0");
+        assertEquals("red", v0.getProperty("color"));
+        assertEquals((Object) 3, v0.getProperty("size"));
+        assertEquals(2, size(v0.getEdges(Direction.OUT)));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final int threads = 8, each = 200;
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int t = 0; t < threads; t++) {
+            final int n = t;
+            futures.add(writers.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < each; i++) {
+                        Vertex v = g.addVertex("t" + n + "-" + i);
+                        g.addEdge("e" + n + "-" + i, g.getVertex("v0"), v, "to");
+                        g.commit();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> f : futures)
+            f.get();
+        writers.shutdown();
+
+        assertEquals(threads * each + 1, size(g.getVertices()));
+        assertEquals(threads * each, size(g.getVertex("v0").getEdges(Direction.OUT)));
+    }
+
+    @Test
+    public void testVertexQuery() throws Exception {
+        Vertex v0 = g.getVertex("v0");
+        for (int i = 0; i < 10; i++) {
+            Vertex v = g.addVertex("v" + (i + 1));
+            v0.addEdge((0 == i % 2) ? "knows" : "likes", v).setProperty("weight", i);
+            v.addEdge("knows", v0);
+        }
+        g.commit();
+
+        v0 = g.getVertex("v0");
+        assertEquals(20, v0.query().count());
+        assertEquals(5, v0.query().direction(Direction.OUT).labels("knows").count());
+        assertEquals(15, v0.query().labels("knows").count());
+        assertEquals(3, v0.query().labels("knows").limit(3).count());
+        assertEquals(2, v0.query().direction(Direction.OUT).has("weight", Compare.LESS_THAN, 4).labels("likes").count());
+        assertEquals(5, size(v0.getVertices(Direction.OUT, "likes")));
+        assertEquals(10, size(v0.getEdges(Direction.IN, "knows", "likes")));
+        assertEquals(0, size(v0.getEdges(Direction.IN, "likes")));
+
+        // adds under different labels by two transactions merge
+        v0.addEdge("likes", g.getVertex("v1"));
+        inOther(new Callable<Void>() {
+            @Override
+            public Void call() {
+                g.getVertex("v0").addEdge("hates", g.getVertex("v2"));
+                g.getVertex("v0").getEdges(Direction.OUT, "knows").iterator().next().remove();
+                g.commit();
+                return null;
+            }
+        });
+        g.commit();
+        v0 = g.getVertex("v0");
+        assertEquals(6, v0.query().direction(Direction.OUT).labels("likes").count());
+        assertEquals(1, v0.query().direction(Direction.OUT).labels("hates").count());
+        assertEquals(4, v0.query().direction(Direction.OUT).labels("knows").count());
+        g.rollback();
+    }
+
+    @Test
+    public void testIterationWhileChanging() {
+        for (int i = 1; i < 100; i++)
+            g.addVertex("v" + i);
+        g.commit();
+        g.getVertex("v5").setProperty("name", "five");
+        g.removeVertex(g.getVertex("v6"));
+
+        int n = 0;
+        for (Vertex v : g.getVertices()) {
+            // changing and adding as we go doesn't repeat or skip anything
+            v.setProperty("seen", true);
+            if (0 == n)
+                g.addVertex("late");
+            n++;
+        }
+        assertEquals(99, n);
+        assertEquals(100, size(g.getVertices()));
+        assertEquals(3, size(Iterables.limit(g.getVertices(), 3)));
+        g.rollback();
+    }
+
+    @Test
+    public void testProxyOutlivesTransactions() throws Exception {
+        final Vertex v0 = g.getVertex("v0");
+        Vertex v1 = g.addVertex("v1");
+        Edge e = g.addEdge("e0", v0, v1, "knows");
+        assertEquals("zero", v0.getProperty("name"));
+        v0.setProperty("name", "nil");
+        assertEquals("nil", v0.getProperty("name"));
+        g.rollback();
+        assertEquals("zero", v0.getProperty("name"));
+        assertEquals(null, g.getEdge(e.getId()));
+
+        inOther(new Callable<Void>() {
+            @Override
+            public Void call() {
+                assertEquals("zero", v0.getProperty("name"));
+                g.getVertex("v0").setProperty("name", "none");
+                g.commit();
+                return null;
+            }
+        });
+        // this transaction started before that commit
+        assertEquals("zero", v0.getProperty("name"));
+        g.commit();
+        assertEquals("none", v0.getProperty("name"));
+        g.rollback();
+    }
+
+    @Test
+    public void testIdleReaderDoesNotHoldBackPruning() throws Exception {
+        g.setIdleTimeout(100, TimeUnit.MILLISECONDS);
+        // reads, and never commits or rolls back
+        assertEquals("zero", inOther(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return g.getVertex("v0").getProperty("name");
+            }
+        }));
+        int v0 = g.vertexIds.handle("v0");
+        g.getVertex("v0").setProperty("name", "one");
+        g.commit();
+        // the reader can still see the version "one" replaced
+        assertNotNull(g.vertexStore.get(v0).prev);
+
+        Thread.sleep(200);
+        g.addVertex("v1");
+        g.commit();
+        assertNull(g.vertexStore.get(v0).prev);
+        // and carries on at the latest version
+        assertEquals("one", inOther(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return g.getVertex("v0").getProperty("name");
+            }
+        }));
+    }
+
+    @Test
+    public void testIdleWriterIsRolledBack() throws Exception {
+        g.setIdleTimeout(100, TimeUnit.MILLISECONDS);
+        inOther(new Callable<Void>() {
+            @Override
+            public Void call() {
+                g.getVertex("v0").setProperty("name", "nil");
+                return null;
+            }
+        });
+        // a sweep finds it in use, and the next one past the timeout finds it idle
+        g.getVertex("v0");
+        g.rollback();
+        Thread.sleep(200);
+        g.addVertex("v1");
+        g.commit();
+        try {
+            inOther(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    g.commit();
+                    return null;
+                }
+            });
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("zero", g.getVertex("v0").getProperty("name"));
+        g.rollback();
+    }
+
+    @Test
+    public void testEvictedElementsAreFetchedBack() throws Exception {
+        Vertex prev = g.getVertex("v0");
+        for (int i = 1; i < 10; i++) {
+            Vertex v = g.addVertex("v" + i);
+            v.setProperty("name", "n" + i);
+            g.addEdge("e" + i, prev, v, "next");
+            prev = v;
+        }
+        g.commit();
+        awaitPersisted();
+        g.setCacheBytes(0);
+        assertEquals(0, g.vertexStore.size());
+        assertEquals(0, g.edgeStore.size());
+
+        // each comes back from the SoR as it's read, with its adjacency
+        Vertex v5 = g.getVertex("v5");
+        assertEquals("n5", v5.getProperty("name"));
+        assertEquals("v6", Iterables.getOnlyElement(v5.getVertices(Direction.OUT)).getId());
+        assertEquals("e5", Iterables.getOnlyElement(v5.getEdges(Direction.IN)).getId());
+        assertEquals(10, size(g.getVertices()));
+        assertEquals(9, size(g.getEdges()));
+        assertEquals("v3", Iterables.getOnlyElement(g.getVertices("name", "n3")).getId());
+
+        // and is changed like any other
+        v5.setProperty("name", "five");
+        g.removeVertex(g.getVertex("v9"));
+        g.commit();
+        assertEquals("five", g.getVertex("v5").getProperty("name"));
+        g.commit();
+        awaitPersisted();
+        g.setCacheBytes(0);
+        assertEquals("five", g.getVertex("v5").getProperty("name"));
+        assertNull(g.getVertex("v9"));
+        assertNull(g.getEdge("e9"));
+        assertEquals(0, size(g.getVertex("v8").getEdges(Direction.OUT)));
+        assertEquals(9, size(g.getVertices()));
+        g.rollback();
+    }
+
+    @Test
+    public void testRolledBackAddFreesItsHandle() {
+        CPIVertexProxy v1 = (CPIVertexProxy) g.addVertex("v1");
+        int handle = v1.handle;
+        g.rollback();
+        assertNull(g.vertexIds.id(handle));
+
+        // the next element gets it, and the stale proxy doesn't read that one
+        CPIVertexProxy v2 = (CPIVertexProxy) g.addVertex("v2");
+        assertEquals(handle, v2.handle);
+        try {
+            v1.getProperty("name");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected, v1 is gone
+        }
+        g.commit();
+        assertEquals("v2", g.getVertex("v2").getId());
+    }
+}
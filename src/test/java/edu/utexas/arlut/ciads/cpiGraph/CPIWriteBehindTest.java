@@ -0,0 +1,115 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import edu.utexas.arlut.ciads.cpiGraph.CPIEdgeProxy.CPIEdge;
+import edu.utexas.arlut.ciads.cpiGraph.CPIVertexProxy.CPIVertex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CPIWriteBehindTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private static ChangeSet batch(String id) {
+        ChangeSet cs = new ChangeSet();
+        cs.addVertex(id);
+        return cs;
+    }
+
+    // rejects the first few batches it's handed, and records the replay flag of each try
+    private static class FlakyPersister implements Persister {
+        FlakyPersister(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public synchronized void apply(ChangeSet batch, boolean replay) {
+            tries.add(replay);
+            if (tries.size() <= failures)
+                throw new IllegalStateException("SoR unavailable");
+        }
+
+        @Override
+        public void attach(CPIGraph g) {
+        }
+
+        @Override
+        public void load(CPIGraph g, int threads) {
+        }
+
+        @Override
+        public boolean fetches() {
+            return false;
+        }
+
+        @Override
+        public CPIVertex fetchVertex(CPIGraph g, String id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CPIEdge fetchEdge(CPIGraph g, String id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        synchronized List<Boolean> tries() {
+            return newArrayList(tries);
+        }
+
+        private final int failures;
+        private final List<Boolean> tries = newArrayList();
+    }
+
+    @Test
+    public void testRetriesARejectedBatch() throws IOException {
+        File dir = tmpDir.newFolder("journal");
+        CommitJournal journal = new CommitJournal(dir, 4096);
+        FlakyPersister persister = new FlakyPersister(2);
+        CPIWriteBehind wb = new CPIWriteBehind("test", persister, WriteBehindConfig.DEFAULT, journal);
+        wb.commit(batch("v0"));
+        wb.shutdown();
+        assertTrue(wb.await());
+        // retries are replays, as the SoR may have part of the batch
+        assertEquals(newArrayList(false, true, true), persister.tries());
+        assertEquals(1, journal.applied());
+    }
+
+    @Test
+    public void testRejectedBatchStaysInTheJournal() throws IOException {
+        File dir = tmpDir.newFolder("journal");
+        CPIWriteBehind wb = new CPIWriteBehind("test", new FlakyPersister(Integer.MAX_VALUE),
+                WriteBehindConfig.DEFAULT, new CommitJournal(dir, 4096));
+        wb.commit(batch("v0"));
+        assertFalse(wb.await());
+        try {
+            wb.commit(batch("v1"));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected, the applier gave up
+        }
+
+        FlakyPersister persister = new FlakyPersister(0);
+        CommitJournal journal = new CommitJournal(dir, 4096);
+        assertEquals(0, journal.applied());
+        CPIWriteBehind recovered = new CPIWriteBehind("test", persister, WriteBehindConfig.DEFAULT, journal);
+        recovered.recover();
+        assertEquals(newArrayList(true), persister.tries());
+        assertEquals(1, journal.applied());
+        recovered.shutdown();
+        assertTrue(recovered.await());
+    }
+}
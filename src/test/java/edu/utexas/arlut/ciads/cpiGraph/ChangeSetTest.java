@@ -0,0 +1,76 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChangeSetTest {
+
+    @Test
+    public void testLastWriteWins() {
+        ChangeSet cs = new ChangeSet();
+        cs.setVProperty("v0", "a", "one");
+        cs.setVProperty("v0", "a", "two");
+        cs.setVProperty("v0", "a", "three");
+        assertEquals(3, cs.recorded());
+        assertEquals(1, cs.size());
+        assertEquals("three", cs.vProperties().get("v0").get("a"));
+
+        cs.removeVProperty("v0", "a");
+        assertSame(ChangeSet.REMOVED, cs.vProperties().get("v0").get("a"));
+    }
+
+    @Test
+    public void testAddRemoveCancels() {
+        ChangeSet cs = new ChangeSet();
+        cs.addVertex("v0");
+        cs.addVertex("v1");
+        cs.setVProperty("v0", "a", "one");
+        cs.addEdge("e0", "v0", "v1", "sam");
+        cs.setEProperty("e0", "b", 2);
+        cs.removeEdge("e0");
+        cs.removeVertex("v0");
+
+        assertEquals(1, cs.size());
+        assertTrue(cs.addedVertices().contains("v1"));
+        assertTrue(cs.removedVertices().isEmpty());
+        assertTrue(cs.addedEdges().isEmpty());
+        assertTrue(cs.removedEdges().isEmpty());
+        assertTrue(cs.vProperties().isEmpty());
+        assertTrue(cs.eProperties().isEmpty());
+    }
+
+    @Test
+    public void testRemoveThenReAdd() {
+        ChangeSet cs = new ChangeSet();
+        cs.setVProperty("v0", "a", "one");
+        cs.removeVertex("v0");
+        cs.addVertex("v0");
+        cs.removeVProperty("v0", "a");
+
+        assertTrue(cs.removedVertices().contains("v0"));
+        assertTrue(cs.addedVertices().contains("v0"));
+        assertFalse(cs.vProperties().containsKey("v0"));
+    }
+
+    @Test
+    public void testWritesAfterRemovalAreDropped() {
+        ChangeSet cs = new ChangeSet();
+        cs.removeVertex("v0");
+        cs.setVProperty("v0", "a", "one");
+        cs.removeVProperty("v0", "b");
+        cs.addVertex("v1");
+        cs.removeVertex("v1");
+        cs.setVProperty("v1", "a", "one");
+        cs.removeEdge("e0");
+        cs.setEProperty("e0", "w", 1);
+
+        assertEquals(8, cs.recorded());
+        assertEquals(2, cs.size());
+        assertTrue(cs.vProperties().isEmpty());
+        assertTrue(cs.eProperties().isEmpty());
+    }
+}
@@ -0,0 +1,91 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CommitJournalTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private static ChangeSet batch(String id) {
+        ChangeSet cs = new ChangeSet();
+        cs.addVertex(id);
+        cs.setVProperty(id, "n", 1L);
+        return cs;
+    }
+
+    private static List<String> replay(CommitJournal j) throws IOException {
+        final List<String> ids = newArrayList();
+        j.replay(new CommitJournal.Replay() {
+            @Override
+            public void apply(long seq, ChangeSet batch) {
+                ids.add(seq + ":" + batch.addedVertices().iterator().next());
+            }
+        });
+        return ids;
+    }
+
+    @Test
+    public void testReplayPastCheckpoint() throws IOException {
+        File dir = tmpDir.newFolder("journal");
+        CommitJournal j = new CommitJournal(dir, 4096);
+        for (int i = 0; i < 3; i++)
+            j.sync(j.append(batch("v" + i)));
+        j.markApplied(1);
+        j.close();
+
+        CommitJournal reopened = new CommitJournal(dir, 4096);
+        assertEquals(1, reopened.applied());
+        assertEquals(newArrayList("2:v1", "3:v2"), replay(reopened));
+        // sequence numbers carry on from the last record
+        assertEquals(4, reopened.append(batch("v3")));
+    }
+
+    @Test
+    public void testSegmentsRollAndPurge() throws IOException {
+        File dir = tmpDir.newFolder("journal");
+        CommitJournal j = new CommitJournal(dir, 128);
+        for (int i = 0; i < 10; i++)
+            j.sync(j.append(batch("v" + i)));
+        assertTrue(dir.list().length > 2);
+
+        j.markApplied(10);
+        // the checkpoint and the current segment
+        assertEquals(2, dir.list().length);
+        assertTrue(replay(j).isEmpty());
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        File dir = tmpDir.newFolder("journal");
+        CommitJournal j = new CommitJournal(dir, 4096);
+        j.sync(j.append(batch("v0")));
+        j.sync(j.append(batch("v1")));
+        j.close();
+
+        // flip a payload byte in the last record
+        File segment = new File(dir, String.format("%016x", 1) + ".journal");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            int first = raf.readInt();
+            long second = 16 + first;
+            raf.seek(second + 20);
+            int b = raf.read();
+            raf.seek(second + 20);
+            raf.write(b ^ 0xff);
+        }
+
+        CommitJournal reopened = new CommitJournal(dir, 4096);
+        assertEquals(newArrayList("1:v0"), replay(reopened));
+        assertEquals(2, reopened.append(batch("v1")));
+    }
+}
@@ -0,0 +1,81 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.collect.Iterables.size;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GraphSnapshotTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+    private CPIWriteBehind wb;
+    private CPIGraph g;
+
+    @Before
+    public void before() throws IOException {
+        Neo4jGraph sor = new Neo4jGraph(tmpDir.newFolder("sor").getPath());
+        sor.createKeyIndex(CPIGraph.ID, Vertex.class);
+        sor.createKeyIndex(CPIGraph.ID, Edge.class);
+        CommitJournal journal = new CommitJournal(tmpDir.newFolder("journal"), CommitJournal.DEFAULT_SEGMENT_SIZE);
+        wb = new CPIWriteBehind("aaa", sor, WriteBehindConfig.DEFAULT, journal);
+        g = new CPIGraph("aaa", wb);
+    }
+
+    @After
+    public void after() {
+        g.shutdown();
+        g.waitShutdown();
+    }
+
+    @Test
+    public void testSnapshotAndCatchUp() throws IOException {
+        g.createKeyIndex("name", Vertex.class);
+        Vertex v0 = g.addVertex("v0");
+        v0.setProperty("name", "zero");
+        Vertex v1 = g.addVertex("v1");
+        v1.setProperty("name", "one");
+        Edge e0 = g.addEdge("e0", v0, v1, "next");
+        e0.setProperty("weight", 0.5d);
+        g.commit();
+        File file = new File(tmpDir.getRoot(), "aaa.snapshot");
+        g.snapshot(file);
+
+        // after the snapshot, only in the journal
+        Vertex v2 = g.addVertex("v2");
+        g.addEdge("e1", g.getVertex("v1"), v2, "next");
+        g.getVertex("v1").setProperty("name", "uno");
+        g.removeVertex(g.getVertex("v0"));
+        g.commit();
+
+        CPIGraph copy = new CPIGraph("copy", wb);
+        GraphSnapshot.Header header = GraphSnapshot.read(copy, file);
+        assertFalse(header.clean);
+        assertEquals(2, size(copy.getVertices()));
+        assertEquals((Object) 0.5d, copy.getEdge("e0").getProperty("weight"));
+
+        assertTrue(wb.catchUp(copy, header.seq));
+        assertNull(copy.getVertex("v0"));
+        assertNull(copy.getEdge("e0"));
+        Vertex c1 = copy.getVertex("v1");
+        assertEquals("uno", c1.getProperty("name"));
+        assertEquals("v2", getOnlyElement(c1.getVertices(Direction.OUT)).getId());
+        assertEquals(0, size(c1.getEdges(Direction.IN)));
+        assertEquals(c1, getOnlyElement(copy.getVertices("name", "uno")));
+        assertEquals(0, size(copy.getVertices("name", "one")));
+    }
+}
@@ -0,0 +1,71 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import org.junit.Test;
+
+public class PersistentIntSetTest {
+    @Test
+    public void testMatchesHashSet() {
+        Random r = new Random(8);
+        PersistentIntSet s = PersistentIntSet.EMPTY;
+        Set<Integer> expected = Sets.newHashSet();
+        for (int i = 0; i < 20000; i++) {
+            int v = r.nextInt(5000);
+            if (r.nextBoolean()) {
+                assertEquals(expected.add(v), !s.contains(v));
+                s = s.with(v);
+            } else {
+                assertEquals(expected.remove(v), s.contains(v));
+                s = s.without(v);
+            }
+        }
+        assertEquals(expected.size(), s.size());
+        assertEquals(expected, Sets.newHashSet(Ints.asList(s.toArray())));
+        PersistentIntSet older = s;
+        s = s.with(-1);
+        assertFalse(older.contains(-1));
+        assertTrue(s.contains(-1));
+    }
+
+    @Test
+    public void testRebase() {
+        PersistentIntSet base = PersistentIntSet.EMPTY;
+        for (int i = 0; i < 1000; i++)
+            base = base.with(i);
+        PersistentIntSet mine = base.with(5000).without(7).without(8);
+        PersistentIntSet theirs = base.with(6000).without(9);
+
+        PersistentIntSet merged = mine.rebase(base, theirs);
+        assertEquals(1000 + 2 - 3, merged.size());
+        assertTrue(merged.contains(5000));
+        assertTrue(merged.contains(6000));
+        assertFalse(merged.contains(7));
+        assertFalse(merged.contains(9));
+        assertTrue(merged.contains(10));
+        // removing everything leaves the canonical empty shape
+        for (int v : merged.toArray())
+            merged = merged.without(v);
+        assertEquals(0, merged.size());
+        assertEquals(0, merged.toArray().length);
+    }
+
+    @Test
+    public void testInterner() {
+        IdInterner ids = new IdInterner(4);
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i, ids.intern("v" + i));
+        assertEquals(42, ids.intern("v42"));
+        assertEquals(9999, ids.handle("v9999"));
+        assertEquals(-1, ids.handle("nope"));
+        assertEquals("v4096", ids.id(4096));
+        assertTrue(10000 == ids.size());
+    }
+}
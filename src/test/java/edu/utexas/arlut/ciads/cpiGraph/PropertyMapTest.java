@@ -0,0 +1,59 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+public class PropertyMapTest {
+    @Test
+    public void testValuesKeepTheirTypes() {
+        Map<String, Object> expected = ImmutableMap.<String, Object>builder()
+                .put("i", 3).put("l", 4L).put("d", 0.5d).put("f", 1.5f).put("b", true)
+                .put("s", "five").put("list", asList(1, 2)).build();
+        PropertyMap m = new PropertyMap();
+        m.putAll(expected);
+        assertEquals(expected, m);
+        assertEquals(3, m.put("i", "three"));
+        assertEquals("three", m.get("i"));
+        assertEquals(4L, m.remove("l"));
+        assertFalse(m.containsKey("l"));
+        assertNull(m.get("never"));
+        assertEquals(expected.size() - 1, m.size());
+    }
+
+    @Test
+    public void testCopiesDontShareChanges() {
+        PropertyMap src = new PropertyMap();
+        src.put("name", "zero");
+        src.put("size", 1);
+        PropertyMap copy = new PropertyMap(src);
+        copy.put("size", 2);
+        copy.remove("name");
+        src.put("color", "red");
+
+        assertEquals(ImmutableMap.of("name", "zero", "size", 1, "color", "red"), src);
+        assertEquals(ImmutableMap.of("size", 2), copy);
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        PropertyMap m = new PropertyMap();
+        for (int i = 0; i < 10; i++)
+            m.put("k" + i, i);
+        for (Iterator<Map.Entry<String, Object>> it = m.entrySet().iterator(); it.hasNext(); ) {
+            if (0 == (Integer) it.next().getValue() % 2)
+                it.remove();
+        }
+        assertEquals(5, m.size());
+        for (Object v : m.values())
+            assertTrue(1 == (Integer) v % 2);
+    }
+}
@@ -0,0 +1,212 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.collect.Iterables.size;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import edu.utexas.arlut.ciads.cacheGraph.CacheBudget;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SoRLoaderTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+    private File baseDir;
+    private CPIGraphManager<Neo4jGraph> manager;
+
+    @Before
+    public void before() {
+        baseDir = tmpDir.getRoot();
+        manager = new CPIGraphManager<>(new SoRBuilder<Neo4jGraph>() {
+            @Override
+            public Neo4jGraph build(String dir) {
+                return new Neo4jGraph(new File(baseDir, dir).getPath());
+            }
+        });
+        manager.setLoaderThreads(4);
+    }
+
+    @After
+    public void after() {
+        manager.shutdown();
+    }
+
+    private void fill(int n) {
+        Neo4jGraph sor = new Neo4jGraph(new File(baseDir, "aaa").getPath());
+        sor.createKeyIndex(CPIGraph.ID, Vertex.class);
+        sor.createKeyIndex("name", Vertex.class);
+        Vertex prev = null;
+        for (int i = 0; i < n; i++) {
+            Vertex v = sor.addVertex(null);
+            v.setProperty(CPIGraph.ID, "v" + i);
+            v.setProperty("name", "name" + i);
+            if (null != prev) {
+                Edge e = sor.addEdge(null, prev, v, "next");
+                e.setProperty(CPIGraph.ID, "e" + i);
+            }
+            prev = v;
+        }
+        sor.commit();
+        sor.shutdown();
+    }
+
+    @Test
+    public void testLoad() {
+        final int n = 25000;
+        fill(n);
+        CPIGraph g = manager.create("aaa");
+        assertEquals(n, size(g.getVertices()));
+        assertEquals(n - 1, size(g.getEdges()));
+
+        Vertex v1 = g.getVertex("v1");
+        assertEquals("name1", v1.getProperty("name"));
+        assertEquals("e1", getOnlyElement(v1.getEdges(Direction.IN)).getId());
+        assertEquals("e2", getOnlyElement(v1.getEdges(Direction.OUT)).getId());
+        assertEquals("v2", getOnlyElement(v1.getVertices(Direction.OUT)).getId());
+
+        assertEquals(v1, getOnlyElement(g.getVertices("name", "name1")));
+    }
+
+    @Test
+    public void testLoadBeyondTheBound() {
+        final int n = 5000;
+        fill(n);
+        CacheBudget budget = new CacheBudget(1 << 20);
+        manager.setCacheBudget(budget);
+        manager.setCacheBytes(256 << 10);
+        CPIGraph g = manager.create("aaa");
+        assertEquals((1 << 20) - (256 << 10), budget.remaining());
+        assertTrue(g.vertexStore.bytes() <= 128 << 10);
+        assertTrue(g.edgeStore.bytes() <= 128 << 10);
+        assertTrue(g.vertexStore.size() < n);
+
+        // what isn't in memory is fetched from the SoR
+        assertEquals(n, size(g.getVertices()));
+        assertEquals(n - 1, size(g.getEdges()));
+        Vertex v1 = g.getVertex("v1");
+        assertEquals("name1", v1.getProperty("name"));
+        assertEquals("e1", getOnlyElement(v1.getEdges(Direction.IN)).getId());
+        assertEquals("v2", getOnlyElement(v1.getVertices(Direction.OUT)).getId());
+        assertEquals(v1, getOnlyElement(g.getVertices("name", "name1")));
+        assertEquals("name4000", g.getVertex("v4000").getProperty("name"));
+
+        manager.shutdown();
+        assertEquals(1 << 20, budget.remaining());
+    }
+
+    @Test
+    public void testLoadOffHeap() {
+        final int n = 1000;
+        fill(n);
+        manager.setOffHeap(true);
+        manager.setOffHeapDir(tmpDir.getRoot());
+        CPIGraph g = manager.create("aaa");
+        assertEquals(n - 1, size(g.getEdges()));
+
+        Vertex v1 = g.getVertex("v1");
+        assertEquals("e2", getOnlyElement(v1.getEdges(Direction.OUT)).getId());
+        assertEquals("next", g.getEdge("e2").getLabel());
+        assertEquals("v2", getOnlyElement(v1.getVertices(Direction.OUT)).getId());
+
+        g.getEdge("e3").setProperty("weight", 3);
+        g.removeEdge(g.getEdge("e2"));
+        g.commit();
+        assertEquals(0, size(g.getVertex("v1").getEdges(Direction.OUT)));
+        assertEquals(0, size(g.getVertex("v2").getEdges(Direction.IN)));
+        assertEquals((Object) 3, g.getEdge("e3").getProperty("weight"));
+        assertEquals(n - 2, size(g.getEdges()));
+        g.rollback();
+    }
+
+    @Test
+    public void testShardedWriteBehind() {
+        manager.setWriteBehindConfig(WriteBehindConfig.DEFAULT.withAppliers(4));
+        CPIGraph g = manager.create("aaa");
+        Vertex hub = g.addVertex("hub");
+        for (int i = 0; i < 100; i++) {
+            Vertex v = g.addVertex("v" + i);
+            v.setProperty("name", "name" + i);
+            g.addEdge("e" + i, hub, v, "spoke").setProperty("weight", i);
+        }
+        g.commit();
+        for (int i = 0; i < 100; i += 2)
+            g.getVertex("v" + i).setProperty("name", "even" + i);
+        g.removeVertex(g.getVertex("v1"));
+        g.commit();
+        manager.shutdown();
+
+        // a fresh manager loads what reached the SoR
+        before();
+        g = manager.create("aaa");
+        assertEquals(100, size(g.getVertices()));
+        assertEquals(99, size(g.getVertex("hub").getEdges(Direction.OUT, "spoke")));
+        assertEquals("even2", g.getVertex("v2").getProperty("name"));
+        assertEquals("name3", g.getVertex("v3").getProperty("name"));
+        assertEquals((Object) 3, g.getEdge("e3").getProperty("weight"));
+        assertEquals(null, g.getVertex("v1"));
+    }
+
+    @Test
+    public void testSegmentStore() {
+        File store = new File(baseDir, "store");
+        manager.setStoreDir(store);
+        CPIGraph g = manager.create("aaa");
+        Vertex v0 = g.addVertex("v0");
+        Vertex v1 = g.addVertex("v1");
+        v0.setProperty("name", "zero");
+        g.addEdge("e0", v0, v1, "next").setProperty("weight", 1);
+        g.addEdge("e1", v1, v0, "next");
+        g.commit();
+        g.getVertex("v1").setProperty("name", "one");
+        g.removeEdge(g.getEdge("e1"));
+        g.commit();
+        manager.shutdown();
+        // nothing went to the SoR
+        assertEquals(false, new File(baseDir, "aaa").exists());
+
+        before();
+        manager.setStoreDir(store);
+        g = manager.create("aaa");
+        assertEquals(2, size(g.getVertices()));
+        assertEquals("zero", g.getVertex("v0").getProperty("name"));
+        assertEquals("one", g.getVertex("v1").getProperty("name"));
+        assertEquals("v1", getOnlyElement(g.getVertex("v0").getVertices(Direction.OUT)).getId());
+        assertEquals((Object) 1, g.getEdge("e0").getProperty("weight"));
+        assertEquals(null, g.getEdge("e1"));
+    }
+
+    @Test
+    public void testNativeIds() {
+        fill(10);
+        CPIGraph g = manager.create("aaa");
+        assertTrue(NativeIds.NONE != g.vertexNatives.get(g.vertexIds.handle("v1")));
+        assertTrue(NativeIds.NONE != g.edgeNatives.get(g.edgeIds.handle("e1")));
+
+        g.getVertex("v1").setProperty("name", "one");
+        g.addEdge("x0", g.addVertex("x"), g.getVertex("v1"), "to").setProperty("weight", 1);
+        g.commit();
+        g.getVertex("x").setProperty("name", "ex");
+        g.getEdge("x0").setProperty("weight", 2);
+        g.commit();
+        manager.shutdown();
+        // the write-behind kept the SoR ids of what it added
+        assertTrue(NativeIds.NONE != g.vertexNatives.get(g.vertexIds.handle("x")));
+        assertTrue(NativeIds.NONE != g.edgeNatives.get(g.edgeIds.handle("x0")));
+
+        before();
+        g = manager.create("aaa");
+        assertEquals("one", g.getVertex("v1").getProperty("name"));
+        assertEquals("ex", g.getVertex("x").getProperty("name"));
+        assertEquals((Object) 2, g.getEdge("x0").getProperty("weight"));
+    }
+}
@@ -0,0 +1,116 @@
+package edu.utexas.arlut.ciads.cpiGraph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteBehindQueueTest {
+    @Rule
+    public final TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private static ChangeSet batch(String... ids) {
+        ChangeSet cs = new ChangeSet();
+        for (String id : ids)
+            cs.addVertex(id);
+        return cs;
+    }
+
+    @Test
+    public void testFailFast() throws InterruptedException {
+        WriteBehindQueue q = new WriteBehindQueue("test", WriteBehindConfig.failFast(3));
+        q.put(batch("v0", "v1"));
+        try {
+            q.put(batch("v2", "v3"));
+            fail("expected WriteBehindFullException");
+        } catch (WriteBehindFullException e) {
+            // expected
+        }
+        assertEquals(2, q.stats().getPendingOps());
+
+        WriteBehindQueue.Entry e = q.take();
+        q.done(e);
+        q.put(batch("v2", "v3"));
+        assertEquals(1, q.stats().getQueuedBatches());
+        assertEquals(2, q.stats().getAppliedOps());
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        WriteBehindQueue q = new WriteBehindQueue("test", WriteBehindConfig.spill(2, tmpDir.getRoot()));
+        for (int i = 0; i < 5; i++)
+            q.put(batch("a" + i, "b" + i));
+        WriteBehindStats stats = q.stats();
+        assertEquals(5, stats.getQueuedBatches());
+        assertEquals(4, stats.getSpilledBatches());
+        assertEquals(2, stats.getPendingOps());
+
+        for (int i = 0; i < 5; i++) {
+            WriteBehindQueue.Entry e = q.take();
+            assertTrue(e.batch.addedVertices().contains("a" + i));
+            q.done(e);
+        }
+        assertEquals(0, q.stats().getQueuedBatches());
+        assertEquals(0, tmpDir.getRoot().list().length);
+
+        q.close();
+        assertNull(q.take());
+    }
+
+    @Test
+    public void testSpilledBacklogHasAnAge() throws Exception {
+        WriteBehindQueue q = new WriteBehindQueue("test", WriteBehindConfig.spill(2, tmpDir.getRoot()));
+        q.put(batch("a0", "b0"));
+        q.put(batch("a1", "b1"));
+        q.done(q.take());
+        Thread.sleep(20);
+        // only the spilled batch is left
+        assertEquals(1, q.stats().getSpilledBatches());
+        assertTrue(q.stats().getOldestPendingMillis() >= 20);
+    }
+
+    @Test
+    public void testFailedApplierReleasesCommitters() throws Exception {
+        final WriteBehindQueue q = new WriteBehindQueue("test", WriteBehindConfig.block(2));
+        q.put(batch("v0", "v1"));
+        ExecutorService committer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> blocked = committer.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    q.put(batch("v2"));
+                    return null;
+                }
+            });
+            Thread.sleep(50);
+            assertFalse(blocked.isDone());
+            q.fail(new IllegalStateException("SoR is gone"));
+            try {
+                blocked.get(10, TimeUnit.SECONDS);
+                fail("expected IllegalStateException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            try {
+                q.put(batch("v3"));
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            committer.shutdownNow();
+        }
+    }
+}